@@ -1,10 +1,19 @@
 package com.amazonaws.kinesisvideo;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.concurrent.ExecutionException;
 
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.kinesisvideo.utilities.AsyncDetectionService;
+import com.amazonaws.kinesisvideo.utilities.AwsClientRegistry;
+import com.amazonaws.kinesisvideo.utilities.DetectionType;
+import com.amazonaws.kinesisvideo.utilities.DirectoryLock;
+import com.amazonaws.kinesisvideo.utilities.DuplicateFrameFilter;
+import com.amazonaws.kinesisvideo.utilities.FrameDetector;
+import com.amazonaws.kinesisvideo.utilities.ImageIOFrameEncoder;
+import com.amazonaws.kinesisvideo.utilities.PipelineMetrics;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kinesisvideo.model.TimestampRange;
 import lombok.extern.slf4j.Slf4j;
@@ -13,6 +22,10 @@ import org.apache.commons.cli.*;
 @Slf4j
 public class App 
 {
+    private static final String MODE_LOCAL = "local";
+    private static final String MODE_COORDINATOR = "coordinator";
+    private static final String MODE_WORKER = "worker";
+
     public static void main( String[] args ) throws InterruptedException, ExecutionException, java.text.ParseException, IOException {
         /* Option parsing */
         Options options = new Options();
@@ -21,22 +34,90 @@ public class App
         stream.setRequired(true);
         options.addOption(stream);
 
-        Option startTime = new Option("st", "startTime", true, "start time");
-        startTime.setRequired(true);
+        Option startTime = new Option("st", "startTime", true, "start time, not needed in worker mode");
+        startTime.setRequired(false);
         options.addOption(startTime);
 
-        Option endTime = new Option("et", "endTime", true, "end time");
-        endTime.setRequired(true);
+        Option endTime = new Option("et", "endTime", true, "end time, not needed in worker mode");
+        endTime.setRequired(false);
         options.addOption(endTime);
 
         Option sampleRate = new Option("sr", "sampleRate", true, "sample rate");
         sampleRate.setRequired(true);
         options.addOption(sampleRate);
 
+        Option maxSampleRate = new Option("msr", "maxSampleRate", true, "when above the sample rate, sampling adapts between the two, backing off to every maxSampleRate frames while the scene is static");
+        maxSampleRate.setRequired(false);
+        options.addOption(maxSampleRate);
+
         Option threads = new Option("th", "threads", true , "number of threads");
         threads.setRequired(true);
         options.addOption(threads);
 
+        Option cacheDirectory = new Option("cd", "cacheDirectory", true, "directory for locally cached fragment data, used by one process at a time (by default ~/.kvs-archived-media, or a numbered directory of its own under it for each worker)");
+        cacheDirectory.setRequired(false);
+        options.addOption(cacheDirectory);
+
+        Option cacheSize = new Option("cs", "cacheSize", true, "maximum size of the local fragment media cache in MB");
+        cacheSize.setRequired(false);
+        options.addOption(cacheSize);
+
+        Option jpegQuality = new Option("jq", "jpegQuality", true, "JPEG quality of the frames sent to Rekognition, between 0 and 1");
+        jpegQuality.setRequired(false);
+        options.addOption(jpegQuality);
+
+        Option maxDimension = new Option("md", "maxDimension", true, "frames are scaled down to this width or height before they are sent to Rekognition");
+        maxDimension.setRequired(false);
+        options.addOption(maxDimension);
+
+        Option transactionsPerSecond = new Option("tps", "transactionsPerSecond", true, "maximum number of Rekognition requests per second");
+        transactionsPerSecond.setRequired(false);
+        options.addOption(transactionsPerSecond);
+
+        Option duplicateThreshold = new Option("dt", "duplicateThreshold", true, "frames whose hash differs from the last submitted frame in fewer bits are not sent to Rekognition, 0 sends every frame");
+        duplicateThreshold.setRequired(false);
+        options.addOption(duplicateThreshold);
+
+        Option noDetectionPersistence = new Option("ndp", "noDetectionPersistence", false, "keep detection results in memory only instead of in the cache directory");
+        noDetectionPersistence.setRequired(false);
+        options.addOption(noDetectionPersistence);
+
+        Option detectors = new Option("de", "detectors", true, "comma separated detectors to run on each frame, out of labels, faces, celebrities and text");
+        detectors.setRequired(false);
+        options.addOption(detectors);
+
+        Option frameDetector = new Option("fd", "frameDetector", true, "rekognition, or stub to make up deterministic labels locally without calling AWS");
+        frameDetector.setRequired(false);
+        options.addOption(frameDetector);
+
+        Option jobId = new Option("j", "jobId", true, "id of the job, finished fragments are checkpointed per job so that a rerun only processes the rest (by default the time range, a run with other detection settings starts over)");
+        jobId.setRequired(false);
+        options.addOption(jobId);
+
+        Option restart = new Option("rs", "restart", false, "forget the fragments checkpointed for the job and process the whole time range again");
+        restart.setRequired(false);
+        options.addOption(restart);
+
+        Option mode = new Option("m", "mode", true, "local to process the time range in this JVM, coordinator to publish it as work items in the lease directory, or worker to process work items published there");
+        mode.setRequired(false);
+        options.addOption(mode);
+
+        Option leaseDirectory = new Option("ld", "leaseDirectory", true, "directory shared by the coordinator and every worker, on a file system they can all reach");
+        leaseDirectory.setRequired(false);
+        options.addOption(leaseDirectory);
+
+        Option workerId = new Option("w", "workerId", true, "id of this worker, unique among the workers of a job (by default pid@host)");
+        workerId.setRequired(false);
+        options.addOption(workerId);
+
+        Option leaseTimeout = new Option("lt", "leaseTimeout", true, "seconds after which the work item of a worker that stopped renewing its lease is taken over by another");
+        leaseTimeout.setRequired(false);
+        options.addOption(leaseTimeout);
+
+        Option maxConnections = new Option("mc", "maxConnections", true, "maximum number of HTTP connections per AWS client");
+        maxConnections.setRequired(false);
+        options.addOption(maxConnections);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd = null;
@@ -49,26 +130,70 @@ public class App
             System.exit(1);
         }
 
+        String runMode = cmd.getOptionValue("mode", MODE_LOCAL);
+        if (!MODE_LOCAL.equals(runMode) && !MODE_COORDINATOR.equals(runMode) && !MODE_WORKER.equals(runMode)) {
+            log.error("Unknown mode {}", runMode);
+            formatter.printHelp("kvs-archived-media-retrieval-sample", options);
+            System.exit(1);
+        }
+        if (!MODE_WORKER.equals(runMode) && (!cmd.hasOption("startTime") || !cmd.hasOption("endTime"))) {
+            log.error("Missing required options: st, et");
+            formatter.printHelp("kvs-archived-media-retrieval-sample", options);
+            System.exit(1);
+        }
+        if (!MODE_LOCAL.equals(runMode) && !cmd.hasOption("leaseDirectory")) {
+            log.error("Missing required option in {} mode: ld", runMode);
+            formatter.printHelp("kvs-archived-media-retrieval-sample", options);
+            System.exit(1);
+        }
+
         String streamName = cmd.getOptionValue("stream");
         String startTimestamp = cmd.getOptionValue("startTime");
         String endTimestamp = cmd.getOptionValue("endTime");
         int inputSampleRate = Integer.parseInt(cmd.getOptionValue("sampleRate"));
+        int inputMaxSampleRate = Integer.parseInt(cmd.getOptionValue("maxSampleRate", "0"));
         int numThreads = Integer.parseInt(cmd.getOptionValue("threads"));
-
-        TimestampRange timestampRange = new TimestampRange();
-        try {
-            timestampRange.setStartTimestamp(new SimpleDateFormat("dd/MM/yyyy HH:mm:ss").parse(startTimestamp));
-            timestampRange.setEndTimestamp(new SimpleDateFormat("dd/MM/yyyy HH:mm:ss").parse(endTimestamp));
-
-        } catch (java.text.ParseException e) {
-            log.error(e.getMessage());
-            System.exit(1);
+        String cacheDirectoryPath = cmd.getOptionValue("cacheDirectory",
+                KinesisVideoArchivedParallelProcessingExample.DEFAULT_CACHE_DIRECTORY.toString());
+        /* A cache directory serves one process only, so workers sharing a host each take one of their own */
+        if (MODE_WORKER.equals(runMode) && !cmd.hasOption("cacheDirectory")) {
+            try {
+                cacheDirectoryPath = DirectoryLock.acquireFirstFree(
+                        KinesisVideoArchivedParallelProcessingExample.DEFAULT_CACHE_DIRECTORY.resolve("workers")).toString();
+            } catch (IOException e) {
+                log.error("Unable to set up a cache directory for the worker: {}", e.getMessage());
+                System.exit(1);
+            }
+        }
+        int maxConnectionsPerClient = Integer.parseInt(cmd.getOptionValue("maxConnections",
+                String.valueOf(Math.max(AwsClientRegistry.DEFAULT_MAX_CONNECTIONS, numThreads))));
+        AwsClientRegistry.configure(maxConnectionsPerClient, true);
+        float inputJpegQuality = Float.parseFloat(cmd.getOptionValue("jpegQuality", String.valueOf(ImageIOFrameEncoder.DEFAULT_QUALITY)));
+        int inputMaxDimension = Integer.parseInt(cmd.getOptionValue("maxDimension", "0"));
+        double inputTransactionsPerSecond = Double.parseDouble(cmd.getOptionValue("transactionsPerSecond",
+                String.valueOf(AsyncDetectionService.DEFAULT_TRANSACTIONS_PER_SECOND)));
+        int inputDuplicateThreshold = Integer.parseInt(cmd.getOptionValue("duplicateThreshold",
+                String.valueOf(DuplicateFrameFilter.DEFAULT_THRESHOLD)));
+        long cacheSizeBytes = cmd.hasOption("cacheSize") ? Long.parseLong(cmd.getOptionValue("cacheSize")) * 1024 * 1024 : 0;
+
+        TimestampRange timestampRange = null;
+        int numTasks = numThreads;
+        if (!MODE_WORKER.equals(runMode)) {
+            timestampRange = new TimestampRange();
+            try {
+                timestampRange.setStartTimestamp(new SimpleDateFormat("dd/MM/yyyy HH:mm:ss").parse(startTimestamp));
+                timestampRange.setEndTimestamp(new SimpleDateFormat("dd/MM/yyyy HH:mm:ss").parse(endTimestamp));
+
+            } catch (java.text.ParseException e) {
+                log.error(e.getMessage());
+                System.exit(1);
+            }
+
+            long timeDuration = timestampRange.getEndTimestamp().getTime() - timestampRange.getStartTimestamp().getTime();
+            numTasks = (int) timeDuration / 10000;
+            numTasks = Math.max(numTasks, numThreads);
+            log.info("Starting processing with {} tasks", numTasks);
         }
-
-        long timeDuration = timestampRange.getEndTimestamp().getTime() - timestampRange.getStartTimestamp().getTime();
-        int numTasks = (int) timeDuration / 10000;
-        numTasks = Math.max(numTasks, numThreads);
-        log.info("Starting processing with {} tasks", numTasks);
 
         long start = System.nanoTime();
 
@@ -78,11 +203,32 @@ public class App
                     .awsCredentialsProvider(new ProfileCredentialsProvider())
                     .timestampRange(timestampRange)
                     .sampleRate(inputSampleRate)
+                    .maxSampleRate(inputMaxSampleRate)
                     .threads(numThreads)
                     .tasks(numTasks)
+                    .cacheDirectory(Paths.get(cacheDirectoryPath))
+                    .cacheSizeBytes(cacheSizeBytes)
+                    .jpegQuality(inputJpegQuality)
+                    .maxDimension(inputMaxDimension)
+                    .transactionsPerSecond(inputTransactionsPerSecond)
+                    .duplicateThreshold(inputDuplicateThreshold)
+                    .persistDetections(!cmd.hasOption("noDetectionPersistence"))
+                    .detectionTypes(DetectionType.parse(cmd.getOptionValue("detectors", "labels")))
+                    .frameDetector(cmd.getOptionValue("frameDetector", FrameDetector.REKOGNITION))
+                    .jobId(cmd.getOptionValue("jobId"))
+                    .restart(cmd.hasOption("restart"))
+                    .leaseDirectory(cmd.hasOption("leaseDirectory") ? Paths.get(cmd.getOptionValue("leaseDirectory")) : null)
+                    .workerId(cmd.getOptionValue("workerId"))
+                    .leaseTimeoutMillis(Long.parseLong(cmd.getOptionValue("leaseTimeout", "0")) * 1000)
                     .build();
 
-            example.execute();
+            if (MODE_COORDINATOR.equals(runMode)) {
+                example.coordinate();
+            } else if (MODE_WORKER.equals(runMode)) {
+                example.work();
+            } else {
+                example.execute();
+            }
         } catch (ExecutionException e) {
             log.error(e.getMessage());
             System.exit(1);
@@ -90,7 +236,8 @@ public class App
         long end = System.nanoTime();
         long totalTime = end - start;
         double seconds = (double) totalTime / 1_000_000_000.0;
-        log.info("Total runtime: " + seconds + " seconds");
+        log.info("Total runtime: {} seconds, {} frames per second", seconds,
+                String.format("%.1f", PipelineMetrics.FRAMES_SEEN.getCount() / seconds));
 
     }
 }
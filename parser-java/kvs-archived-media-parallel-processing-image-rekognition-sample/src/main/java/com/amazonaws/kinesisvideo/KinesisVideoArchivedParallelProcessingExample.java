@@ -1,11 +1,19 @@
 package com.amazonaws.kinesisvideo;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -14,9 +22,25 @@ import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.kinesisvideo.parser.examples.KinesisVideoCommon;
 import com.amazonaws.kinesisvideo.parser.examples.StreamOps;
 import com.amazonaws.kinesisvideo.parser.utilities.*;
+import com.amazonaws.kinesisvideo.utilities.AsyncDetectionService;
+import com.amazonaws.kinesisvideo.utilities.AwsClientRegistry;
+import com.amazonaws.kinesisvideo.utilities.DetectionResultCache;
+import com.amazonaws.kinesisvideo.utilities.DetectionType;
+import com.amazonaws.kinesisvideo.utilities.DetectorChain;
+import com.amazonaws.kinesisvideo.utilities.DuplicateFrameFilter;
+import com.amazonaws.kinesisvideo.utilities.FragmentIndex;
+import com.amazonaws.kinesisvideo.utilities.FragmentMediaCache;
+import com.amazonaws.kinesisvideo.utilities.FrameDetector;
+import com.amazonaws.kinesisvideo.utilities.FrameProcessorPool;
 import com.amazonaws.kinesisvideo.utilities.H264FrameLabelDetector;
+import com.amazonaws.kinesisvideo.utilities.ImageIOFrameEncoder;
+import com.amazonaws.kinesisvideo.utilities.JobCheckpoint;
+import com.amazonaws.kinesisvideo.utilities.PipelineMetrics;
+import com.amazonaws.kinesisvideo.utilities.SamplingPolicy;
+import com.amazonaws.kinesisvideo.utilities.WorkLeases;
 import com.amazonaws.kinesisvideo.workers.GetMediaArchivedRekognitionWorker;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
 import com.amazonaws.services.kinesisvideo.model.*;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
@@ -30,52 +54,101 @@ public class KinesisVideoArchivedParallelProcessingExample extends KinesisVideoC
     private final StreamOps streamOps;
     private final ExecutorService executorService;
     private final int sampleRate;
+    private final int maxSampleRate;
+    private final int threads;
     private int tasks;
+    private final Path cacheDirectory;
+    private final long cacheSizeBytes;
+    private final float jpegQuality;
+    private final int maxDimension;
+    private final double transactionsPerSecond;
+    private final int duplicateThreshold;
+    private final boolean persistDetections;
+    private final Set<DetectionType> detectionTypes;
+    private final String frameDetector;
+    private final String jobId;
+    private final boolean restart;
+    private final Path leaseDirectory;
+    private final String workerId;
+    private final long leaseTimeoutMillis;
     private AtomicLong framesProcessed = new AtomicLong();
 
     private static final int AWAIT_TERMINATION_TIME = 10800;
 
+    public static final Path DEFAULT_CACHE_DIRECTORY = Paths.get(System.getProperty("user.home"), ".kvs-archived-media");
+
     @Builder
     private KinesisVideoArchivedParallelProcessingExample(Regions region,
                                                           String streamName,
                                                           AWSCredentialsProvider awsCredentialsProvider,
                                                           TimestampRange timestampRange,
                                                           int sampleRate,
+                                                          int maxSampleRate,
                                                           int threads,
-                                                          int tasks) {
+                                                          int tasks,
+                                                          Path cacheDirectory,
+                                                          long cacheSizeBytes,
+                                                          float jpegQuality,
+                                                          int maxDimension,
+                                                          double transactionsPerSecond,
+                                                          int duplicateThreshold,
+                                                          boolean persistDetections,
+                                                          Set<DetectionType> detectionTypes,
+                                                          String frameDetector,
+                                                          String jobId,
+                                                          boolean restart,
+                                                          Path leaseDirectory,
+                                                          String workerId,
+                                                          long leaseTimeoutMillis) {
         super(region, awsCredentialsProvider, streamName);
         this.streamOps = new StreamOps(region, streamName, awsCredentialsProvider);
         this.executorService = Executors.newFixedThreadPool(threads);
         this.timestampRange = timestampRange;
         this.sampleRate = sampleRate;
+        this.maxSampleRate = maxSampleRate;
+        this.threads = threads;
         this.tasks = tasks;
+        this.cacheDirectory = cacheDirectory != null ? cacheDirectory : DEFAULT_CACHE_DIRECTORY;
+        this.cacheSizeBytes = cacheSizeBytes > 0 ? cacheSizeBytes : FragmentMediaCache.DEFAULT_MAX_BYTES;
+        this.jpegQuality = jpegQuality;
+        this.maxDimension = maxDimension;
+        this.transactionsPerSecond = transactionsPerSecond;
+        this.duplicateThreshold = duplicateThreshold;
+        this.persistDetections = persistDetections;
+        this.detectionTypes = detectionTypes != null ? detectionTypes : EnumSet.of(DetectionType.LABELS);
+        this.frameDetector = frameDetector != null ? frameDetector : FrameDetector.REKOGNITION;
+        this.jobId = jobId != null || timestampRange == null ? jobId : JobCheckpoint.jobId(timestampRange);
+        this.restart = restart;
+        this.leaseDirectory = leaseDirectory;
+        this.workerId = workerId != null ? workerId : ManagementFactory.getRuntimeMXBean().getName();
+        this.leaseTimeoutMillis = leaseTimeoutMillis > 0 ? leaseTimeoutMillis : WorkLeases.DEFAULT_LEASE_TIMEOUT_MILLIS;
     }
 
+    /* Processes the whole time range in this JVM */
     public void execute() throws InterruptedException, IOException, ParseException, ExecutionException {
 
         List<TimestampRange> timestampRanges = partitionTimeRange(timestampRange);
 
-        String listFragmentsEndpoint = getListFragmentsEndpoint(getStreamName());
-        String getMediaFragmentListEndpoint = getGetMediaForFragmentListEndpoint(getStreamName());
+        Pipeline pipeline = new Pipeline();
 
-        for (TimestampRange timestampRange : timestampRanges) {
+        /* Bring the whole range into the fragment index up front so that every task only does a local lookup */
+        int fragmentCount = pipeline.fragmentIndex.getFragments(timestampRange,
+                range -> GetMediaArchivedRekognitionWorker.listFragments(pipeline.listFragmentsClient, getStreamName(), range)).size();
+        log.info("Fragment index holds {} fragments for the requested range", fragmentCount);
 
-            log.info(timestampRange.toString());
+        /* Fragments finished by an earlier run of the same job are skipped, unless the job is restarted */
+        JobCheckpoint jobCheckpoint = JobCheckpoint.open(cacheDirectory.resolve("checkpoints"), getStreamName(), jobId,
+                checkpointSettings());
+        if (restart) {
+            jobCheckpoint.clear();
+        }
 
-            FrameVisitor frameVisitor = FrameVisitor.create(H264FrameLabelDetector.create(sampleRate, framesProcessed), Optional.empty(), Optional.of(1L));
+        List<Future<?>> taskResults = new ArrayList<>();
+        for (TimestampRange timestampRange : timestampRanges) {
 
-            GetMediaArchivedRekognitionWorker getMediaArchivedRekognitionWorker = GetMediaArchivedRekognitionWorker.create(getStreamName(),
-                    getCredentialsProvider(),
-                    getRegion(),
-                    streamOps.getAmazonKinesisVideo(),
-                    new FragmentSelector()
-                            .withFragmentSelectorType(FragmentSelectorType.SERVER_TIMESTAMP)
-                            .withTimestampRange(timestampRange),
-                    frameVisitor,
-                    listFragmentsEndpoint,
-                    getMediaFragmentListEndpoint);
+            log.info(timestampRange.toString());
 
-            executorService.submit(getMediaArchivedRekognitionWorker);
+            taskResults.add(executorService.submit(pipeline.newTask(timestampRange, jobCheckpoint)));
 
         }
 
@@ -87,7 +160,199 @@ public class KinesisVideoArchivedParallelProcessingExample extends KinesisVideoC
             executorService.shutdownNow();
         } else {
             log.info("Executor service is shutdown");
+            if (!pipeline.detectionService.awaitCompletion(AWAIT_TERMINATION_TIME, TimeUnit.SECONDS)) {
+                log.warn("Rekognition requests still outstanding");
+            }
             log.info("Total number of frames processed: {}", framesProcessed);
+            long failedTasks = taskResults.stream().filter(KinesisVideoArchivedParallelProcessingExample::failed).count();
+            if (failedTasks > 0) {
+                log.warn("{} of {} tasks failed, run job {} again to retry their unfinished fragments",
+                        failedTasks, taskResults.size(), jobId);
+            }
+        }
+        jobCheckpoint.logStatistics();
+        jobCheckpoint.close();
+        pipeline.shutdown();
+    }
+
+    /* Publishes the time range as work items in the lease directory, and waits until the workers finished them. A
+     * coordinator that is started again resumes the job, retrying only the items that were not fully processed. */
+    public void coordinate() throws InterruptedException, IOException, ParseException {
+        WorkLeases workLeases = WorkLeases.open(leaseDirectory, workerId, leaseTimeoutMillis);
+        workLeases.publish(getStreamName(), partitionTimeRange(timestampRange));
+
+        /* Workers take over the leases of lost workers themselves, the coordinator only follows the progress */
+        while (!workLeases.isFinished()) {
+            log.info("{} of {} work items finished", workLeases.getResults().size(), workLeases.getItemCount());
+            Thread.sleep(pollIntervalMillis());
+        }
+
+        long fragments = 0;
+        long finishedFragments = 0;
+        Map<String, long[]> perWorker = new TreeMap<>();
+        for (WorkLeases.Result result : workLeases.getResults().values()) {
+            fragments += result.getFragments();
+            finishedFragments += result.getFinishedFragments();
+            long[] totals = perWorker.computeIfAbsent(result.getWorkerId(), w -> new long[3]);
+            totals[0]++;
+            totals[1] += result.getFinishedFragments();
+            totals[2] += result.getElapsedMillis();
+        }
+        log.info("Job on stream {} finished: {} of {} fragments processed in {} work items", getStreamName(),
+                finishedFragments, fragments, workLeases.getItemCount());
+        perWorker.forEach((worker, totals) -> log.info("Worker {}: {} work items, {} fragments, {} ms",
+                worker, totals[0], totals[1], totals[2]));
+        List<String> givenUp = workLeases.getGivenUp();
+        if (!givenUp.isEmpty()) {
+            log.warn("Work items {} failed {} times and were given up, run the coordinator again to retry them",
+                    givenUp, WorkLeases.MAX_ATTEMPTS);
+        }
+    }
+
+    /* Leases work items published by a coordinator and processes them until every item of the job is finished. Each
+     * item is checkpointed in the lease directory, so a worker taking over an item only processes what is left. */
+    public void work() throws InterruptedException, IOException {
+        WorkLeases workLeases = WorkLeases.open(leaseDirectory, workerId, leaseTimeoutMillis);
+        Optional<String> jobStream;
+        while (!(jobStream = workLeases.getStreamName()).isPresent()) {
+            log.info("Waiting for a coordinator to publish a job in {}", leaseDirectory);
+            Thread.sleep(pollIntervalMillis());
+        }
+        if (!jobStream.get().equals(getStreamName())) {
+            throw new IllegalStateException("Lease directory " + leaseDirectory + " holds a job on stream " + jobStream.get());
+        }
+
+        Pipeline pipeline = new Pipeline();
+        List<Future<?>> loops = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            loops.add(executorService.submit(() -> {
+                leaseAndProcess(workLeases, pipeline);
+                return null;
+            }));
+        }
+        executorService.shutdown();
+        long failedLoops = loops.stream().filter(KinesisVideoArchivedParallelProcessingExample::failed).count();
+        if (failedLoops > 0) {
+            log.warn("{} of {} worker threads stopped on an error", failedLoops, loops.size());
+        }
+        log.info("Worker {} is done, total number of frames processed: {}", workerId, framesProcessed);
+        workLeases.shutdown();
+        pipeline.shutdown();
+    }
+
+    private void leaseAndProcess(final WorkLeases workLeases, final Pipeline pipeline) throws InterruptedException, IOException {
+        while (true) {
+            Optional<WorkLeases.Lease> acquired = workLeases.acquire();
+            if (!acquired.isPresent()) {
+                if (workLeases.isFinished()) {
+                    return;
+                }
+                /* Items are leased by live workers, one of them may still expire */
+                Thread.sleep(pollIntervalMillis());
+                continue;
+            }
+            WorkLeases.Lease lease = acquired.get();
+            JobCheckpoint checkpoint = JobCheckpoint.open(leaseDirectory.resolve("checkpoints"), getStreamName(), lease.getItem(),
+                    checkpointSettings());
+            GetMediaArchivedRekognitionWorker task = pipeline.newTask(lease.getTimestampRange(), checkpoint);
+            /* A worker goes through many items, so the checkpoint of each is closed once the item is done with */
+            try {
+                task.run();
+                task.getCompletion().get();
+                lease.complete(task.getFragmentCount(), checkpoint.getCompletedCount());
+            } catch (RuntimeException | ExecutionException e) {
+                log.warn("Work item {} failed: {}", lease.getItem(), e.toString());
+                lease.fail();
+            } finally {
+                checkpoint.close();
+            }
+        }
+    }
+
+    /* Everything that changes the detections of a fragment, so that a job run with other settings starts over */
+    private String checkpointSettings() {
+        return "sampleRate=" + sampleRate + " maxSampleRate=" + maxSampleRate + " duplicateThreshold=" + duplicateThreshold
+                + " jpegQuality=" + jpegQuality + " maxDimension=" + maxDimension + " detectionTypes=" + new TreeSet<>(detectionTypes)
+                + " frameDetector=" + frameDetector;
+    }
+
+    private long pollIntervalMillis() {
+        return Math.max(1000, leaseTimeoutMillis / 3);
+    }
+
+    private static boolean failed(final Future<?> taskResult) {
+        try {
+            taskResult.get();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        } catch (ExecutionException | CancellationException e) {
+            return true;
+        }
+    }
+
+    /* Everything the tasks of this JVM share, from the fragment index to the pool of frame processors */
+    private class Pipeline {
+        private final String listFragmentsEndpoint = getListFragmentsEndpoint(getStreamName());
+        private final String getMediaFragmentListEndpoint = getGetMediaForFragmentListEndpoint(getStreamName());
+        private final AmazonKinesisVideoArchivedMedia listFragmentsClient = AwsClientRegistry.getArchivedMediaClient(
+                getCredentialsProvider(), listFragmentsEndpoint, getRegion());
+        private final FragmentIndex fragmentIndex = FragmentIndex.open(cacheDirectory.resolve("fragment-index"), getStreamName());
+        private final FragmentMediaCache fragmentMediaCache = FragmentMediaCache.open(cacheDirectory.resolve("fragment-media"), cacheSizeBytes);
+
+        /* Frames analyzed before, in this run or an earlier one, are answered without calling Rekognition */
+        private final DetectionResultCache detectionResultCache = persistDetections
+                ? DetectionResultCache.open(cacheDirectory.resolve("detections"), DetectionResultCache.DEFAULT_MAX_ENTRIES)
+                : DetectionResultCache.inMemory(DetectionResultCache.DEFAULT_MAX_ENTRIES);
+
+        /* Detection runs asynchronously, so decode threads move on to the next frame while Rekognition works. Any other
+         * frame detector runs locally, without network access. */
+        private final AsyncDetectionService detectionService = AsyncDetectionService.builder()
+                .transactionsPerSecond(transactionsPerSecond)
+                .resultCache(detectionResultCache)
+                .frameDetector(FrameDetector.REKOGNITION.equals(frameDetector) ? null : FrameDetector.create(frameDetector))
+                .build();
+
+        /* Every detector runs concurrently on the same encoded frame */
+        private final DetectorChain detectorChain = DetectorChain.create(detectionService, detectionTypes);
+
+        /* Frames of a static scene are only sent once, the frames that follow reuse their labels */
+        private final DuplicateFrameFilter duplicateFrameFilter = new DuplicateFrameFilter(duplicateThreshold);
+
+        /* One detector per thread is enough, tasks borrow them rather than each creating their own */
+        private final FrameProcessorPool<H264FrameLabelDetector> frameProcessorPool = FrameProcessorPool.create(threads,
+                () -> H264FrameLabelDetector.create(SamplingPolicy.create(sampleRate, maxSampleRate), framesProcessed, ImageIOFrameEncoder.builder()
+                        .quality(jpegQuality)
+                        .maxDimension(maxDimension)
+                        .build(), detectionService, detectorChain, duplicateFrameFilter));
+
+        GetMediaArchivedRekognitionWorker newTask(final TimestampRange timestampRange, final JobCheckpoint jobCheckpoint) {
+            return GetMediaArchivedRekognitionWorker.create(getStreamName(),
+                    getCredentialsProvider(),
+                    getRegion(),
+                    streamOps.getAmazonKinesisVideo(),
+                    new FragmentSelector()
+                            .withFragmentSelectorType(FragmentSelectorType.SERVER_TIMESTAMP)
+                            .withTimestampRange(timestampRange),
+                    frameProcessorPool,
+                    listFragmentsEndpoint,
+                    getMediaFragmentListEndpoint,
+                    fragmentIndex,
+                    fragmentMediaCache,
+                    jobCheckpoint);
+        }
+
+        void shutdown() {
+            detectionService.shutdown();
+            PipelineMetrics.logStatistics();
+            detectionService.logStatistics();
+            detectorChain.logStatistics();
+            duplicateFrameFilter.logStatistics(detectorChain.getDetectionTypes().size());
+            detectionResultCache.logStatistics();
+            fragmentMediaCache.logStatistics();
+            frameProcessorPool.logStatistics();
+            AwsClientRegistry.logStatistics();
         }
     }
 
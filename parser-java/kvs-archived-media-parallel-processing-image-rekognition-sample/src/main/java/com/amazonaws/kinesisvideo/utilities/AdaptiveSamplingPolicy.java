@@ -0,0 +1,98 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+/* Samples often while the scene changes and backs off while it stays still.
+ *
+ * The interval between sampled frames drops to minInterval as soon as a sampled image differs from the previous one
+ * by changeThreshold bits of difference hash or more, or when the detected labels change. Every sampled frame that
+ * shows the same scene with the same labels doubles the interval, up to maxInterval. */
+@Slf4j
+public class AdaptiveSamplingPolicy implements SamplingPolicy {
+
+    public static final int DEFAULT_CHANGE_THRESHOLD = 12;
+
+    private final int minInterval;
+    private final int maxInterval;
+    private final int changeThreshold;
+
+    private int interval;
+    private long framesUntilSample;
+    private boolean hasHash;
+    private long lastHash;
+    private Set<String> lastLabels;
+
+    @Builder
+    private AdaptiveSamplingPolicy(final int minInterval, final int maxInterval, final int changeThreshold) {
+        this.minInterval = Math.max(1, minInterval);
+        this.maxInterval = Math.max(this.minInterval, maxInterval);
+        this.changeThreshold = changeThreshold > 0 ? changeThreshold : DEFAULT_CHANGE_THRESHOLD;
+        this.interval = this.minInterval;
+    }
+
+    @Override
+    public synchronized boolean shouldSample(final Frame frame) {
+        if (framesUntilSample-- <= 0) {
+            framesUntilSample = interval - 1;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void onSampledImage(final BufferedImage image) {
+        long hash = FrameHash.differenceHash(image);
+        if (hasHash) {
+            if (FrameHash.distance(hash, lastHash) >= changeThreshold) {
+                speedUp();
+            } else {
+                backOff();
+            }
+        }
+        hasHash = true;
+        lastHash = hash;
+    }
+
+    @Override
+    public synchronized void onLabels(final Collection<String> labels) {
+        Set<String> labelSet = new HashSet<>(labels);
+        if (lastLabels != null && !lastLabels.equals(labelSet)) {
+            speedUp();
+        }
+        lastLabels = labelSet;
+    }
+
+    public synchronized int getInterval() {
+        return interval;
+    }
+
+    @Override
+    public synchronized void reset() {
+        interval = minInterval;
+        framesUntilSample = 0;
+        hasHash = false;
+        lastLabels = null;
+    }
+
+    private void speedUp() {
+        if (interval != minInterval) {
+            log.debug("Scene changed, sampling every {} frames", minInterval);
+        }
+        interval = minInterval;
+        framesUntilSample = Math.min(framesUntilSample, interval - 1);
+    }
+
+    /* The next sample was scheduled with the previous interval, move it out by as much as the interval grows */
+    private void backOff() {
+        int previousInterval = interval;
+        interval = (int) Math.min(maxInterval, 2L * interval);
+        framesUntilSample += interval - previousInterval;
+    }
+}
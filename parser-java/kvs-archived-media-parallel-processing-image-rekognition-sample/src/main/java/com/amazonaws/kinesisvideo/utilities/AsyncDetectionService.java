@@ -0,0 +1,277 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.AmazonWebServiceRequest;
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.retry.RetryUtils;
+import com.amazonaws.services.rekognition.AmazonRekognitionAsync;
+import com.amazonaws.services.rekognition.model.DetectLabelsRequest;
+import com.amazonaws.services.rekognition.model.DetectLabelsResult;
+import com.amazonaws.services.rekognition.model.Label;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/* Sends Rekognition requests through the asynchronous client.
+ *
+ * Requests are dispatched no faster than the token bucket allows, and at most maxInFlight frames are outstanding,
+ * which is the only point where a submitting thread can wait. Throttled and server side failures are retried after
+ * an exponential backoff with full jitter. Results are handed to the callbacks of a sequence in the order the frames
+ * were submitted to it, whatever order the responses arrive in. Label detections found in the result cache are
+ * answered from it without a request. With a local frame detector, labels are detected on the submitting thread
+ * instead of through Rekognition, and no Rekognition client is needed. */
+@Slf4j
+public class AsyncDetectionService {
+
+    public static final double DEFAULT_TRANSACTIONS_PER_SECOND = 50;
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+    public static final int DEFAULT_MAX_RETRIES = 5;
+
+    private static final long BASE_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 20_000;
+
+    public interface DetectionCallback {
+        void onDetection(DetectLabelsResult result);
+
+        void onFailure(Exception exception);
+    }
+
+    /* One of the asynchronous operations of the client, such as AmazonRekognitionAsync::detectFacesAsync */
+    public interface AsyncCall<Q extends AmazonWebServiceRequest, R> {
+        Future<R> call(Q request, AsyncHandler<Q, R> handler);
+    }
+
+    @Getter
+    private final AmazonRekognitionAsync rekognitionClient;
+    private final TokenBucketRateLimiter rateLimiter;
+    private final Semaphore inFlight;
+    private final int maxInFlight;
+    private final int maxRetries;
+    private final DetectionResultCache resultCache;
+    private final FrameDetector frameDetector;
+    private final ScheduledExecutorService dispatcher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rekognition-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong cached = new AtomicLong();
+
+    @Builder
+    private AsyncDetectionService(final AmazonRekognitionAsync rekognitionClient,
+                                  final double transactionsPerSecond,
+                                  final int maxInFlight,
+                                  final int maxRetries,
+                                  final DetectionResultCache resultCache,
+                                  final FrameDetector frameDetector) {
+        double tps = transactionsPerSecond > 0 ? transactionsPerSecond : DEFAULT_TRANSACTIONS_PER_SECOND;
+        this.rekognitionClient = rekognitionClient != null || frameDetector != null
+                ? rekognitionClient : AwsClientRegistry.getRekognitionAsyncClient();
+        this.rateLimiter = new TokenBucketRateLimiter(tps, Math.max(1, tps));
+        this.maxInFlight = maxInFlight > 0 ? maxInFlight : DEFAULT_MAX_IN_FLIGHT;
+        this.inFlight = new Semaphore(this.maxInFlight);
+        this.maxRetries = maxRetries > 0 ? maxRetries : DEFAULT_MAX_RETRIES;
+        this.resultCache = resultCache;
+        this.frameDetector = frameDetector;
+    }
+
+    /* Whether labels are detected by a local frame detector rather than by Rekognition */
+    public boolean isLocal() {
+        return frameDetector != null;
+    }
+
+    public String getDetectorName() {
+        return frameDetector != null ? frameDetector.getName() : FrameDetector.REKOGNITION;
+    }
+
+    /* Frames submitted to one sequence have their callbacks run one at a time, in submission order */
+    public Sequence newSequence() {
+        return new Sequence();
+    }
+
+    /* Sends the request once the rate limit allows it, retrying throttled and server side failures */
+    public <Q extends AmazonWebServiceRequest, R> CompletableFuture<R> send(final Q request, final AsyncCall<Q, R> call) {
+        CompletableFuture<R> result = new CompletableFuture<>();
+        submitted.incrementAndGet();
+        dispatcher.execute(() -> dispatch(request, call, result, 0));
+        return result;
+    }
+
+    /* Label detection, answered from the result cache when the same frame was analyzed before */
+    public CompletableFuture<DetectLabelsResult> detectLabels(final DetectLabelsRequest request) {
+        if (resultCache == null) {
+            return sendDetectLabels(request);
+        }
+        String cacheKey = DetectionResultCache.key(getDetectorName(), request.getImage().getBytes(),
+                request.getMaxLabels(), request.getMinConfidence());
+        List<Label> labels = resultCache.get(cacheKey);
+        if (labels != null) {
+            cached.incrementAndGet();
+            return CompletableFuture.completedFuture(new DetectLabelsResult().withLabels(labels));
+        }
+        return sendDetectLabels(request).thenApply(detectLabelsResult -> {
+            resultCache.put(cacheKey, detectLabelsResult.getLabels());
+            return detectLabelsResult;
+        });
+    }
+
+    /* Through Rekognition, or right away on the calling thread with the local frame detector */
+    private CompletableFuture<DetectLabelsResult> sendDetectLabels(final DetectLabelsRequest request) {
+        if (frameDetector == null) {
+            return send(request, rekognitionClient::detectLabelsAsync);
+        }
+        CompletableFuture<DetectLabelsResult> result = new CompletableFuture<>();
+        submitted.incrementAndGet();
+        try {
+            List<Label> labels = frameDetector.detectLabels(request.getImage().getBytes(), request.getMaxLabels(),
+                    request.getMinConfidence());
+            succeeded.incrementAndGet();
+            result.complete(new DetectLabelsResult().withLabels(labels));
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /* Waits until every submitted frame has completed and its callback has run */
+    public boolean awaitCompletion(final long timeout, final TimeUnit unit) throws InterruptedException {
+        if (!inFlight.tryAcquire(maxInFlight, timeout, unit)) {
+            return false;
+        }
+        inFlight.release(maxInFlight);
+        return true;
+    }
+
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    public void logStatistics() {
+        log.info("{} requests: {} submitted, {} answered from cache, {} succeeded, {} failed, {} retries",
+                getDetectorName(), submitted.get(), cached.get(), succeeded.get(), failed.get(), retried.get());
+    }
+
+    private <Q extends AmazonWebServiceRequest, R> void dispatch(final Q request, final AsyncCall<Q, R> call,
+                                                                final CompletableFuture<R> result, final int attempt) {
+        long waitNanos = rateLimiter.tryAcquire();
+        if (waitNanos > 0) {
+            dispatcher.schedule(() -> dispatch(request, call, result, attempt), waitNanos, TimeUnit.NANOSECONDS);
+            return;
+        }
+        try {
+            call.call(request, new AsyncHandler<Q, R>() {
+                @Override
+                public void onError(final Exception exception) {
+                    if (attempt < maxRetries && isRetryable(exception)) {
+                        long backoff = ThreadLocalRandom.current().nextLong(
+                                Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt) + 1);
+                        log.debug("Retrying {} in {} ms after {}", request.getClass().getSimpleName(), backoff,
+                                exception.getMessage());
+                        retried.incrementAndGet();
+                        dispatcher.schedule(() -> dispatch(request, call, result, attempt + 1), backoff, TimeUnit.MILLISECONDS);
+                        return;
+                    }
+                    failed.incrementAndGet();
+                    result.completeExceptionally(exception);
+                }
+
+                @Override
+                public void onSuccess(final Q completedRequest, final R response) {
+                    succeeded.incrementAndGet();
+                    result.complete(response);
+                }
+            });
+        } catch (RuntimeException e) {
+            failed.incrementAndGet();
+            result.completeExceptionally(e);
+        }
+    }
+
+    public class Sequence {
+        private long nextSubmitted;
+        private long nextDelivered;
+        private final Map<Long, Runnable> completed = new HashMap<>();
+
+        /* Blocks only while maxInFlight frames are outstanding, never on the request itself */
+        public void detectLabels(final DetectLabelsRequest request, final DetectionCallback callback) throws InterruptedException {
+            submit(() -> AsyncDetectionService.this.detectLabels(request), (result, exception) -> {
+                if (exception != null) {
+                    callback.onFailure(exception);
+                } else {
+                    callback.onDetection(result);
+                }
+            });
+        }
+
+        /* Starts the work for one frame, and hands its outcome to the delivery once every earlier frame was delivered */
+        public <T> void submit(final Supplier<CompletableFuture<T>> work, final BiConsumer<T, Exception> delivery)
+                throws InterruptedException {
+            inFlight.acquire();
+            long sequenceNumber;
+            synchronized (this) {
+                sequenceNumber = nextSubmitted++;
+            }
+            CompletableFuture<T> result;
+            try {
+                result = work.get();
+            } catch (RuntimeException e) {
+                result = new CompletableFuture<>();
+                result.completeExceptionally(e);
+            }
+            result.whenComplete((value, throwable) -> complete(sequenceNumber,
+                    () -> delivery.accept(value, throwable == null ? null : unwrap(throwable))));
+        }
+
+        /* Runs the callbacks that are next in line, holding back those that completed ahead of earlier frames */
+        private synchronized void complete(final long sequenceNumber, final Runnable delivery) {
+            completed.put(sequenceNumber, delivery);
+            Runnable next;
+            while ((next = completed.remove(nextDelivered)) != null) {
+                nextDelivered++;
+                try {
+                    next.run();
+                } catch (RuntimeException e) {
+                    log.warn("Detection callback failed", e);
+                } finally {
+                    inFlight.release();
+                }
+            }
+        }
+    }
+
+    /* Futures that depend on a failed one report the original failure wrapped in a CompletionException */
+    private static Exception unwrap(final Throwable throwable) {
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                ? throwable.getCause() : throwable;
+        return cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+    }
+
+    private static boolean isRetryable(final Exception exception) {
+        if (!(exception instanceof AmazonServiceException)) {
+            return false;
+        }
+        AmazonServiceException serviceException = (AmazonServiceException) exception;
+        return RetryUtils.isThrottlingException(serviceException)
+                || serviceException.getErrorType() == AmazonServiceException.ErrorType.Service;
+    }
+}
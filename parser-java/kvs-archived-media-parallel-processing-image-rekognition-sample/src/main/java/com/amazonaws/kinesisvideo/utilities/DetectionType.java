@@ -0,0 +1,24 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.util.EnumSet;
+import java.util.Locale;
+import java.util.Set;
+
+/* Rekognition image operations a detector chain can run on a frame */
+public enum DetectionType {
+    LABELS,
+    FACES,
+    CELEBRITIES,
+    TEXT;
+
+    /* Parses a comma separated list such as "labels,text", ignoring case */
+    public static Set<DetectionType> parse(final String types) {
+        Set<DetectionType> detectionTypes = EnumSet.noneOf(DetectionType.class);
+        for (String type : types.split(",")) {
+            if (!type.trim().isEmpty()) {
+                detectionTypes.add(valueOf(type.trim().toUpperCase(Locale.ROOT)));
+            }
+        }
+        return detectionTypes;
+    }
+}
@@ -0,0 +1,160 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.amazonaws.services.rekognition.AmazonRekognitionAsync;
+import com.amazonaws.services.rekognition.model.DetectFacesRequest;
+import com.amazonaws.services.rekognition.model.DetectFacesResult;
+import com.amazonaws.services.rekognition.model.DetectLabelsRequest;
+import com.amazonaws.services.rekognition.model.DetectLabelsResult;
+import com.amazonaws.services.rekognition.model.DetectTextRequest;
+import com.amazonaws.services.rekognition.model.DetectTextResult;
+import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.RecognizeCelebritiesRequest;
+import com.amazonaws.services.rekognition.model.RecognizeCelebritiesResult;
+import lombok.extern.slf4j.Slf4j;
+
+/* Runs a configurable set of Rekognition detectors on the same encoded frame.
+ *
+ * Every detector is sent at once through the detection service, sharing its rate limit and retries, so a frame is
+ * decoded and encoded a single time however many detectors look at it. The frame completes when the last detector
+ * does, with the results merged into one record. Latency and errors are tracked per detector. A detection service
+ * with a local frame detector only detects labels, so its chain cannot include any other detector. */
+@Slf4j
+public class DetectorChain {
+
+    public static final int MAX_LABELS = 10;
+    public static final float MIN_CONFIDENCE = 85F;
+
+    private final AsyncDetectionService detectionService;
+    private final Set<DetectionType> detectionTypes;
+    private final Map<DetectionType, DetectorMetrics> metrics = new EnumMap<>(DetectionType.class);
+
+    private static class DetectorMetrics {
+        final AtomicLong calls = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        final AtomicLong totalNanos = new AtomicLong();
+        final AtomicLong maxNanos = new AtomicLong();
+
+        void record(final long nanos, final boolean failed) {
+            calls.incrementAndGet();
+            if (failed) {
+                errors.incrementAndGet();
+            }
+            totalNanos.addAndGet(nanos);
+            maxNanos.accumulateAndGet(nanos, Math::max);
+        }
+    }
+
+    private DetectorChain(final AsyncDetectionService detectionService, final Set<DetectionType> detectionTypes) {
+        this.detectionService = detectionService;
+        this.detectionTypes = detectionTypes.isEmpty()
+                ? EnumSet.of(DetectionType.LABELS) : EnumSet.copyOf(detectionTypes);
+        this.detectionTypes.forEach(type -> metrics.put(type, new DetectorMetrics()));
+    }
+
+    /* A chain without any detector type runs label detection alone */
+    public static DetectorChain create(final AsyncDetectionService detectionService, final Set<DetectionType> detectionTypes) {
+        if (detectionService.isLocal() && !EnumSet.of(DetectionType.LABELS).containsAll(detectionTypes)) {
+            throw new IllegalArgumentException("Frame detector " + detectionService.getDetectorName()
+                    + " only detects labels, not " + detectionTypes);
+        }
+        return new DetectorChain(detectionService, detectionTypes);
+    }
+
+    public Set<DetectionType> getDetectionTypes() {
+        return Collections.unmodifiableSet(detectionTypes);
+    }
+
+    /* Starts every detector of the chain on the frame, the merged record completes once the last one is done */
+    public CompletableFuture<FrameDetections> detect(final ByteBuffer imageBytes) {
+        AmazonRekognitionAsync client = detectionService.getRekognitionClient();
+        Map<DetectionType, Exception> failures = new ConcurrentHashMap<>();
+
+        CompletableFuture<DetectLabelsResult> labels = run(DetectionType.LABELS, failures,
+                () -> detectionService.detectLabels(new DetectLabelsRequest()
+                        .withImage(image(imageBytes))
+                        .withMaxLabels(MAX_LABELS)
+                        .withMinConfidence(MIN_CONFIDENCE)));
+        CompletableFuture<DetectFacesResult> faces = run(DetectionType.FACES, failures,
+                () -> detectionService.send(new DetectFacesRequest().withImage(image(imageBytes)), client::detectFacesAsync));
+        CompletableFuture<RecognizeCelebritiesResult> celebrities = run(DetectionType.CELEBRITIES, failures,
+                () -> detectionService.send(new RecognizeCelebritiesRequest().withImage(image(imageBytes)),
+                        client::recognizeCelebritiesAsync));
+        CompletableFuture<DetectTextResult> text = run(DetectionType.TEXT, failures,
+                () -> detectionService.send(new DetectTextRequest().withImage(image(imageBytes)), client::detectTextAsync));
+
+        return CompletableFuture.allOf(labels, faces, celebrities, text).thenApply(ignored -> {
+            FrameDetections.FrameDetectionsBuilder detections = FrameDetections.builder();
+            if (labels.join() != null) {
+                detections.labels(labels.join().getLabels());
+            }
+            if (faces.join() != null) {
+                detections.faceDetails(faces.join().getFaceDetails());
+            }
+            if (celebrities.join() != null) {
+                detections.celebrities(celebrities.join().getCelebrityFaces());
+            }
+            if (text.join() != null) {
+                detections.textDetections(text.join().getTextDetections());
+            }
+            if (!failures.isEmpty()) {
+                detections.failures(new EnumMap<>(failures));
+            }
+            return detections.build();
+        });
+    }
+
+    public void logStatistics() {
+        metrics.forEach((type, detectorMetrics) -> {
+            long calls = detectorMetrics.calls.get();
+            log.info("Detector {}: {} calls, {} errors, {} ms average latency, {} ms max latency", type, calls,
+                    detectorMetrics.errors.get(),
+                    calls == 0 ? 0 : detectorMetrics.totalNanos.get() / calls / 1_000_000,
+                    detectorMetrics.maxNanos.get() / 1_000_000);
+        });
+    }
+
+    /* Runs one detector when it is part of the chain, recording its latency. A detector that is not part of the chain,
+     * or fails, completes with null and failures are collected for the frame record. */
+    private <R> CompletableFuture<R> run(final DetectionType type, final Map<DetectionType, Exception> failures,
+                                         final Supplier<CompletableFuture<R>> detector) {
+        if (!detectionTypes.contains(type)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        final long startTime = System.nanoTime();
+        CompletableFuture<R> result;
+        try {
+            result = detector.get();
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        return result.handle((response, throwable) -> {
+            metrics.get(type).record(System.nanoTime() - startTime, throwable != null);
+            if (throwable == null) {
+                return response;
+            }
+            Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                    ? throwable.getCause() : throwable;
+            log.debug("{} detection failed: {}", type, cause.getMessage());
+            failures.put(type, cause instanceof Exception ? (Exception) cause : new RuntimeException(cause));
+            return null;
+        });
+    }
+
+    /* Each request gets its own view of the bytes, since the SDK reads the buffer when marshalling */
+    private static Image image(final ByteBuffer imageBytes) {
+        return new Image().withBytes(imageBytes.duplicate());
+    }
+}
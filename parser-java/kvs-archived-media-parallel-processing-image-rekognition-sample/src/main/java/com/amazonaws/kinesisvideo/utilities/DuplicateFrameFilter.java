@@ -0,0 +1,73 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.extern.slf4j.Slf4j;
+
+/* Suppresses sampled frames that look the same as the last frame sent for detection.
+ *
+ * Hashes of frames a static camera takes a few seconds apart differ in a handful of bits at most, so a frame whose
+ * hash is within the threshold of the last submitted one is skipped and its labels are taken from that frame. */
+@Slf4j
+public class DuplicateFrameFilter {
+
+    public static final int DEFAULT_THRESHOLD = 5;
+
+    private final int threshold;
+    private final AtomicLong checked = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    /* Frames whose hashes differ in fewer than threshold bits are duplicates, a threshold of 0 turns the filter off */
+    public DuplicateFrameFilter(final int threshold) {
+        this.threshold = Math.max(0, threshold);
+    }
+
+    /* Each detector compares its frames with the last one it submitted, not with frames of other detectors */
+    public Window newWindow() {
+        return new Window();
+    }
+
+    public long getChecked() {
+        return checked.get();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    /* A skipped frame saves one call for each detector that would have looked at it */
+    public void logStatistics(final int detectorsPerFrame) {
+        long checkedFrames = checked.get();
+        long skippedFrames = skipped.get();
+        log.info("Duplicate frame filter: {} of {} sampled frames skipped ({}%), {} detector calls saved",
+                skippedFrames, checkedFrames,
+                String.format("%.1f", checkedFrames == 0 ? 0.0 : 100.0 * skippedFrames / checkedFrames),
+                skippedFrames * detectorsPerFrame);
+    }
+
+    public class Window {
+        private boolean hasLast;
+        private long lastHash;
+
+        /* True when the frame should go to detection, in which case it becomes the frame later ones are compared to */
+        public boolean shouldSubmit(final BufferedImage image) {
+            checked.incrementAndGet();
+            if (threshold == 0) {
+                return true;
+            }
+            long hash = FrameHash.differenceHash(image);
+            if (hasLast && FrameHash.distance(hash, lastHash) < threshold) {
+                skipped.incrementAndGet();
+                return false;
+            }
+            hasLast = true;
+            lastHash = hash;
+            return true;
+        }
+
+        public void reset() {
+            hasLast = false;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import com.amazonaws.services.rekognition.model.Celebrity;
+import com.amazonaws.services.rekognition.model.FaceDetail;
+import com.amazonaws.services.rekognition.model.Label;
+import com.amazonaws.services.rekognition.model.TextDetection;
+import lombok.Builder;
+import lombok.Value;
+
+/* Results of every detector of a chain for one frame. Detectors that were not run, or failed, leave their list empty
+ * and failed detectors have their error recorded. */
+@Value
+@Builder
+public class FrameDetections {
+    @Builder.Default
+    List<Label> labels = Collections.emptyList();
+    @Builder.Default
+    List<FaceDetail> faceDetails = Collections.emptyList();
+    @Builder.Default
+    List<Celebrity> celebrities = Collections.emptyList();
+    @Builder.Default
+    List<TextDetection> textDetections = Collections.emptyList();
+    @Builder.Default
+    Map<DetectionType, Exception> failures = Collections.emptyMap();
+}
@@ -0,0 +1,13 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/* Turns a decoded frame into the image bytes sent to Rekognition or stored. Implementations are not thread-safe,
+ * every frame processor has its own. */
+public interface FrameEncoder {
+
+    byte[] encode(BufferedImage bufferedImage) throws IOException;
+
+    String getMimeType();
+}
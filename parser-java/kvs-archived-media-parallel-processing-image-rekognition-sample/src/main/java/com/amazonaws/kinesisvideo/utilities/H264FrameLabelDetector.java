@@ -1,171 +1,234 @@
 package com.amazonaws.kinesisvideo.utilities;
 
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
 
 import com.amazonaws.kinesisvideo.parser.mkv.Frame;
 import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
-import com.amazonaws.kinesisvideo.parser.utilities.H264FrameDecoder;
 import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
-import com.amazonaws.services.rekognition.AmazonRekognitionClientBuilder;
-import com.amazonaws.services.rekognition.AmazonRekognition;
 
 import com.amazonaws.services.rekognition.model.*;
 
 import lombok.extern.slf4j.Slf4j;
 
-import javax.imageio.ImageIO;
-
 @Slf4j
-public class H264FrameLabelDetector extends H264FrameDecoder {
+public class H264FrameLabelDetector extends SamplingH264FrameDecoder {
 
-    private final int sampleRate;
-    private int frameNumber = 0;
-    private final AmazonRekognition rekognitionClient = AmazonRekognitionClientBuilder.defaultClient();
     private AtomicLong framesProcessed;
-
-    protected H264FrameLabelDetector(final int sampleRate, AtomicLong framesProcessed) {
-        super();
-        this.sampleRate = sampleRate;
+    private final FrameEncoder frameEncoder;
+    private final DetectorChain detectorChain;
+    private final AsyncDetectionService.Sequence detections;
+    private final DuplicateFrameFilter.Window duplicates;
+    /* Detections of the last frame sent to Rekognition, handed to the duplicates of that frame */
+    private CompletableFuture<FrameDetections> lastDetections;
+    /* Fragment whose frames are being processed, and whether any of them could not be submitted */
+    private String currentFragment;
+    private boolean currentFragmentFailed;
+    private Consumer<String> fragmentListener;
+    /* Whether a detection failed since the last finished fragment, only used from within the ordered callbacks */
+    private boolean detectionFailed;
+
+    protected H264FrameLabelDetector(final SamplingPolicy samplingPolicy, AtomicLong framesProcessed, FrameEncoder frameEncoder,
+                                     AsyncDetectionService detectionService, DetectorChain detectorChain,
+                                     DuplicateFrameFilter duplicateFrameFilter) {
+        super(samplingPolicy);
         this.framesProcessed = framesProcessed;
+        this.frameEncoder = frameEncoder;
+        this.detectorChain = detectorChain;
+        this.detections = detectionService.newSequence();
+        this.duplicates = duplicateFrameFilter.newWindow();
+    }
+
+    public static H264FrameLabelDetector create(SamplingPolicy samplingPolicy, AtomicLong framesProcessed, FrameEncoder frameEncoder,
+                                                AsyncDetectionService detectionService, DetectorChain detectorChain,
+                                                DuplicateFrameFilter duplicateFrameFilter) {
+        return new H264FrameLabelDetector(samplingPolicy, framesProcessed, frameEncoder, detectionService, detectorChain,
+                duplicateFrameFilter);
     }
 
-    public static H264FrameLabelDetector create(int sampleRate, AtomicLong framesProcessed) {
-        return new H264FrameLabelDetector(sampleRate, framesProcessed);
+    /* The listener is called with the number of every fragment once all its frames got their detections, in the
+     * order of the fragments. Fragments with a failed detection are not reported. */
+    public void setFragmentListener(final Consumer<String> fragmentListener) {
+        this.fragmentListener = fragmentListener;
     }
 
     @Override
     public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
                         Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor) throws FrameProcessException {
-
-        boolean isKeyFrame = frame.isKeyFrame();
-        BufferedImage bufferedImage = decodeH264Frame(frame, trackMetadata);
-
-        /* Only send key frames to Rekognition */
-        if (sampleRate == 0) {
-            if (frame.isKeyFrame()) {
-                sendFrameToRekognition(bufferedImage);
-            }
-        } else {
-            /* Only send to Rekognition every N frames */
-            if ((frameNumber % sampleRate) == 0) {
-                sendFrameToRekognition(bufferedImage);
-            }
-            frameNumber++;
+        String fragmentNumber = fragmentMetadata.map(FragmentMetadata::getFragmentNumberString).orElse(null);
+        if (fragmentNumber != null && !fragmentNumber.equals(currentFragment)) {
+            completeFragment();
+            currentFragment = fragmentNumber;
         }
-
+        super.process(frame, trackMetadata, fragmentMetadata, tagProcessor);
     }
 
-    public void sendFrameToRekognition(BufferedImage bufferedImage) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
+    /* Called once the last frame of the current fragment was processed. Callbacks of a sequence run in submission
+     * order, so the fragment is reported after the detections of every frame submitted before. */
+    public void completeFragment() {
+        if (currentFragment == null || fragmentListener == null) {
+            currentFragment = null;
+            return;
+        }
+        final String fragmentNumber = currentFragment;
+        final boolean failedBeforeSubmit = currentFragmentFailed;
+        final Consumer<String> listener = fragmentListener;
+        currentFragment = null;
+        currentFragmentFailed = false;
         try {
-            ImageIO.write(bufferedImage, "png", outputStream);
-            ByteBuffer imageBytes = ByteBuffer.wrap(outputStream.toByteArray());
-            long startTime = System.nanoTime();
-            detectLabels(imageBytes);  // Label Detection
-            //detectFaces(imageBytes);    // Face Detection
-            //recognizeCelebrities(imageBytes); // Celebrity Detection
-            //detectText(imageBytes); // Text Detection
-            long endTime = System.nanoTime();
-            long totalTime = endTime - startTime;
-            double seconds = (double) totalTime / 1_000_000_000.0;
-            log.info("Time to Rekognize frame: " + seconds + " seconds");
-            log.info("----------------------");
-            framesProcessed.getAndIncrement();
-        } catch (IOException e) {
-            log.warn("Error with png conversion", e);
+            detections.submit(() -> CompletableFuture.completedFuture(fragmentNumber), (completed, exception) -> {
+                if (!failedBeforeSubmit && !detectionFailed) {
+                    listener.accept(completed);
+                }
+                detectionFailed = false;
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
-    public void detectLabels(ByteBuffer imageBytes) {
-        DetectLabelsRequest request = new DetectLabelsRequest()
-                .withImage(new Image()
-                        .withBytes(imageBytes))
-                .withMaxLabels(10)
-                .withMinConfidence(85F);
-
+    /* Completes once the detections of every frame submitted so far were delivered */
+    public CompletableFuture<Void> drain() {
+        CompletableFuture<Void> drained = new CompletableFuture<>();
         try {
-            DetectLabelsResult result = rekognitionClient.detectLabels(request);
-            List<Label> labels = result.getLabels();
-
-            log.info("Detected Labels in " + Thread.currentThread().getName() + ":");
-            for (Label label : labels) {
-                log.info(label.getName() + ": " + label.getConfidence().toString());
-            }
+            detections.submit(() -> CompletableFuture.completedFuture(null), (ignored, exception) -> drained.complete(null));
+        } catch (InterruptedException e) {
+            drained.completeExceptionally(e);
+            Thread.currentThread().interrupt();
+        }
+        return drained;
+    }
 
-        } catch (AmazonRekognitionException e) {
-            log.error(e.getMessage());
+    /* Only frames picked by the sampling policy are decoded, and only those that differ from the last
+     * submitted frame are sent to Rekognition */
+    @Override
+    protected void processSampledFrame(BufferedImage bufferedImage, Frame frame, Optional<FragmentMetadata> fragmentMetadata) {
+        if (!duplicates.shouldSubmit(bufferedImage)) {
+            reuseDetections(lastDetections);
+            return;
         }
+        sendFrameToRekognition(bufferedImage);
     }
 
-    public void detectFaces(ByteBuffer imageBytes) {
-        DetectFacesRequest request = new DetectFacesRequest()
-                .withImage(new Image()
-                        .withBytes(imageBytes));
+    @Override
+    public void reset() {
+        super.reset();
+        duplicates.reset();
+        lastDetections = null;
+        /* A fragment left unfinished by a failed task is never reported */
+        currentFragment = null;
+        currentFragmentFailed = false;
+        fragmentListener = null;
+    }
 
+    /* The frame is encoded once and every detector of the chain works on the same bytes */
+    public void sendFrameToRekognition(BufferedImage bufferedImage) {
         try {
-            DetectFacesResult result = rekognitionClient.detectFaces(request);
-            List<FaceDetail> faceDetails = result.getFaceDetails();
-
-            log.info("Face details:");
-            for (FaceDetail faceDetail : faceDetails) {
-                log.info(faceDetail.toString());
-            }
-            log.info("----------------------");
-
-        } catch (AmazonRekognitionException e) {
-            log.error(e.getMessage());
+            ByteBuffer imageBytes = ByteBuffer.wrap(frameEncoder.encode(bufferedImage));
+            detect(imageBytes);
+        } catch (IOException e) {
+            log.warn("Error with {} conversion", frameEncoder.getMimeType(), e);
+            /* The frame was never submitted, so it cannot stand in for the frames after it */
+            duplicates.reset();
+            currentFragmentFailed = true;
         }
-
     }
 
-    public void recognizeCelebrities(ByteBuffer imageBytes) {
-        RecognizeCelebritiesRequest request = new RecognizeCelebritiesRequest()
-                .withImage(new Image()
-                        .withBytes(imageBytes));
-
+    /* Submits the frame without waiting for Rekognition, the results are logged in frame order as they come back.
+     * Detections are logged at debug level, the pipeline metrics keep track of the run at any frame rate. */
+    public void detect(ByteBuffer imageBytes) {
+        final String threadName = Thread.currentThread().getName();
+        final long startTime = System.nanoTime();
+        final CompletableFuture<FrameDetections> detectionsOfFrame = new CompletableFuture<>();
+        lastDetections = detectionsOfFrame;
+        PipelineMetrics.FRAMES_SUBMITTED.increment();
         try {
-            RecognizeCelebritiesResult result = rekognitionClient.recognizeCelebrities(request);
-            List<Celebrity> celebrities = result.getCelebrityFaces();
-
-            log.info("Detected Celebrities:");
-            for (Celebrity celebrity : celebrities) {
-                log.info(celebrity.getName() + ": " + celebrity.getMatchConfidence().toString());
-            }
-            log.info("----------------------");
-
-        } catch (AmazonRekognitionException e) {
-            log.error(e.getMessage());
+            detections.submit(() -> detectorChain.detect(imageBytes), (frameDetections, exception) -> {
+                if (exception != null) {
+                    log.error(exception.getMessage());
+                    detectionFailed = true;
+                    detectionsOfFrame.completeExceptionally(exception);
+                    return;
+                }
+                if (!frameDetections.getFailures().isEmpty()) {
+                    detectionFailed = true;
+                }
+                PipelineMetrics.DETECT.recordSince(startTime);
+                getSamplingPolicy().onLabels(frameDetections.getLabels().stream().map(Label::getName).collect(Collectors.toList()));
+                logDetections(frameDetections, "Detected", threadName);
+                framesProcessed.getAndIncrement();
+                detectionsOfFrame.complete(frameDetections);
+            });
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while submitting frame to Rekognition in thread {}", threadName);
+            currentFragmentFailed = true;
+            detectionsOfFrame.completeExceptionally(e);
+            Thread.currentThread().interrupt();
         }
     }
 
-    public void detectText(ByteBuffer imageBytes) {
-        DetectTextRequest request = new DetectTextRequest()
-                .withImage(new Image()
-                        .withBytes(imageBytes));
-
+    /* The duplicate takes its place in the sequence like a submitted frame, so its detections are delivered after
+     * those of the frame it duplicates and before the end of its own fragment. A duplicate of a frame whose detection
+     * failed has no detections either, so its fragment is not reported as finished even when the frame it duplicates
+     * belongs to an earlier fragment. */
+    private void reuseDetections(CompletableFuture<FrameDetections> detectionsOfSubmittedFrame) {
+        final String threadName = Thread.currentThread().getName();
         try {
-            DetectTextResult result = rekognitionClient.detectText(request);
-            List<TextDetection> textDetections = result.getTextDetections();
+            detections.submit(() -> detectionsOfSubmittedFrame, (frameDetections, exception) -> {
+                if (exception != null) {
+                    detectionFailed = true;
+                    return;
+                }
+                if (!frameDetections.getFailures().isEmpty()) {
+                    detectionFailed = true;
+                }
+                logDetections(frameDetections, "Reused", threadName);
+                framesProcessed.getAndIncrement();
+            });
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while reusing detections in thread {}", threadName);
+            currentFragmentFailed = true;
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            log.info("Detected Text:");
-            for (TextDetection textDetection : textDetections) {
-                log.info(textDetection.toString());
+    private void logDetections(FrameDetections frameDetections, String prefix, String threadName) {
+        frameDetections.getFailures().forEach((type, exception) ->
+                log.error("{} detection failed: {}", type, exception.getMessage()));
+        if (!log.isDebugEnabled()) {
+            return;
+        }
+        if (detectorChain.getDetectionTypes().contains(DetectionType.LABELS)) {
+            log.debug("{} labels in {}:", prefix, threadName);
+            for (Label label : frameDetections.getLabels()) {
+                log.debug("{}: {}", label.getName(), label.getConfidence());
+            }
+        }
+        if (detectorChain.getDetectionTypes().contains(DetectionType.FACES)) {
+            log.debug("{} face details:", prefix);
+            for (FaceDetail faceDetail : frameDetections.getFaceDetails()) {
+                log.debug("{}", faceDetail);
+            }
+        }
+        if (detectorChain.getDetectionTypes().contains(DetectionType.CELEBRITIES)) {
+            log.debug("{} celebrities:", prefix);
+            for (Celebrity celebrity : frameDetections.getCelebrities()) {
+                log.debug("{}: {}", celebrity.getName(), celebrity.getMatchConfidence());
+            }
+        }
+        if (detectorChain.getDetectionTypes().contains(DetectionType.TEXT)) {
+            log.debug("{} text:", prefix);
+            for (TextDetection textDetection : frameDetections.getTextDetections()) {
+                log.debug("{}", textDetection);
             }
-            log.info("----------------------");
-        } catch (AmazonRekognitionException e) {
-            log.error(e.getMessage());
         }
     }
-
-
 }
-
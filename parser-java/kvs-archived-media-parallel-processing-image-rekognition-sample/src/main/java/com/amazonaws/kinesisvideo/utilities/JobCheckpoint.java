@@ -0,0 +1,178 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.kinesisvideo.model.TimestampRange;
+import lombok.extern.slf4j.Slf4j;
+
+/* Durable record of the fragments a job has finished, so that a restarted job only processes the rest.
+ *
+ * A fragment is finished once every sampled frame of it got its detections. Finished fragment numbers are appended to
+ * a log file, one per line, and forced to disk before the call returns. A line cut short by a crash has no line
+ * break and is ignored on start up, so its fragment is simply processed again. A checkpoint stays open, and its
+ * file with it, until it is closed.
+ *
+ * The first line of the file holds the settings the fragments were finished with, such as the sampling and the
+ * detectors. A fragment finished with other settings has other detections, so a checkpoint opened with settings that
+ * differ from those of its file, or whose file has no settings line, starts over. */
+@Slf4j
+public class JobCheckpoint implements Closeable {
+
+    private static final Map<Path, JobCheckpoint> OPEN_CHECKPOINTS = new ConcurrentHashMap<>();
+
+    private static final String SETTINGS_PREFIX = "#";
+
+    private final Path path;
+    private final String header;
+    private final Set<String> completed = new HashSet<>();
+    private FileChannel channel;
+
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong marked = new AtomicLong();
+
+    private JobCheckpoint(final Path path, final String settings) throws IOException {
+        this.path = path;
+        this.header = SETTINGS_PREFIX + settings + "\n";
+        load();
+    }
+
+    /* Returns the checkpoint of the job on the stream, shared by every caller within this JVM. The settings are a
+     * single line of text that only has to be equal for runs whose detections are the same. */
+    public static JobCheckpoint open(final Path directory, final String streamName, final String jobId, final String settings) {
+        if (settings.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Job checkpoint settings must be a single line");
+        }
+        final Path streamDirectory = directory.resolve(streamName);
+        final Path path = streamDirectory.resolve(jobId + ".ckpt").toAbsolutePath();
+        return OPEN_CHECKPOINTS.computeIfAbsent(path, p -> {
+            try {
+                Files.createDirectories(streamDirectory);
+                return new JobCheckpoint(p, settings);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open job checkpoint " + p, e);
+            }
+        });
+    }
+
+    /* Jobs over the same time range of a stream share their checkpoint unless they are given their own id. Those run
+     * with other settings still start over, see open. */
+    public static String jobId(final TimestampRange timestampRange) {
+        return timestampRange.getStartTimestamp().getTime() + "-" + timestampRange.getEndTimestamp().getTime();
+    }
+
+    public synchronized boolean isCompleted(final String fragmentNumber) {
+        return completed.contains(fragmentNumber);
+    }
+
+    /* Counts the fragment as skipped when it was finished before */
+    public synchronized boolean skipIfCompleted(final String fragmentNumber) {
+        if (!completed.contains(fragmentNumber)) {
+            return false;
+        }
+        skipped.incrementAndGet();
+        return true;
+    }
+
+    public synchronized void markCompleted(final String fragmentNumber) {
+        if (!completed.add(fragmentNumber)) {
+            return;
+        }
+        try {
+            ByteBuffer line = ByteBuffer.wrap((fragmentNumber + "\n").getBytes(StandardCharsets.US_ASCII));
+            while (line.hasRemaining()) {
+                channel.write(line);
+            }
+            channel.force(false);
+            marked.incrementAndGet();
+        } catch (IOException e) {
+            /* Still skipped for the rest of this run, only a restart processes it again */
+            log.warn("Unable to checkpoint fragment {} in {}", fragmentNumber, path, e);
+        }
+    }
+
+    /* Forgets every finished fragment, so that the job starts over */
+    public synchronized void clear() {
+        try {
+            completed.clear();
+            writeHeader();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to clear job checkpoint " + path, e);
+        }
+    }
+
+    /* Closes the file, the next open of the same job reads it again */
+    @Override
+    public synchronized void close() {
+        OPEN_CHECKPOINTS.remove(path, this);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Unable to close job checkpoint {}", path, e);
+        }
+    }
+
+    public synchronized int getCompletedCount() {
+        return completed.size();
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getMarked() {
+        return marked.get();
+    }
+
+    public void logStatistics() {
+        log.info("Job checkpoint {}: {} fragments finished in all, {} skipped and {} finished in this run",
+                path.getFileName(), getCompletedCount(), skipped.get(), marked.get());
+    }
+
+    private void load() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        String content = new String(Files.readAllBytes(path), StandardCharsets.US_ASCII);
+        if (!content.startsWith(header)) {
+            if (!content.isEmpty()) {
+                log.info("Job checkpoint {} was written with other settings, the job starts over", path);
+            }
+            writeHeader();
+            return;
+        }
+        int end = content.lastIndexOf('\n') + 1;
+        for (String fragmentNumber : content.substring(header.length(), end).split("\n")) {
+            if (!fragmentNumber.isEmpty()) {
+                completed.add(fragmentNumber);
+            }
+        }
+        /* Drop a torn last line so that the next record starts on a line of its own */
+        channel.truncate(end);
+        channel.position(end);
+        if (!completed.isEmpty()) {
+            log.info("Job checkpoint {} has {} finished fragments", path, completed.size());
+        }
+    }
+
+    /* Leaves only the settings line in the file */
+    private void writeHeader() throws IOException {
+        channel.truncate(0);
+        ByteBuffer line = ByteBuffer.wrap(header.getBytes(StandardCharsets.US_ASCII));
+        while (line.hasRemaining()) {
+            channel.write(line, line.position());
+        }
+        channel.position(header.length());
+        channel.force(true);
+    }
+}
@@ -0,0 +1,168 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import lombok.extern.slf4j.Slf4j;
+
+/* Counters and latency histograms of the frame pipeline, shared by every task of the process.
+ *
+ * Recording is a few atomic additions, cheap enough for every frame, so nothing has to be logged per frame to follow
+ * a run. Every counter and timer is registered as an MXBean under com.amazonaws.kinesisvideo:type=PipelineMetrics,
+ * where JConsole or any JMX client can watch it while the run is going, and the totals are logged at the end of it.
+ * Histograms have one bucket per power of two nanoseconds, so percentiles are upper bounds within a factor of two. */
+@Slf4j
+public final class PipelineMetrics {
+
+    private static final String DOMAIN = "com.amazonaws.kinesisvideo";
+    private static final Map<String, Timer> TIMERS = new LinkedHashMap<>();
+
+    public static final Counter FRAMES_SEEN = counter("framesSeen");
+    public static final Counter FRAMES_DECODED = counter("framesDecoded");
+    public static final Counter FRAMES_SAMPLED = counter("framesSampled");
+    public static final Counter FRAMES_SUBMITTED = counter("framesSubmitted");
+    public static final Counter BYTES_DOWNLOADED = counter("bytesDownloaded");
+
+    public static final Timer DECODE = timer("decode");
+    public static final Timer ENCODE = timer("encode");
+    public static final Timer DETECT = timer("detect");
+    public static final Timer TASK = timer("task");
+
+    public interface CounterMXBean {
+        long getCount();
+    }
+
+    public interface TimerMXBean {
+        long getCount();
+
+        double getMeanMillis();
+
+        double getMaxMillis();
+
+        double get50thPercentileMillis();
+
+        double get99thPercentileMillis();
+    }
+
+    public static final class Counter implements CounterMXBean {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(final long amount) {
+            count.add(amount);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+    }
+
+    public static final class Timer implements TimerMXBean {
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        public void record(final long nanos) {
+            long value = Math.max(0, nanos);
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(value) - (value == 0 ? 0 : 1));
+            count.increment();
+            totalNanos.add(value);
+            maxNanos.accumulateAndGet(value, Math::max);
+        }
+
+        /* Records the time elapsed since startNanos, a value of System.nanoTime() */
+        public void recordSince(final long startNanos) {
+            record(System.nanoTime() - startNanos);
+        }
+
+        @Override
+        public long getCount() {
+            return count.sum();
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long samples = count.sum();
+            return samples == 0 ? 0 : totalNanos.sum() / 1_000_000.0 / samples;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return maxNanos.get() / 1_000_000.0;
+        }
+
+        @Override
+        public double get50thPercentileMillis() {
+            return getPercentileMillis(0.5);
+        }
+
+        @Override
+        public double get99thPercentileMillis() {
+            return getPercentileMillis(0.99);
+        }
+
+        /* Upper bound of the bucket holding the given fraction of the samples */
+        public double getPercentileMillis(final double fraction) {
+            long samples = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                samples += buckets.get(i);
+            }
+            long rank = (long) Math.ceil(fraction * samples);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    long upperBound = i >= Long.SIZE - 2 ? Long.MAX_VALUE : (2L << i) - 1;
+                    return Math.min(upperBound, maxNanos.get()) / 1_000_000.0;
+                }
+            }
+            return 0;
+        }
+    }
+
+    private PipelineMetrics() {
+    }
+
+    public static void logStatistics() {
+        log.info("Frames: {} seen, {} decoded, {} sampled, {} submitted for detection, {} bytes downloaded",
+                FRAMES_SEEN.getCount(), FRAMES_DECODED.getCount(), FRAMES_SAMPLED.getCount(),
+                FRAMES_SUBMITTED.getCount(), BYTES_DOWNLOADED.getCount());
+        TIMERS.forEach((name, timer) ->
+                log.info("Time per {}: {} samples, {} ms mean, {} ms p50, {} ms p99, {} ms max", name, timer.getCount(),
+                        String.format("%.2f", timer.getMeanMillis()), String.format("%.2f", timer.get50thPercentileMillis()),
+                        String.format("%.2f", timer.get99thPercentileMillis()), String.format("%.2f", timer.getMaxMillis())));
+    }
+
+    private static Counter counter(final String name) {
+        return register(name, new Counter());
+    }
+
+    private static Timer timer(final String name) {
+        Timer timer = register(name, new Timer());
+        TIMERS.put(name, timer);
+        return timer;
+    }
+
+    /* Metrics still work when they cannot be exported, for instance when another copy of this class registered first */
+    private static <T> T register(final String name, final T metric) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metric,
+                    new ObjectName(DOMAIN + ":type=PipelineMetrics,name=" + name));
+        } catch (JMException e) {
+            log.warn("Unable to export pipeline metric {} over JMX: {}", name, e.getMessage());
+        }
+        return metric;
+    }
+}
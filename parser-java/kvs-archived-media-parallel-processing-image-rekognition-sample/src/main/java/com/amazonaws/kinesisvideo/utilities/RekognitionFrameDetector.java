@@ -0,0 +1,34 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.model.DetectLabelsRequest;
+import com.amazonaws.services.rekognition.model.Image;
+import com.amazonaws.services.rekognition.model.Label;
+
+/* Detects labels with a synchronous Rekognition DetectLabels call */
+public class RekognitionFrameDetector implements FrameDetector {
+
+    private final AmazonRekognition rekognitionClient;
+
+    public RekognitionFrameDetector(final AmazonRekognition rekognitionClient) {
+        this.rekognitionClient = rekognitionClient;
+    }
+
+    @Override
+    public String getName() {
+        return REKOGNITION;
+    }
+
+    @Override
+    public List<Label> detectLabels(final ByteBuffer imageBytes, final int maxLabels, final float minConfidence) {
+        DetectLabelsRequest request = new DetectLabelsRequest()
+                .withImage(new Image()
+                        .withBytes(imageBytes.duplicate()))
+                .withMaxLabels(maxLabels)
+                .withMinConfidence(minConfidence);
+        return rekognitionClient.detectLabels(request).getLabels();
+    }
+}
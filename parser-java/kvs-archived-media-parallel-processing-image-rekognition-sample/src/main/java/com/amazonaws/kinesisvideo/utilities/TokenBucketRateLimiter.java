@@ -0,0 +1,37 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.util.concurrent.TimeUnit;
+
+/* Token bucket that refills at a steady rate up to a burst capacity.
+ *
+ * Callers never wait inside the limiter: tryAcquire either takes a token or tells how long until the next one is
+ * available, so they can reschedule themselves instead of holding a thread. */
+public class TokenBucketRateLimiter {
+
+    private final double permitsPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucketRateLimiter(final double permitsPerSecond, final double capacity) {
+        if (permitsPerSecond <= 0 || capacity < 1) {
+            throw new IllegalArgumentException("Rate must be positive and capacity at least 1");
+        }
+        this.permitsPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.capacity = capacity;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /* Takes a token and returns 0, or returns the nanoseconds until a token will be available without taking one */
+    public synchronized long tryAcquire() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * permitsPerNano);
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) / permitsPerNano);
+    }
+}
@@ -0,0 +1,349 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.services.kinesisvideo.model.TimestampRange;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/* Work list of one job shared through a directory, typically on a network file system, that several JVMs lease
+ * time ranges from.
+ *
+ * The coordinator publishes the time ranges of the job as work items. A worker leases an item by creating its lease
+ * file, which only one worker can do, and keeps the lease alive by touching the file. A lease that has not been
+ * touched for the lease timeout belongs to a lost worker, and is taken over by moving it aside, which again only one
+ * worker can do. Finished items get a result file, and items whose task failed too often are given up. Lease expiry
+ * compares file modification times with the local clock, so the clocks of the machines must roughly agree.
+ *
+ * Layout: job (stream name), work/NNNNNN (start and end of the range in milliseconds), leases/NNNNNN (worker id),
+ * done/NNNNNN (result), failed/NNNNNN.worker.time (one per failed attempt). */
+@Slf4j
+public class WorkLeases {
+
+    public static final long DEFAULT_LEASE_TIMEOUT_MILLIS = 60_000;
+    public static final int MAX_ATTEMPTS = 3;
+
+    private final Path directory;
+    private final String workerId;
+    private final long leaseTimeoutMillis;
+    private final Set<Lease> heldLeases = ConcurrentHashMap.newKeySet();
+    private ScheduledExecutorService heartbeat;
+
+    /* Outcome of a finished work item, the number of fragments of its range and how many of them were finished */
+    @Value
+    public static class Result {
+        String workerId;
+        long fragments;
+        long finishedFragments;
+        long elapsedMillis;
+
+        String format() {
+            return workerId + " " + fragments + " " + finishedFragments + " " + elapsedMillis;
+        }
+
+        static Result parse(final String line) {
+            String[] fields = line.trim().split(" ");
+            return new Result(fields[0], Long.parseLong(fields[1]), Long.parseLong(fields[2]), Long.parseLong(fields[3]));
+        }
+    }
+
+    private WorkLeases(final Path directory, final String workerId, final long leaseTimeoutMillis) {
+        this.directory = directory;
+        this.workerId = workerId;
+        this.leaseTimeoutMillis = leaseTimeoutMillis > 0 ? leaseTimeoutMillis : DEFAULT_LEASE_TIMEOUT_MILLIS;
+    }
+
+    public static WorkLeases open(final Path directory, final String workerId, final long leaseTimeoutMillis) {
+        try {
+            for (String subdirectory : new String[]{"work", "leases", "done", "failed"}) {
+                Files.createDirectories(directory.resolve(subdirectory));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to open work lease directory " + directory, e);
+        }
+        return new WorkLeases(directory, workerId, leaseTimeoutMillis);
+    }
+
+    /* Publishes the ranges of the job. When the job was published before, its progress is kept, and only the items
+     * that were given up or left fragments unfinished are made available again. */
+    public synchronized void publish(final String streamName, final List<TimestampRange> timestampRanges) throws IOException {
+        Path job = directory.resolve("job");
+        if (Files.exists(job)) {
+            String publishedStream = read(job);
+            if (!publishedStream.equals(streamName)) {
+                throw new IllegalStateException("Lease directory " + directory + " holds a job on stream " + publishedStream);
+            }
+            int retried = 0;
+            for (String item : items()) {
+                Optional<Result> result = getResult(item);
+                if (result.isPresent() && result.get().getFinishedFragments() < result.get().getFragments()
+                        || !result.isPresent() && isGivenUp(item)) {
+                    Files.deleteIfExists(directory.resolve("done").resolve(item));
+                    for (Path failure : failures(item)) {
+                        Files.deleteIfExists(failure);
+                    }
+                    retried++;
+                }
+            }
+            log.info("Resuming job on stream {} with {} work items, {} of them retried", streamName, items().size(), retried);
+            return;
+        }
+        for (int i = 0; i < timestampRanges.size(); i++) {
+            TimestampRange range = timestampRanges.get(i);
+            write(directory.resolve("work").resolve(item(i)),
+                    range.getStartTimestamp().getTime() + " " + range.getEndTimestamp().getTime());
+        }
+        write(job, streamName);
+        log.info("Published job on stream {} with {} work items", streamName, timestampRanges.size());
+    }
+
+    /* Stream of the published job, once there is one */
+    public Optional<String> getStreamName() throws IOException {
+        Path job = directory.resolve("job");
+        return Files.exists(job) ? Optional.of(read(job)) : Optional.empty();
+    }
+
+    /* Leases the next work item that is neither finished, given up nor leased by a live worker */
+    public Optional<Lease> acquire() throws IOException {
+        for (String item : items()) {
+            if (Files.exists(directory.resolve("done").resolve(item)) || isGivenUp(item)) {
+                continue;
+            }
+            Path leaseFile = directory.resolve("leases").resolve(item);
+            if (tryCreateLease(leaseFile) || tryTakeOver(leaseFile)) {
+                /* The item may have been finished between the check above and creating the lease */
+                if (Files.exists(directory.resolve("done").resolve(item))) {
+                    Files.deleteIfExists(leaseFile);
+                    continue;
+                }
+                Lease lease = new Lease(item, parseRange(read(directory.resolve("work").resolve(item))), leaseFile,
+                        System.currentTimeMillis());
+                heldLeases.add(lease);
+                startHeartbeat();
+                log.info("Worker {} leased work item {} ({})", workerId, item, lease.getTimestampRange());
+                return Optional.of(lease);
+            }
+        }
+        return Optional.empty();
+    }
+
+    /* Every item is either finished or given up */
+    public boolean isFinished() throws IOException {
+        for (String item : items()) {
+            if (!Files.exists(directory.resolve("done").resolve(item)) && !isGivenUp(item)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public Optional<Result> getResult(final String item) throws IOException {
+        Path done = directory.resolve("done").resolve(item);
+        try {
+            return Optional.of(Result.parse(read(done)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    /* Results of the finished items, by item */
+    public TreeMap<String, Result> getResults() throws IOException {
+        TreeMap<String, Result> results = new TreeMap<>();
+        for (String item : items()) {
+            getResult(item).ifPresent(result -> results.put(item, result));
+        }
+        return results;
+    }
+
+    public List<String> getGivenUp() throws IOException {
+        List<String> givenUp = new ArrayList<>();
+        for (String item : items()) {
+            if (!Files.exists(directory.resolve("done").resolve(item)) && isGivenUp(item)) {
+                givenUp.add(item);
+            }
+        }
+        return givenUp;
+    }
+
+    public int getItemCount() throws IOException {
+        return items().size();
+    }
+
+    public void shutdown() {
+        if (heartbeat != null) {
+            heartbeat.shutdown();
+        }
+    }
+
+    public class Lease {
+        private final String item;
+        private final TimestampRange timestampRange;
+        private final Path leaseFile;
+        private final long startTime;
+        private volatile boolean lost;
+
+        private Lease(final String item, final TimestampRange timestampRange, final Path leaseFile, final long startTime) {
+            this.item = item;
+            this.timestampRange = timestampRange;
+            this.leaseFile = leaseFile;
+            this.startTime = startTime;
+        }
+
+        public String getItem() {
+            return item;
+        }
+
+        public TimestampRange getTimestampRange() {
+            return timestampRange;
+        }
+
+        /* The lease expired and another worker took the item over, so this worker must not report it */
+        public boolean isLost() {
+            return lost;
+        }
+
+        /* Records the result and gives the lease up, unless the lease was lost in the meantime */
+        public void complete(final long fragments, final long finishedFragments) throws IOException {
+            heldLeases.remove(this);
+            if (renew()) {
+                write(directory.resolve("done").resolve(item), new Result(workerId, fragments, finishedFragments,
+                        System.currentTimeMillis() - startTime).format());
+                Files.deleteIfExists(leaseFile);
+            } else {
+                log.warn("Worker {} lost the lease of work item {} before finishing it", workerId, item);
+            }
+        }
+
+        /* Counts a failed attempt and makes the item available again */
+        public void fail() throws IOException {
+            heldLeases.remove(this);
+            if (renew()) {
+                Files.createFile(directory.resolve("failed").resolve(item + "." + workerId + "." + System.nanoTime()));
+                Files.deleteIfExists(leaseFile);
+            }
+        }
+
+        /* Touches the lease file as long as it still belongs to this worker */
+        boolean renew() {
+            if (lost) {
+                return false;
+            }
+            try {
+                if (!read(leaseFile).equals(workerId)) {
+                    lost = true;
+                    return false;
+                }
+                Files.setLastModifiedTime(leaseFile, FileTime.fromMillis(System.currentTimeMillis()));
+                return true;
+            } catch (IOException e) {
+                log.warn("Unable to renew lease of work item {}: {}", item, e.getMessage());
+                lost = e instanceof NoSuchFileException;
+                return false;
+            }
+        }
+    }
+
+    private synchronized void startHeartbeat() {
+        if (heartbeat != null) {
+            return;
+        }
+        heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "lease-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, leaseTimeoutMillis / 3);
+        heartbeat.scheduleAtFixedRate(() -> heldLeases.forEach(Lease::renew), period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean tryCreateLease(final Path leaseFile) throws IOException {
+        try {
+            Files.write(leaseFile, workerId.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.WRITE);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    /* Only the worker whose move succeeds takes an expired lease over */
+    private boolean tryTakeOver(final Path leaseFile) throws IOException {
+        try {
+            long age = System.currentTimeMillis() - Files.getLastModifiedTime(leaseFile).toMillis();
+            if (age < leaseTimeoutMillis) {
+                return false;
+            }
+            Path expired = leaseFile.resolveSibling(leaseFile.getFileName() + ".expired." + workerId);
+            Files.move(leaseFile, expired, StandardCopyOption.ATOMIC_MOVE);
+            log.warn("Lease of work item {} expired {} ms ago, taking it over", leaseFile.getFileName(), age);
+            Files.delete(expired);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        return tryCreateLease(leaseFile);
+    }
+
+    private boolean isGivenUp(final String item) throws IOException {
+        return failures(item).size() >= MAX_ATTEMPTS;
+    }
+
+    private List<Path> failures(final String item) throws IOException {
+        List<Path> failures = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.resolve("failed"), item + ".*")) {
+            stream.forEach(failures::add);
+        }
+        return failures;
+    }
+
+    private List<String> items() throws IOException {
+        List<String> items = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.resolve("work"))) {
+            stream.forEach(path -> items.add(path.getFileName().toString()));
+        }
+        items.removeIf(item -> item.startsWith("."));
+        items.sort(null);
+        return items;
+    }
+
+    private static String item(final int index) {
+        return String.format("%06d", index);
+    }
+
+    private static TimestampRange parseRange(final String line) {
+        String[] fields = line.trim().split(" ");
+        return new TimestampRange()
+                .withStartTimestamp(new Date(Long.parseLong(fields[0])))
+                .withEndTimestamp(new Date(Long.parseLong(fields[1])));
+    }
+
+    private static String read(final Path path) throws IOException {
+        return new String(Files.readAllBytes(path), StandardCharsets.UTF_8).trim();
+    }
+
+    /* Written aside and moved in place, so that readers never see a partial file */
+    private static void write(final Path path, final String content) throws IOException {
+        Path temporary = path.resolveSibling("." + path.getFileName() + "." + System.nanoTime());
+        Files.write(temporary, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+}
@@ -1,21 +1,31 @@
 package com.amazonaws.kinesisvideo.workers;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.client.builder.AwsClientBuilder;
 
 import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
 import com.amazonaws.kinesisvideo.parser.examples.KinesisVideoCommon;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
-import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitor;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
+import com.amazonaws.kinesisvideo.utilities.AwsClientRegistry;
+import com.amazonaws.kinesisvideo.utilities.FragmentIndex;
+import com.amazonaws.kinesisvideo.utilities.FragmentMediaCache;
+import com.amazonaws.kinesisvideo.utilities.FrameProcessorPool;
+import com.amazonaws.kinesisvideo.utilities.H264FrameLabelDetector;
+import com.amazonaws.kinesisvideo.utilities.JobCheckpoint;
+import com.amazonaws.kinesisvideo.utilities.PipelineMetrics;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMediaClient;
 import com.amazonaws.services.kinesisvideo.model.*;
 
 import lombok.extern.slf4j.Slf4j;
@@ -27,8 +37,13 @@ public class GetMediaArchivedRekognitionWorker extends KinesisVideoCommon implem
     private FragmentSelector fragmentSelector;
     private final AmazonKinesisVideoArchivedMedia amazonKinesisVideoArchivedMediaListFragments;
     private final AmazonKinesisVideoArchivedMedia amazonKinesisVideoArchivedMediaGetMediaForFragmentList;
-    private MkvElementVisitor elementVisitor;
-    private final long fragmentsPerRequest = 100;
+    private final FrameProcessorPool<H264FrameLabelDetector> frameProcessorPool;
+    private final FragmentIndex fragmentIndex;
+    private final FragmentMediaCache fragmentMediaCache;
+    private final JobCheckpoint jobCheckpoint;
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+    private int fragmentCount;
+    private static final long FRAGMENTS_PER_REQUEST = 1000;
     private final int MAX_CONTENT_BYTES = 32768;
 
     public GetMediaArchivedRekognitionWorker(final String streamName,
@@ -37,22 +52,23 @@ public class GetMediaArchivedRekognitionWorker extends KinesisVideoCommon implem
                                              final String getMediaForFragmentListEndPoint,
                                              final Regions region,
                                              final FragmentSelector fragmentSelector,
-                                             final MkvElementVisitor elementVisitor) {
+                                             final FrameProcessorPool<H264FrameLabelDetector> frameProcessorPool,
+                                             final FragmentIndex fragmentIndex,
+                                             final FragmentMediaCache fragmentMediaCache,
+                                             final JobCheckpoint jobCheckpoint) {
         super(region, awsCredentialsProvider, streamName);
         this.fragmentSelector = fragmentSelector;
-        this.elementVisitor = elementVisitor;
+        this.frameProcessorPool = frameProcessorPool;
+        this.fragmentIndex = fragmentIndex;
+        this.fragmentMediaCache = fragmentMediaCache;
+        this.jobCheckpoint = jobCheckpoint;
 
-        amazonKinesisVideoArchivedMediaListFragments = AmazonKinesisVideoArchivedMediaClient
-                .builder()
-                .withCredentials(awsCredentialsProvider)
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(listFragmentsEndPoint, region.getName()))
-                .build();
+        /* Clients are shared by all tasks rather than built per task */
+        amazonKinesisVideoArchivedMediaListFragments = AwsClientRegistry.getArchivedMediaClient(
+                awsCredentialsProvider, listFragmentsEndPoint, region);
 
-        amazonKinesisVideoArchivedMediaGetMediaForFragmentList = AmazonKinesisVideoArchivedMediaClient
-                .builder()
-                .withCredentials(awsCredentialsProvider)
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(getMediaForFragmentListEndPoint, region.getName()))
-                .build();
+        amazonKinesisVideoArchivedMediaGetMediaForFragmentList = AwsClientRegistry.getArchivedMediaClient(
+                awsCredentialsProvider, getMediaForFragmentListEndPoint, region);
 
     }
 
@@ -61,81 +77,145 @@ public class GetMediaArchivedRekognitionWorker extends KinesisVideoCommon implem
                                                            final Regions region,
                                                            final AmazonKinesisVideo amazonKinesisVideo,
                                                            final FragmentSelector fragmentSelector,
-                                                           final MkvElementVisitor elementVisitor,
+                                                           final FrameProcessorPool<H264FrameLabelDetector> frameProcessorPool,
                                                            final String listFragmentsEndpoint,
-                                                           final String getMediaForFragmentListEndpoint) {
+                                                           final String getMediaForFragmentListEndpoint,
+                                                           final FragmentIndex fragmentIndex,
+                                                           final FragmentMediaCache fragmentMediaCache,
+                                                           final JobCheckpoint jobCheckpoint) {
 
         return new GetMediaArchivedRekognitionWorker(
-                streamName, awsCredentialsProvider, listFragmentsEndpoint, getMediaForFragmentListEndpoint, region, fragmentSelector, elementVisitor);
+                streamName, awsCredentialsProvider, listFragmentsEndpoint, getMediaForFragmentListEndpoint, region, fragmentSelector, frameProcessorPool, fragmentIndex, fragmentMediaCache,
+                jobCheckpoint);
     }
 
-    @Override
-    public void run() {
-        try {
-            log.info("Start ListFragment worker on stream {} in thread {}", streamName, Thread.currentThread().getName());
-
-            /* ---------------------------- LIST FRAGMENTS SECTION ---------------------------- */
-            ListFragmentsRequest listFragmentsRequest = new ListFragmentsRequest()
-                    .withStreamName(streamName).withFragmentSelector(fragmentSelector).withMaxResults(fragmentsPerRequest);
+    /* Lists every fragment of the stream within the server timestamp range, following next tokens until done */
+    public static List<Fragment> listFragments(final AmazonKinesisVideoArchivedMedia amazonKinesisVideoArchivedMedia,
+                                               final String streamName,
+                                               final TimestampRange timestampRange) {
+        ListFragmentsRequest listFragmentsRequest = new ListFragmentsRequest()
+                .withStreamName(streamName)
+                .withFragmentSelector(new FragmentSelector()
+                        .withFragmentSelectorType(FragmentSelectorType.SERVER_TIMESTAMP)
+                        .withTimestampRange(timestampRange))
+                .withMaxResults(FRAGMENTS_PER_REQUEST);
+
+        ListFragmentsResult listFragmentsResult = amazonKinesisVideoArchivedMedia.listFragments(listFragmentsRequest);
+
+        log.info("List Fragments called on stream {} response {} request ID {} in thread {}",
+                streamName,
+                listFragmentsResult.getSdkHttpMetadata().getHttpStatusCode(),
+                listFragmentsResult.getSdkResponseMetadata().getRequestId(),
+                Thread.currentThread().getName());
+
+        List<Fragment> fragments = new ArrayList<>(listFragmentsResult.getFragments());
+        String nextToken = listFragmentsResult.getNextToken();
+
+        /* If result is truncated, keep making requests until nextToken is empty */
+        while (nextToken != null) {
+            listFragmentsRequest = new ListFragmentsRequest()
+                    .withStreamName(streamName).withNextToken(nextToken);
+            listFragmentsResult = amazonKinesisVideoArchivedMedia.listFragments(listFragmentsRequest);
+
+            fragments.addAll(listFragmentsResult.getFragments());
+            nextToken = listFragmentsResult.getNextToken();
+        }
+        return fragments;
+    }
 
-            log.info(listFragmentsRequest.toString());
+    /* Completes once the task ran and the detections of all its frames were delivered */
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
 
-            ListFragmentsResult listFragmentsResult = amazonKinesisVideoArchivedMediaListFragments.listFragments(listFragmentsRequest);
+    /* Fragments in the range of the task, including those finished before */
+    public int getFragmentCount() {
+        return fragmentCount;
+    }
 
+    private InputStream getMediaForFragmentList(final List<String> fragmentNumbers) {
+        GetMediaForFragmentListRequest getMediaFragmentListRequest = new GetMediaForFragmentListRequest()
+                .withFragments(fragmentNumbers)
+                .withStreamName(streamName);
 
-            log.info("List Fragments called on stream {} response {} request ID {} in thread {}",
-                    streamName,
-                    listFragmentsResult.getSdkHttpMetadata().getHttpStatusCode(),
-                    listFragmentsResult.getSdkResponseMetadata().getRequestId(),
-                    Thread.currentThread().getName());
+        return amazonKinesisVideoArchivedMediaGetMediaForFragmentList.getMediaForFragmentList(getMediaFragmentListRequest).getPayload();
+    }
 
+    @Override
+    public void run() {
+        final long startTime = System.nanoTime();
+        try {
+            log.info("Start ListFragment worker on stream {} in thread {}", streamName, Thread.currentThread().getName());
 
+            /* ---------------------------- LIST FRAGMENTS SECTION ---------------------------- */
             List<String> fragmentNumbers = new ArrayList<>();
-            for (Fragment f : listFragmentsResult.getFragments()) {
-                fragmentNumbers.add(f.getFragmentNumber());
-            }
-
-            String nextToken = listFragmentsResult.getNextToken();
-
-            /* If result is truncated, keep making requests until nextToken is empty */
-            while (nextToken != null) {
-                listFragmentsRequest = new ListFragmentsRequest()
-                        .withStreamName(streamName).withNextToken(nextToken);
-                listFragmentsResult = amazonKinesisVideoArchivedMediaListFragments.listFragments(listFragmentsRequest);
-
-                for (Fragment f : listFragmentsResult.getFragments()) {
+            fragmentCount = 0;
+            for (Fragment f : fragmentIndex.getFragments(fragmentSelector.getTimestampRange(),
+                    timestampRange -> listFragments(amazonKinesisVideoArchivedMediaListFragments, streamName, timestampRange))) {
+                fragmentCount++;
+                /* Fragments finished by an earlier run of the job are not processed again */
+                if (!jobCheckpoint.skipIfCompleted(f.getFragmentNumber())) {
                     fragmentNumbers.add(f.getFragmentNumber());
                 }
-                nextToken = listFragmentsResult.getNextToken();
             }
 
             Collections.sort(fragmentNumbers);
 
             /* ------------------------- GET MEDIA SECTION ------------------------- */
 
-            if (fragmentNumbers.size() > 0) {
-
-                log.info("Retrieving media for {} fragment numbers on timestamp range {} in thread {}", fragmentNumbers.size(), fragmentSelector.getTimestampRange().toString(), Thread.currentThread().getName());
-                GetMediaForFragmentListRequest getMediaFragmentListRequest = new GetMediaForFragmentListRequest()
-                        .withFragments(fragmentNumbers)
-                        .withStreamName(streamName);
-
-                GetMediaForFragmentListResult getMediaForFragmentListResult = amazonKinesisVideoArchivedMediaGetMediaForFragmentList.getMediaForFragmentList(getMediaFragmentListRequest);
-
-                StreamingMkvReader mkvStreamReader = StreamingMkvReader.createWithMaxContentSize(
-                        new InputStreamParserByteSource(getMediaForFragmentListResult.getPayload()), MAX_CONTENT_BYTES);
+            /* Nothing is submitted when there is nothing to process */
+            if (fragmentNumbers.isEmpty()) {
+                completion.complete(null);
+                return;
+            }
 
+            log.info("Retrieving media for {} fragment numbers on timestamp range {} in thread {}", fragmentNumbers.size(), fragmentSelector.getTimestampRange().toString(), Thread.currentThread().getName());
+            /* Fragments already in the local media cache are not downloaded again */
+            /* Borrow a warmed up detector rather than setting up a decoder and Rekognition client per task */
+            H264FrameLabelDetector frameLabelDetector = frameProcessorPool.borrow();
+            frameLabelDetector.setFragmentListener(jobCheckpoint::markCompleted);
+            /* The task is done, and the detector free for the next task, only once the detections of every frame it
+             * submitted were delivered, so that no later task gets them or takes over its fragment listener. Frames
+             * submitted before the media failed to parse still get their detections. */
+            boolean draining = false;
+            try (InputStream payload = fragmentMediaCache.getMedia(streamName, fragmentNumbers, this::getMediaForFragmentList)) {
                 try {
-                    mkvStreamReader.apply(this.elementVisitor);
+                    StreamingMkvReader mkvStreamReader = StreamingMkvReader.createWithMaxContentSize(
+                            new InputStreamParserByteSource(payload), MAX_CONTENT_BYTES);
+
+                    mkvStreamReader.apply(FrameVisitor.create(frameLabelDetector, Optional.empty(), Optional.of(1L)));
+                    frameLabelDetector.completeFragment();
                 } catch (final MkvElementVisitException e) {
                     log.warn("Exception while accepting visitor {} in thread {}", e, Thread.currentThread().getName());
                 }
+                frameLabelDetector.drain().whenComplete((ignored, exception) -> {
+                    frameProcessorPool.giveBack(frameLabelDetector);
+                    if (exception != null) {
+                        completion.completeExceptionally(exception);
+                    } else {
+                        completion.complete(null);
+                    }
+                });
+                draining = true;
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                if (!draining) {
+                    /* Still only given back once what was submitted before the failure was delivered */
+                    frameLabelDetector.drain().whenComplete((ignored, exception) -> frameProcessorPool.giveBack(frameLabelDetector));
+                }
             }
 
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for a frame processor in thread {}", Thread.currentThread().getName());
+            completion.completeExceptionally(e);
+            Thread.currentThread().interrupt();
         } catch (Throwable t) {
             log.error("Failure in GetMediaArchivedRekognitionWorker for streamName {} {} with timestamp range {} in thread {}", streamName, t.toString(), fragmentSelector.getTimestampRange().toString(), Thread.currentThread().getName());
+            completion.completeExceptionally(t);
             throw t;
         } finally {
+            PipelineMetrics.TASK.recordSince(startTime);
             log.info("Exiting GetMediaArchivedRekognitionWorker for stream {}", streamName);
         }
     }
@@ -0,0 +1,76 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.kinesisvideo.utilities.AdaptiveSamplingPolicy;
+import com.amazonaws.kinesisvideo.utilities.FixedSamplingPolicy;
+import com.amazonaws.kinesisvideo.utilities.SamplingPolicy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+import java.util.Collections;
+
+public class AdaptiveSamplingPolicyTests {
+
+    private static BufferedImage scene(final int boxX) {
+        BufferedImage image = new BufferedImage(320, 180, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setColor(Color.DARK_GRAY);
+        graphics.fillRect(0, 0, 320, 180);
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(boxX, 40, 80, 80);
+        graphics.dispose();
+        return image;
+    }
+
+    /* Number of frames until the policy samples again, counting the sampled frame */
+    private static int framesToNextSample(final SamplingPolicy policy) {
+        int frames = 1;
+        while (!policy.shouldSample(null)) {
+            frames++;
+        }
+        return frames;
+    }
+
+    @Test
+    public void testIntervalBacksOffWhileStaticAndResetsOnChange() {
+        AdaptiveSamplingPolicy policy = AdaptiveSamplingPolicy.builder().minInterval(2).maxInterval(16).build();
+
+        Assert.assertTrue(policy.shouldSample(null));
+        policy.onSampledImage(scene(20));
+        for (int expected : new int[]{2, 4, 8, 16, 16}) {
+            Assert.assertEquals(expected, framesToNextSample(policy));
+            policy.onSampledImage(scene(20));
+        }
+        Assert.assertEquals(16, policy.getInterval());
+
+        Assert.assertEquals(16, framesToNextSample(policy));
+        policy.onSampledImage(scene(220));
+        Assert.assertEquals(2, policy.getInterval());
+        Assert.assertEquals(2, framesToNextSample(policy));
+    }
+
+    @Test
+    public void testLabelChurnResetsInterval() {
+        AdaptiveSamplingPolicy policy = AdaptiveSamplingPolicy.builder().minInterval(1).maxInterval(8).build();
+        policy.onLabels(Collections.singletonList("Car"));
+        policy.onSampledImage(scene(20));
+        policy.onSampledImage(scene(20));
+        policy.onSampledImage(scene(20));
+        Assert.assertEquals(4, policy.getInterval());
+
+        policy.onLabels(Collections.singletonList("Car"));
+        Assert.assertEquals(4, policy.getInterval());
+        policy.onLabels(Arrays.asList("Car", "Person"));
+        Assert.assertEquals(1, policy.getInterval());
+    }
+
+    @Test
+    public void testCreateKeepsFixedRateWithoutMax() {
+        Assert.assertTrue(SamplingPolicy.create(3, 0) instanceof FixedSamplingPolicy);
+        Assert.assertTrue(SamplingPolicy.create(0, 0).samplesKeyFramesOnly());
+        Assert.assertTrue(SamplingPolicy.create(2, 10) instanceof AdaptiveSamplingPolicy);
+    }
+}
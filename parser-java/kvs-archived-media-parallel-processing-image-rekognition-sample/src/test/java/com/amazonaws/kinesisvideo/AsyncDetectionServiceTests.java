@@ -0,0 +1,85 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.kinesisvideo.utilities.AsyncDetectionService;
+import com.amazonaws.services.rekognition.AbstractAmazonRekognitionAsync;
+import com.amazonaws.services.rekognition.model.DetectLabelsRequest;
+import com.amazonaws.services.rekognition.model.DetectLabelsResult;
+import com.amazonaws.services.rekognition.model.Label;
+import com.amazonaws.services.rekognition.model.ThrottlingException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class AsyncDetectionServiceTests {
+
+    /* Answers with the max labels of the request as label name, after a random delay, throttling every third request once */
+    private static class FakeRekognition extends AbstractAmazonRekognitionAsync {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Future<DetectLabelsResult> detectLabelsAsync(DetectLabelsRequest request,
+                                                            AsyncHandler<DetectLabelsRequest, DetectLabelsResult> handler) {
+            int call = calls.getAndIncrement();
+            new Thread(() -> {
+                try {
+                    Thread.sleep(ThreadLocalRandom.current().nextInt(20));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (call % 3 == 0) {
+                    ThrottlingException throttlingException = new ThrottlingException("Slow down");
+                    throttlingException.setErrorCode("ThrottlingException");
+                    throttlingException.setStatusCode(400);
+                    handler.onError(throttlingException);
+                } else {
+                    handler.onSuccess(request, new DetectLabelsResult()
+                            .withLabels(new Label().withName(String.valueOf(request.getMaxLabels()))));
+                }
+            }).start();
+            return null;
+        }
+    }
+
+    @Test
+    public void testResultsAreDeliveredInSubmissionOrder() throws InterruptedException {
+        FakeRekognition rekognition = new FakeRekognition();
+        AsyncDetectionService detectionService = AsyncDetectionService.builder()
+                .rekognitionClient(rekognition)
+                .transactionsPerSecond(1000)
+                .maxInFlight(8)
+                .build();
+        AsyncDetectionService.Sequence sequence = detectionService.newSequence();
+        List<String> delivered = Collections.synchronizedList(new ArrayList<>());
+
+        for (int i = 0; i < 30; i++) {
+            sequence.detectLabels(new DetectLabelsRequest().withMaxLabels(i), new AsyncDetectionService.DetectionCallback() {
+                @Override
+                public void onDetection(DetectLabelsResult result) {
+                    delivered.add(result.getLabels().get(0).getName());
+                }
+
+                @Override
+                public void onFailure(Exception exception) {
+                    delivered.add("failed");
+                }
+            });
+        }
+
+        Assert.assertTrue(detectionService.awaitCompletion(10, TimeUnit.SECONDS));
+        detectionService.shutdown();
+
+        Assert.assertEquals(30, delivered.size());
+        for (int i = 0; i < 30; i++) {
+            Assert.assertEquals(String.valueOf(i), delivered.get(i));
+        }
+        Assert.assertTrue(rekognition.calls.get() > 30);
+    }
+}
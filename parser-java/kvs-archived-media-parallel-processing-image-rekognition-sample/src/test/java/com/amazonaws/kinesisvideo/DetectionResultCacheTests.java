@@ -0,0 +1,64 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.kinesisvideo.utilities.DetectionResultCache;
+import com.amazonaws.services.rekognition.model.BoundingBox;
+import com.amazonaws.services.rekognition.model.Instance;
+import com.amazonaws.services.rekognition.model.Label;
+import com.amazonaws.services.rekognition.model.Parent;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+public class DetectionResultCacheTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String key(final byte[] image, final float minConfidence) {
+        return DetectionResultCache.key("rekognition", ByteBuffer.wrap(image), 10, minConfidence);
+    }
+
+    private static List<Label> labels(final String name) {
+        return Collections.singletonList(new Label()
+                .withName(name)
+                .withConfidence(91.5f)
+                .withInstances(new Instance()
+                        .withBoundingBox(new BoundingBox().withLeft(0.1f).withTop(0.2f).withWidth(0.3f).withHeight(0.4f))
+                        .withConfidence(88f))
+                .withParents(new Parent().withName("Vehicle")));
+    }
+
+    @Test
+    public void testKeyCoversDetectorImageAndParameters() {
+        byte[] image = {1, 2, 3};
+        Assert.assertEquals(key(image, 85f), key(image.clone(), 85f));
+        Assert.assertNotEquals(key(image, 85f), key(image, 77f));
+        Assert.assertNotEquals(key(image, 85f), key(new byte[]{1, 2, 4}, 85f));
+        Assert.assertNotEquals(key(image, 85f), DetectionResultCache.key("stub", ByteBuffer.wrap(image), 10, 85f));
+    }
+
+    @Test
+    public void testEvictedResultsAreReadBackFromDisk() throws IOException {
+        DetectionResultCache cache = DetectionResultCache.open(folder.newFolder().toPath(), 1);
+        String carKey = key(new byte[]{1}, 85f);
+        String boatKey = key(new byte[]{2}, 85f);
+
+        Assert.assertNull(cache.get(carKey));
+        cache.put(carKey, labels("Car"));
+        cache.put(boatKey, labels("Boat"));
+
+        List<Label> labels = cache.get(carKey);
+        Assert.assertEquals(labels("Car"), labels);
+        Assert.assertEquals(1, cache.getPersistentHits());
+
+        Assert.assertEquals(labels("Car"), cache.get(carKey));
+        Assert.assertEquals(1, cache.getMemoryHits());
+        Assert.assertEquals(1, cache.getMisses());
+    }
+}
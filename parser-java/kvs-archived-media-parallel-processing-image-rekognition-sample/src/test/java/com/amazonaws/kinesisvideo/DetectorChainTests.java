@@ -0,0 +1,70 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.handlers.AsyncHandler;
+import com.amazonaws.kinesisvideo.utilities.AsyncDetectionService;
+import com.amazonaws.kinesisvideo.utilities.DetectionType;
+import com.amazonaws.kinesisvideo.utilities.DetectorChain;
+import com.amazonaws.kinesisvideo.utilities.FrameDetections;
+import com.amazonaws.services.rekognition.AbstractAmazonRekognitionAsync;
+import com.amazonaws.services.rekognition.model.DetectFacesRequest;
+import com.amazonaws.services.rekognition.model.DetectFacesResult;
+import com.amazonaws.services.rekognition.model.DetectLabelsRequest;
+import com.amazonaws.services.rekognition.model.DetectLabelsResult;
+import com.amazonaws.services.rekognition.model.DetectTextRequest;
+import com.amazonaws.services.rekognition.model.DetectTextResult;
+import com.amazonaws.services.rekognition.model.InvalidImageFormatException;
+import com.amazonaws.services.rekognition.model.Label;
+import com.amazonaws.services.rekognition.model.TextDetection;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class DetectorChainTests {
+
+    /* Answers labels and text right away and rejects every face detection */
+    private static class FakeRekognition extends AbstractAmazonRekognitionAsync {
+        @Override
+        public Future<DetectLabelsResult> detectLabelsAsync(DetectLabelsRequest request,
+                                                            AsyncHandler<DetectLabelsRequest, DetectLabelsResult> handler) {
+            handler.onSuccess(request, new DetectLabelsResult().withLabels(new Label().withName("Car").withConfidence(90f)));
+            return null;
+        }
+
+        @Override
+        public Future<DetectTextResult> detectTextAsync(DetectTextRequest request,
+                                                        AsyncHandler<DetectTextRequest, DetectTextResult> handler) {
+            handler.onSuccess(request, new DetectTextResult().withTextDetections(new TextDetection().withDetectedText("STOP")));
+            return null;
+        }
+
+        @Override
+        public Future<DetectFacesResult> detectFacesAsync(DetectFacesRequest request,
+                                                          AsyncHandler<DetectFacesRequest, DetectFacesResult> handler) {
+            handler.onError(new InvalidImageFormatException("Bad image"));
+            return null;
+        }
+    }
+
+    @Test
+    public void testResultsOfAllDetectorsAreMergedIntoOneRecord() throws Exception {
+        AsyncDetectionService detectionService = AsyncDetectionService.builder()
+                .rekognitionClient(new FakeRekognition())
+                .transactionsPerSecond(1000)
+                .build();
+        DetectorChain detectorChain = DetectorChain.create(detectionService,
+                DetectionType.parse("labels, TEXT,faces"));
+
+        FrameDetections detections = detectorChain.detect(ByteBuffer.wrap(new byte[]{1, 2, 3})).get(5, TimeUnit.SECONDS);
+        detectionService.shutdown();
+
+        Assert.assertEquals("Car", detections.getLabels().get(0).getName());
+        Assert.assertEquals("STOP", detections.getTextDetections().get(0).getDetectedText());
+        Assert.assertTrue(detections.getFaceDetails().isEmpty());
+        Assert.assertTrue(detections.getCelebrities().isEmpty());
+        Assert.assertTrue(detections.getFailures().get(DetectionType.FACES) instanceof InvalidImageFormatException);
+        Assert.assertEquals(1, detections.getFailures().size());
+    }
+}
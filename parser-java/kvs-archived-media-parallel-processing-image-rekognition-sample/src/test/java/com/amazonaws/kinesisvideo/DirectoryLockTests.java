@@ -0,0 +1,49 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.kinesisvideo.utilities.DirectoryLock;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+public class DirectoryLockTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testDirectoryLockedElsewhereIsRefused() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        try (FileChannel channel = lock(directory)) {
+            DirectoryLock.acquire(directory);
+            Assert.fail("A directory locked by someone else must be refused");
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage().contains(directory.toString()));
+        }
+    }
+
+    @Test
+    public void testFirstFreeSlotSkipsLockedOnes() throws IOException {
+        Path parent = folder.newFolder().toPath();
+        try (FileChannel channel = lock(parent.resolve("0"))) {
+            Path first = DirectoryLock.acquireFirstFree(parent);
+            Assert.assertEquals(parent.resolve("1"), first);
+            /* Already held by this process, so taking it again succeeds and the next one is handed out */
+            DirectoryLock.acquire(first);
+            Assert.assertEquals(parent.resolve("2"), DirectoryLock.acquireFirstFree(parent));
+        }
+    }
+
+    private static FileChannel lock(final Path directory) throws IOException {
+        Files.createDirectories(directory);
+        FileChannel channel = FileChannel.open(directory.resolve(".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.lock();
+        return channel;
+    }
+}
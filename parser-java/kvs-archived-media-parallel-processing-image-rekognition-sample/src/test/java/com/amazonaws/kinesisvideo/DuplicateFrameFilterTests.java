@@ -0,0 +1,63 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.kinesisvideo.utilities.DuplicateFrameFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+public class DuplicateFrameFilterTests {
+
+    /* Horizontal gradient with a bright box, plus some sensor noise */
+    private static BufferedImage scene(final int boxX, final long noiseSeed) {
+        BufferedImage image = new BufferedImage(640, 360, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        for (int x = 0; x < image.getWidth(); x++) {
+            int level = (x * 200) / image.getWidth();
+            graphics.setColor(new Color(level, level, level));
+            graphics.drawLine(x, 0, x, image.getHeight());
+        }
+        graphics.setColor(Color.WHITE);
+        graphics.fillRect(boxX, 100, 120, 120);
+        graphics.dispose();
+
+        Random random = new Random(noiseSeed);
+        for (int i = 0; i < 5000; i++) {
+            int x = random.nextInt(image.getWidth());
+            int y = random.nextInt(image.getHeight());
+            int rgb = image.getRGB(x, y);
+            image.setRGB(x, y, rgb ^ 0x070707);
+        }
+        return image;
+    }
+
+    @Test
+    public void testNoisyCopiesAreSkipped() {
+        DuplicateFrameFilter filter = new DuplicateFrameFilter(DuplicateFrameFilter.DEFAULT_THRESHOLD);
+        DuplicateFrameFilter.Window window = filter.newWindow();
+
+        Assert.assertTrue(window.shouldSubmit(scene(100, 1)));
+        Assert.assertFalse(window.shouldSubmit(scene(100, 2)));
+        Assert.assertFalse(window.shouldSubmit(scene(100, 3)));
+        Assert.assertTrue(window.shouldSubmit(scene(420, 4)));
+
+        Assert.assertEquals(4, filter.getChecked());
+        Assert.assertEquals(2, filter.getSkipped());
+    }
+
+    @Test
+    public void testResetAndZeroThresholdSubmitEveryFrame() {
+        DuplicateFrameFilter filter = new DuplicateFrameFilter(DuplicateFrameFilter.DEFAULT_THRESHOLD);
+        DuplicateFrameFilter.Window window = filter.newWindow();
+        Assert.assertTrue(window.shouldSubmit(scene(100, 1)));
+        window.reset();
+        Assert.assertTrue(window.shouldSubmit(scene(100, 1)));
+
+        DuplicateFrameFilter.Window disabled = new DuplicateFrameFilter(0).newWindow();
+        Assert.assertTrue(disabled.shouldSubmit(scene(100, 1)));
+        Assert.assertTrue(disabled.shouldSubmit(scene(100, 1)));
+    }
+}
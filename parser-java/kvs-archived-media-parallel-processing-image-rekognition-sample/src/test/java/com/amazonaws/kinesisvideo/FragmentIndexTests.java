@@ -0,0 +1,97 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.kinesisvideo.utilities.FragmentIndex;
+import com.amazonaws.services.kinesisvideo.model.Fragment;
+import com.amazonaws.services.kinesisvideo.model.TimestampRange;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class FragmentIndexTests {
+
+    /* 01/01/2020 00:00:00 UTC, with a fragment every two seconds */
+    private static final long STREAM_START = 1577836800000L;
+    private static final long FRAGMENT_LENGTH = 2000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<TimestampRange> listedRanges = new ArrayList<>();
+
+    private List<Fragment> listFragments(TimestampRange timestampRange) {
+        listedRanges.add(timestampRange);
+        List<Fragment> fragments = new ArrayList<>();
+        long first = (timestampRange.getStartTimestamp().getTime() - STREAM_START + FRAGMENT_LENGTH - 1) / FRAGMENT_LENGTH;
+        for (long i = first; STREAM_START + i * FRAGMENT_LENGTH <= timestampRange.getEndTimestamp().getTime(); i++) {
+            fragments.add(new Fragment()
+                    .withFragmentNumber("9134385233318143239268206262222059076519190" + (1000 + i))
+                    .withServerTimestamp(new Date(STREAM_START + i * FRAGMENT_LENGTH))
+                    .withProducerTimestamp(new Date(STREAM_START + i * FRAGMENT_LENGTH - 500))
+                    .withFragmentSizeInBytes(100000 + i)
+                    .withFragmentLengthInMilliseconds(FRAGMENT_LENGTH));
+        }
+        /* ListFragments does not return fragments in order */
+        java.util.Collections.reverse(fragments);
+        return fragments;
+    }
+
+    private static TimestampRange range(long fromSeconds, long toSeconds) {
+        return new TimestampRange()
+                .withStartTimestamp(new Date(STREAM_START + fromSeconds * 1000))
+                .withEndTimestamp(new Date(STREAM_START + toSeconds * 1000));
+    }
+
+    @Test
+    public void testCoveredRangeIsAnsweredLocally() throws IOException {
+        FragmentIndex fragmentIndex = FragmentIndex.open(folder.newFolder().toPath(), "myTestStream");
+
+        List<Fragment> first = fragmentIndex.getFragments(range(0, 60), this::listFragments);
+        List<Fragment> second = fragmentIndex.getFragments(range(10, 20), this::listFragments);
+
+        Assert.assertEquals(1, listedRanges.size());
+        Assert.assertEquals(31, first.size());
+        Assert.assertEquals(6, second.size());
+        Assert.assertEquals(STREAM_START + 10000, second.get(0).getServerTimestamp().getTime());
+        Assert.assertEquals("91343852333181432392682062622220590765191901005", second.get(0).getFragmentNumber());
+        Assert.assertEquals(100005L, (long) second.get(0).getFragmentSizeInBytes());
+        Assert.assertEquals(STREAM_START + 9500, second.get(0).getProducerTimestamp().getTime());
+    }
+
+    @Test
+    public void testOnlyUncoveredTailIsListed() throws IOException {
+        FragmentIndex fragmentIndex = FragmentIndex.open(folder.newFolder().toPath(), "myTestStream");
+
+        fragmentIndex.getFragments(range(0, 60), this::listFragments);
+        List<Fragment> extended = fragmentIndex.getFragments(range(30, 90), this::listFragments);
+
+        Assert.assertEquals(2, listedRanges.size());
+        Assert.assertEquals(STREAM_START + 60001, listedRanges.get(1).getStartTimestamp().getTime());
+        Assert.assertEquals(31, extended.size());
+        Assert.assertEquals(46, fragmentIndex.size());
+        for (int i = 1; i < extended.size(); i++) {
+            Assert.assertTrue(extended.get(i - 1).getServerTimestamp().before(extended.get(i).getServerTimestamp()));
+        }
+    }
+
+    @Test
+    public void testEarlierStartIsMergedIntoIndex() throws IOException {
+        FragmentIndex fragmentIndex = FragmentIndex.open(folder.newFolder().toPath(), "myTestStream");
+
+        fragmentIndex.getFragments(range(60, 120), this::listFragments);
+        List<Fragment> merged = fragmentIndex.getFragments(range(20, 100), this::listFragments);
+
+        Assert.assertEquals(2, listedRanges.size());
+        Assert.assertEquals(STREAM_START + 59999, listedRanges.get(1).getEndTimestamp().getTime());
+        Assert.assertEquals(41, merged.size());
+        Assert.assertEquals(51, fragmentIndex.size());
+
+        fragmentIndex.getFragments(range(20, 120), this::listFragments);
+        Assert.assertEquals(2, listedRanges.size());
+    }
+}
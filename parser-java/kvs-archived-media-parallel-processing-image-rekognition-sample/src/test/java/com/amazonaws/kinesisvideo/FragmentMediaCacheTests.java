@@ -0,0 +1,108 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.kinesisvideo.utilities.FragmentMediaCache;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FragmentMediaCacheTests {
+
+    private static final String STREAM_NAME = "myTestStream";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<List<String>> requests = new ArrayList<>();
+
+    /* Minimal MKV fragment: EBML header, then an unknown sized Segment with the fragment number tag and one Cluster */
+    private static byte[] fragment(String fragmentNumber, int frameBytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{0x1A, 0x45, (byte) 0xDF, (byte) 0xA3, (byte) 0x84, 0x42, (byte) 0x86, (byte) 0x81, 0x01});
+        out.write(new byte[]{0x18, 0x53, (byte) 0x80, 0x67, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+
+        byte[] name = "AWS_KINESISVIDEO_FRAGMENT_NUMBER".getBytes(StandardCharsets.UTF_8);
+        byte[] value = fragmentNumber.getBytes(StandardCharsets.UTF_8);
+        int simpleTagBytes = 3 + name.length + 3 + value.length;
+        int tagBytes = 3 + simpleTagBytes;
+        out.write(new byte[]{0x12, 0x54, (byte) 0xC3, 0x67, (byte) (0x80 | tagBytes)});
+        out.write(new byte[]{0x73, 0x73, (byte) (0x80 | simpleTagBytes)});
+        out.write(new byte[]{0x67, (byte) 0xC8, (byte) (0x80 | (simpleTagBytes - 3))});
+        out.write(new byte[]{0x45, (byte) 0xA3, (byte) (0x80 | name.length)});
+        out.write(name);
+        out.write(new byte[]{0x44, (byte) 0x87, (byte) (0x80 | value.length)});
+        out.write(value);
+
+        int blockBytes = 4 + frameBytes;
+        out.write(new byte[]{0x1F, 0x43, (byte) 0xB6, 0x75, 0x01, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+        out.write(new byte[]{(byte) 0xA3, (byte) (0x40 | (blockBytes >> 8)), (byte) blockBytes});
+        out.write(new byte[]{(byte) 0x81, 0x00, 0x00, (byte) 0x80});
+        for (int i = 0; i < frameBytes; i++) {
+            /* Frame data that looks like element ids must not be taken for a new fragment */
+            out.write(i % 2 == 0 ? 0x1A : 0x45);
+        }
+        return out.toByteArray();
+    }
+
+    private InputStream getMediaForFragmentList(List<String> fragmentNumbers) {
+        requests.add(fragmentNumbers);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            for (String fragmentNumber : fragmentNumbers) {
+                out.write(fragment(fragmentNumber, 1000));
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int count;
+        while ((count = inputStream.read(buffer)) >= 0) {
+            out.write(buffer, 0, count);
+        }
+        inputStream.close();
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testCachedFragmentsAreNotFetchedAgain() throws IOException {
+        FragmentMediaCache cache = FragmentMediaCache.open(folder.newFolder().toPath(), FragmentMediaCache.DEFAULT_MAX_BYTES);
+
+        byte[] first = readAll(cache.getMedia(STREAM_NAME, Arrays.asList("1001", "1002"), this::getMediaForFragmentList));
+        byte[] second = readAll(cache.getMedia(STREAM_NAME, Arrays.asList("1001", "1002", "1003"), this::getMediaForFragmentList));
+
+        Assert.assertEquals(2, requests.size());
+        Assert.assertEquals(Arrays.asList("1003"), requests.get(1));
+        Assert.assertArrayEquals(readAll(getMediaForFragmentList(Arrays.asList("1001", "1002"))), first);
+        Assert.assertArrayEquals(readAll(getMediaForFragmentList(Arrays.asList("1001", "1002", "1003"))), second);
+        Assert.assertEquals(2, cache.getHits());
+        Assert.assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedFragmentIsEvicted() throws IOException {
+        long fragmentBytes = fragment("1001", 1000).length;
+        FragmentMediaCache cache = FragmentMediaCache.open(folder.newFolder().toPath(), 2 * fragmentBytes);
+
+        readAll(cache.getMedia(STREAM_NAME, Arrays.asList("1001", "1002"), this::getMediaForFragmentList));
+        readAll(cache.getMedia(STREAM_NAME, Arrays.asList("1001"), this::getMediaForFragmentList));
+        readAll(cache.getMedia(STREAM_NAME, Arrays.asList("1003"), this::getMediaForFragmentList));
+
+        Assert.assertNotNull(cache.get(STREAM_NAME, "1001"));
+        Assert.assertNull(cache.get(STREAM_NAME, "1002"));
+        Assert.assertNotNull(cache.get(STREAM_NAME, "1003"));
+    }
+}
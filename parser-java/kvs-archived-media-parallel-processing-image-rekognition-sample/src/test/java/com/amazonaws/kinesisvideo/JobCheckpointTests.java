@@ -0,0 +1,88 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.kinesisvideo.utilities.JobCheckpoint;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+public class JobCheckpointTests {
+
+    private static final String SETTINGS = "sampleRate=1";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testTornLastLineIsIgnoredAndOverwritten() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        Path file = directory.resolve("stream").resolve("job.ckpt");
+        Files.createDirectories(file.getParent());
+        Files.write(file, "#sampleRate=1\n91343852333181432392682062607743920146264868000\n91343852333181432392682062607743920146264868001\n9134385233"
+                .getBytes(StandardCharsets.US_ASCII));
+
+        JobCheckpoint checkpoint = JobCheckpoint.open(directory, "stream", "job", SETTINGS);
+        Assert.assertEquals(2, checkpoint.getCompletedCount());
+        Assert.assertTrue(checkpoint.skipIfCompleted("91343852333181432392682062607743920146264868001"));
+        Assert.assertFalse(checkpoint.skipIfCompleted("9134385233"));
+
+        checkpoint.markCompleted("91343852333181432392682062607743920146264868002");
+        checkpoint.markCompleted("91343852333181432392682062607743920146264868002");
+        Assert.assertEquals("#sampleRate=1\n91343852333181432392682062607743920146264868000\n91343852333181432392682062607743920146264868001\n"
+                        + "91343852333181432392682062607743920146264868002\n",
+                new String(Files.readAllBytes(file), StandardCharsets.US_ASCII));
+        Assert.assertEquals(1, checkpoint.getSkipped());
+        Assert.assertEquals(1, checkpoint.getMarked());
+    }
+
+    @Test
+    public void testCloseReleasesTheCheckpoint() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        JobCheckpoint checkpoint = JobCheckpoint.open(directory, "stream", "job", SETTINGS);
+        Assert.assertSame(checkpoint, JobCheckpoint.open(directory, "stream", "job", SETTINGS));
+        checkpoint.markCompleted("1");
+        checkpoint.close();
+
+        JobCheckpoint reopened = JobCheckpoint.open(directory, "stream", "job", SETTINGS);
+        Assert.assertNotSame(checkpoint, reopened);
+        Assert.assertTrue(reopened.isCompleted("1"));
+        reopened.close();
+    }
+
+    @Test
+    public void testClearStartsTheJobOver() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        JobCheckpoint checkpoint = JobCheckpoint.open(directory, "stream", "job", SETTINGS);
+        checkpoint.markCompleted("1");
+        checkpoint.clear();
+        checkpoint.markCompleted("2");
+
+        Assert.assertFalse(checkpoint.isCompleted("1"));
+        Assert.assertEquals("#sampleRate=1\n2\n", new String(Files.readAllBytes(directory.resolve("stream").resolve("job.ckpt")),
+                StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testOtherSettingsStartTheJobOver() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        JobCheckpoint checkpoint = JobCheckpoint.open(directory, "stream", "job", SETTINGS);
+        checkpoint.markCompleted("1");
+        checkpoint.close();
+
+        JobCheckpoint reopened = JobCheckpoint.open(directory, "stream", "job", "sampleRate=2");
+        Assert.assertEquals(0, reopened.getCompletedCount());
+        reopened.markCompleted("2");
+        reopened.close();
+        Assert.assertEquals("#sampleRate=2\n2\n", new String(Files.readAllBytes(directory.resolve("stream").resolve("job.ckpt")),
+                StandardCharsets.US_ASCII));
+
+        JobCheckpoint unchanged = JobCheckpoint.open(directory, "stream", "job", "sampleRate=2");
+        Assert.assertTrue(unchanged.isCompleted("2"));
+        unchanged.close();
+    }
+}
@@ -0,0 +1,42 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.kinesisvideo.utilities.PipelineMetrics;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+public class PipelineMetricsTests {
+
+    @Test
+    public void testPercentilesAreUpperBoundsWithinFactorOfTwo() {
+        PipelineMetrics.Timer timer = new PipelineMetrics.Timer();
+        for (int i = 0; i < 99; i++) {
+            timer.record(1_000_000);
+        }
+        timer.record(500_000_000);
+
+        Assert.assertEquals(100, timer.getCount());
+        double median = timer.get50thPercentileMillis();
+        Assert.assertTrue(median >= 1.0 && median < 2.0);
+        Assert.assertTrue(timer.get99thPercentileMillis() < 2.0);
+        Assert.assertEquals(500.0, timer.getPercentileMillis(1.0), 0.0);
+        Assert.assertEquals(500.0, timer.getMaxMillis(), 0.0);
+        Assert.assertEquals(5.99, timer.getMeanMillis(), 0.001);
+    }
+
+    @Test
+    public void testMetricsAreExportedOverJmx() throws Exception {
+        PipelineMetrics.FRAMES_SEEN.add(3);
+        PipelineMetrics.DECODE.record(2_000_000);
+
+        Object framesSeen = ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName("com.amazonaws.kinesisvideo:type=PipelineMetrics,name=framesSeen"), "Count");
+        Object decodes = ManagementFactory.getPlatformMBeanServer().getAttribute(
+                new ObjectName("com.amazonaws.kinesisvideo:type=PipelineMetrics,name=decode"), "Count");
+
+        Assert.assertTrue((Long) framesSeen >= 3);
+        Assert.assertTrue((Long) decodes >= 1);
+    }
+}
@@ -0,0 +1,56 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.kinesisvideo.utilities.AsyncDetectionService;
+import com.amazonaws.kinesisvideo.utilities.DetectionType;
+import com.amazonaws.kinesisvideo.utilities.DetectorChain;
+import com.amazonaws.kinesisvideo.utilities.FrameDetections;
+import com.amazonaws.kinesisvideo.utilities.StubFrameDetector;
+import com.amazonaws.services.rekognition.model.BoundingBox;
+import com.amazonaws.services.rekognition.model.Label;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class StubFrameDetectorTests {
+
+    @Test
+    public void testSameFrameGetsSameLabels() {
+        StubFrameDetector detector = new StubFrameDetector();
+        List<Label> labels = detector.detectLabels(ByteBuffer.wrap(new byte[]{1, 2, 3}), 10, 85f);
+
+        Assert.assertEquals(labels, detector.detectLabels(ByteBuffer.wrap(new byte[]{1, 2, 3}), 10, 85f));
+        Assert.assertFalse(labels.isEmpty());
+        for (Label label : labels) {
+            Assert.assertTrue(label.getConfidence() >= 85f && label.getConfidence() <= 100f);
+            BoundingBox boundingBox = label.getInstances().get(0).getBoundingBox();
+            Assert.assertTrue(boundingBox.getLeft() + boundingBox.getWidth() <= 1f);
+            Assert.assertTrue(boundingBox.getTop() + boundingBox.getHeight() <= 1f);
+        }
+    }
+
+    @Test
+    public void testChainRunsOfflineWithStubDetector() throws Exception {
+        AsyncDetectionService detectionService = AsyncDetectionService.builder()
+                .frameDetector(new StubFrameDetector())
+                .build();
+        DetectorChain detectorChain = DetectorChain.create(detectionService, DetectionType.parse("labels"));
+
+        FrameDetections detections = detectorChain.detect(ByteBuffer.wrap(new byte[]{4, 5, 6})).get(5, TimeUnit.SECONDS);
+        detectionService.shutdown();
+
+        Assert.assertNull(detectionService.getRekognitionClient());
+        Assert.assertFalse(detections.getLabels().isEmpty());
+        Assert.assertTrue(detections.getFailures().isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testStubDetectorOnlyDetectsLabels() {
+        AsyncDetectionService detectionService = AsyncDetectionService.builder()
+                .frameDetector(new StubFrameDetector())
+                .build();
+        DetectorChain.create(detectionService, DetectionType.parse("labels,faces"));
+    }
+}
@@ -0,0 +1,91 @@
+package com.amazonaws.kinesisvideo;
+
+import com.amazonaws.kinesisvideo.utilities.WorkLeases;
+import com.amazonaws.services.kinesisvideo.model.TimestampRange;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Optional;
+
+public class WorkLeasesTests {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static TimestampRange range(long start, long end) {
+        return new TimestampRange().withStartTimestamp(new Date(start)).withEndTimestamp(new Date(end));
+    }
+
+    @Test
+    public void testEachItemIsLeasedByOneWorkerAndResultsAreCollected() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        WorkLeases coordinator = WorkLeases.open(directory, "coordinator", 0);
+        coordinator.publish("stream", Arrays.asList(range(0, 999), range(1000, 1999)));
+
+        WorkLeases first = WorkLeases.open(directory, "first", 0);
+        WorkLeases second = WorkLeases.open(directory, "second", 0);
+        WorkLeases.Lease firstLease = first.acquire().get();
+        WorkLeases.Lease secondLease = second.acquire().get();
+        Assert.assertNotEquals(firstLease.getItem(), secondLease.getItem());
+        Assert.assertEquals(1000, secondLease.getTimestampRange().getStartTimestamp().getTime());
+        Assert.assertFalse(first.acquire().isPresent());
+
+        firstLease.complete(4, 4);
+        Assert.assertFalse(coordinator.isFinished());
+        secondLease.complete(5, 3);
+        Assert.assertTrue(coordinator.isFinished());
+        Assert.assertEquals(new WorkLeases.Result("second", 5, 3, coordinator.getResults().lastEntry().getValue().getElapsedMillis()),
+                coordinator.getResults().lastEntry().getValue());
+
+        /* Publishing again retries the item with unfinished fragments only */
+        coordinator.publish("stream", Arrays.asList(range(0, 999), range(1000, 1999)));
+        Assert.assertEquals(secondLease.getItem(), first.acquire().get().getItem());
+        first.shutdown();
+        second.shutdown();
+    }
+
+    @Test
+    public void testExpiredLeaseIsTakenOverAndTheLostWorkerCannotReportIt() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        WorkLeases.open(directory, "coordinator", 0).publish("stream", Arrays.asList(range(0, 999)));
+
+        WorkLeases lost = WorkLeases.open(directory, "lost", 0);
+        WorkLeases.Lease lostLease = lost.acquire().get();
+        Files.setLastModifiedTime(directory.resolve("leases").resolve(lostLease.getItem()),
+                FileTime.fromMillis(System.currentTimeMillis() - 2 * WorkLeases.DEFAULT_LEASE_TIMEOUT_MILLIS));
+
+        WorkLeases live = WorkLeases.open(directory, "live", 0);
+        Optional<WorkLeases.Lease> liveLease = live.acquire();
+        Assert.assertTrue(liveLease.isPresent());
+
+        lostLease.complete(1, 1);
+        Assert.assertTrue(lostLease.isLost());
+        Assert.assertFalse(live.isFinished());
+        liveLease.get().complete(1, 1);
+        Assert.assertEquals("live", live.getResult(lostLease.getItem()).get().getWorkerId());
+        lost.shutdown();
+        live.shutdown();
+    }
+
+    @Test
+    public void testItemIsGivenUpAfterTooManyFailures() throws IOException {
+        Path directory = folder.newFolder().toPath();
+        WorkLeases workLeases = WorkLeases.open(directory, "worker", 0);
+        workLeases.publish("stream", Arrays.asList(range(0, 999)));
+        for (int attempt = 0; attempt < WorkLeases.MAX_ATTEMPTS; attempt++) {
+            workLeases.acquire().get().fail();
+        }
+        Assert.assertFalse(workLeases.acquire().isPresent());
+        Assert.assertTrue(workLeases.isFinished());
+        Assert.assertEquals(Arrays.asList("000000"), workLeases.getGivenUp());
+        workLeases.shutdown();
+    }
+}
@@ -1,10 +1,13 @@
 package com.amazonaws.kinesisvideo;
 
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.text.SimpleDateFormat;
 import java.util.concurrent.ExecutionException;
 
 import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.kinesisvideo.utilities.FrameDetector;
+import com.amazonaws.kinesisvideo.utilities.ImageIOFrameEncoder;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kinesisvideo.model.TimestampRange;
 import lombok.extern.slf4j.Slf4j;
@@ -34,6 +37,34 @@ public class App
         sampleRate.setRequired(true);
         options.addOption(sampleRate);
 
+        Option maxSampleRate = new Option("msr", "maxSampleRate", true, "when above the sample rate, sampling adapts between the two, backing off to every maxSampleRate frames while the scene is static");
+        maxSampleRate.setRequired(false);
+        options.addOption(maxSampleRate);
+
+        Option cacheDirectory = new Option("cd", "cacheDirectory", true, "directory for locally cached fragment data");
+        cacheDirectory.setRequired(false);
+        options.addOption(cacheDirectory);
+
+        Option jpegQuality = new Option("jq", "jpegQuality", true, "JPEG quality of the frames sent to Rekognition, between 0 and 1");
+        jpegQuality.setRequired(false);
+        options.addOption(jpegQuality);
+
+        Option maxDimension = new Option("md", "maxDimension", true, "frames are scaled down to this width or height before they are sent to Rekognition");
+        maxDimension.setRequired(false);
+        options.addOption(maxDimension);
+
+        Option cacheSize = new Option("cs", "cacheSize", true, "maximum size of the local fragment media cache in MB");
+        cacheSize.setRequired(false);
+        options.addOption(cacheSize);
+
+        Option noDetectionPersistence = new Option("ndp", "noDetectionPersistence", false, "keep detection results in memory only instead of in the cache directory");
+        noDetectionPersistence.setRequired(false);
+        options.addOption(noDetectionPersistence);
+
+        Option frameDetector = new Option("fd", "frameDetector", true, "rekognition, or stub to make up deterministic labels locally without calling AWS");
+        frameDetector.setRequired(false);
+        options.addOption(frameDetector);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd = null;
@@ -50,6 +81,12 @@ public class App
         String startTimestamp = cmd.getOptionValue("startTime");
         String endTimestamp = cmd.getOptionValue("endTime");
         int inputSampleRate = Integer.parseInt(cmd.getOptionValue("sampleRate"));
+        int inputMaxSampleRate = Integer.parseInt(cmd.getOptionValue("maxSampleRate", "0"));
+        String cacheDirectoryPath = cmd.getOptionValue("cacheDirectory",
+                KinesisVideoArchivedDetectLabelsExample.DEFAULT_CACHE_DIRECTORY.toString());
+        float inputJpegQuality = Float.parseFloat(cmd.getOptionValue("jpegQuality", String.valueOf(ImageIOFrameEncoder.DEFAULT_QUALITY)));
+        int inputMaxDimension = Integer.parseInt(cmd.getOptionValue("maxDimension", "0"));
+        long cacheSizeBytes = cmd.hasOption("cacheSize") ? Long.parseLong(cmd.getOptionValue("cacheSize")) * 1024 * 1024 : 0;
 
         //Create the TimeStamp object with start and end times
         TimestampRange timestampRange = new TimestampRange();
@@ -68,6 +105,13 @@ public class App
                     .awsCredentialsProvider(new ProfileCredentialsProvider())
                     .timestampRange(timestampRange)
                     .sampleRate(inputSampleRate)
+                    .maxSampleRate(inputMaxSampleRate)
+                    .cacheDirectory(Paths.get(cacheDirectoryPath))
+                    .cacheSizeBytes(cacheSizeBytes)
+                    .jpegQuality(inputJpegQuality)
+                    .maxDimension(inputMaxDimension)
+                    .persistDetections(!cmd.hasOption("noDetectionPersistence"))
+                    .frameDetector(cmd.getOptionValue("frameDetector", FrameDetector.REKOGNITION))
                     .build();
 
             example.execute();
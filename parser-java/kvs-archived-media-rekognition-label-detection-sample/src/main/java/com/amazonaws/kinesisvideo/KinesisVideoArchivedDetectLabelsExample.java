@@ -1,5 +1,7 @@
 package com.amazonaws.kinesisvideo;
 
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.*;
@@ -10,7 +12,14 @@ import com.amazonaws.kinesisvideo.parser.examples.KinesisVideoFrameViewer;
 import com.amazonaws.kinesisvideo.parser.examples.StreamOps;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
 import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
+import com.amazonaws.kinesisvideo.utilities.DetectionResultCache;
+import com.amazonaws.kinesisvideo.utilities.FragmentIndex;
+import com.amazonaws.kinesisvideo.utilities.FragmentMediaCache;
+import com.amazonaws.kinesisvideo.utilities.FrameDetector;
 import com.amazonaws.kinesisvideo.utilities.H264ImageDetectionBoundingBoxRenderer;
+import com.amazonaws.kinesisvideo.utilities.ImageIOFrameEncoder;
+import com.amazonaws.kinesisvideo.utilities.PipelineMetrics;
+import com.amazonaws.kinesisvideo.utilities.SamplingPolicy;
 import com.amazonaws.kinesisvideo.workers.GetMediaForFragmentListBatchWorker;
 import com.amazonaws.kinesisvideo.workers.ListFragmentWorker;
 import com.amazonaws.regions.Regions;
@@ -28,29 +37,61 @@ public class KinesisVideoArchivedDetectLabelsExample extends KinesisVideoCommon
     private final StreamOps streamOps;
     private final ExecutorService executorService;
     private final int sampleRate;
+    private final int maxSampleRate;
+    private final Path cacheDirectory;
+    private final long cacheSizeBytes;
+    private final float jpegQuality;
+    private final int maxDimension;
+    private final boolean persistDetections;
+    private final String frameDetector;
 
     private static final int FRAME_WIDTH=1280;
     private static final int FRAME_HEIGHT=720;
 
     private final int awaitTerminationTime = 180;
 
+    public static final Path DEFAULT_CACHE_DIRECTORY = Paths.get(System.getProperty("user.home"), ".kvs-archived-media");
+
     @Builder
     private KinesisVideoArchivedDetectLabelsExample(Regions region,
                                                     String streamName,
                                                     AWSCredentialsProvider awsCredentialsProvider,
                                                     TimestampRange timestampRange,
-                                                    int sampleRate) {
+                                                    int sampleRate,
+                                                    int maxSampleRate,
+                                                    Path cacheDirectory,
+                                                    long cacheSizeBytes,
+                                                    float jpegQuality,
+                                                    int maxDimension,
+                                                    boolean persistDetections,
+                                                    String frameDetector) {
         super(region, awsCredentialsProvider, streamName);
         this.streamOps = new StreamOps(region, streamName, awsCredentialsProvider);
         this.executorService = Executors.newSingleThreadExecutor();
         this.timestampRange = timestampRange;
         this.sampleRate = sampleRate;
+        this.maxSampleRate = maxSampleRate;
+        this.cacheDirectory = cacheDirectory != null ? cacheDirectory : DEFAULT_CACHE_DIRECTORY;
+        this.cacheSizeBytes = cacheSizeBytes > 0 ? cacheSizeBytes : FragmentMediaCache.DEFAULT_MAX_BYTES;
+        this.jpegQuality = jpegQuality;
+        this.maxDimension = maxDimension;
+        this.persistDetections = persistDetections;
+        this.frameDetector = frameDetector != null ? frameDetector : FrameDetector.REKOGNITION;
     }
 
     public void execute() throws InterruptedException, ExecutionException {
 
+        /* Frames analyzed before, in this run or an earlier one, are answered without calling Rekognition */
+        DetectionResultCache detectionResultCache = persistDetections
+                ? DetectionResultCache.open(cacheDirectory.resolve("detections"), DetectionResultCache.DEFAULT_MAX_ENTRIES)
+                : DetectionResultCache.inMemory(DetectionResultCache.DEFAULT_MAX_ENTRIES);
+
         KinesisVideoFrameViewer kinesisVideoFrameViewer = new KinesisVideoFrameViewer(FRAME_WIDTH, FRAME_HEIGHT);
-        FrameVisitor frameVisitor = FrameVisitor.create(H264ImageDetectionBoundingBoxRenderer.create(kinesisVideoFrameViewer,sampleRate), Optional.empty(), Optional.of(1L));
+        FrameVisitor frameVisitor = FrameVisitor.create(H264ImageDetectionBoundingBoxRenderer.create(kinesisVideoFrameViewer,
+                SamplingPolicy.create(sampleRate, maxSampleRate),
+                ImageIOFrameEncoder.builder().quality(jpegQuality).maxDimension(maxDimension).build(),
+                detectionResultCache,
+                FrameDetector.create(frameDetector)), Optional.empty(), Optional.of(1L));
 
         //Start a ListFragment worker to read fragments from Kinesis Video Stream.
         ListFragmentWorker listFragmentWorker = ListFragmentWorker.create(getStreamName(),
@@ -59,18 +100,22 @@ public class KinesisVideoArchivedDetectLabelsExample extends KinesisVideoCommon
                 streamOps.getAmazonKinesisVideo(),
                 new FragmentSelector()
                         .withFragmentSelectorType(FragmentSelectorType.SERVER_TIMESTAMP)
-                        .withTimestampRange(timestampRange));
+                        .withTimestampRange(timestampRange),
+                FragmentIndex.open(cacheDirectory.resolve("fragment-index"), getStreamName()));
 
 
         Future<List<String>> result = executorService.submit(listFragmentWorker);
         List<String> fragmentNumbers = result.get();
 
+        FragmentMediaCache fragmentMediaCache = FragmentMediaCache.open(cacheDirectory.resolve("fragment-media"), cacheSizeBytes);
+
         GetMediaForFragmentListBatchWorker getMediaForFragmentListBatchWorker = GetMediaForFragmentListBatchWorker.create(getStreamName(),
                 fragmentNumbers,
                 getCredentialsProvider(),
                 getRegion(),
                 streamOps.getAmazonKinesisVideo(),
-                frameVisitor);
+                frameVisitor,
+                fragmentMediaCache);
 
         executorService.submit(getMediaForFragmentListBatchWorker);
 
@@ -82,5 +127,8 @@ public class KinesisVideoArchivedDetectLabelsExample extends KinesisVideoCommon
         } else {
             log.info("Executor service is shutdown");
         }
+        PipelineMetrics.logStatistics();
+        fragmentMediaCache.logStatistics();
+        detectionResultCache.logStatistics();
     }
 }
@@ -0,0 +1,323 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import com.amazonaws.services.rekognition.model.BoundingBox;
+import com.amazonaws.services.rekognition.model.Instance;
+import com.amazonaws.services.rekognition.model.Label;
+import com.amazonaws.services.rekognition.model.Parent;
+import lombok.extern.slf4j.Slf4j;
+
+/* Cache of detection results keyed by the encoded frame, the detector and the parameters of the detection.
+ *
+ * The same frame encoded the same way always has the same bytes, so analyzing an archive window again only costs
+ * decoding. Results are kept in an in-memory LRU map and, when the cache has a directory, appended to a log file whose
+ * record offsets are indexed on start up. Once the log grows past its limit it is started over.
+ *
+ * Record layout: magic, key (SHA-256 of detection type, detector, parameters and image bytes), CRC32 and length of
+ * the data, data (the labels with their instances and parents). */
+@Slf4j
+public class DetectionResultCache {
+
+    public static final int DEFAULT_MAX_ENTRIES = 10_000;
+    public static final long DEFAULT_MAX_LOG_BYTES = 256L * 1024 * 1024;
+
+    private static final String DETECT_LABELS = "DetectLabels";
+    private static final String LOG_FILE = "detections.log";
+    private static final int RECORD_MAGIC = 0x4b564452;
+    private static final int KEY_BYTES = 32;
+    private static final int RECORD_HEADER_BYTES = Integer.BYTES + KEY_BYTES + Integer.BYTES + Integer.BYTES;
+
+    private static final Map<Path, DetectionResultCache> OPEN_CACHES = new ConcurrentHashMap<>();
+
+    private final Map<String, List<Label>> entries;
+    private final Path logPath;
+    private final long maxLogBytes;
+    private final Map<String, Long> recordOffsets = new HashMap<>();
+    private FileChannel channel;
+
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong persistentHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private DetectionResultCache(final int maxEntries, final Path logPath, final long maxLogBytes) throws IOException {
+        this.entries = new LinkedHashMap<String, List<Label>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<String, List<Label>> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.logPath = logPath;
+        this.maxLogBytes = maxLogBytes;
+        if (logPath != null) {
+            load();
+        }
+    }
+
+    /* Cache that only lives as long as the process */
+    public static DetectionResultCache inMemory(final int maxEntries) {
+        try {
+            return new DetectionResultCache(maxEntries, null, 0);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* Returns the persistent cache in the directory, shared by every caller within this JVM */
+    public static DetectionResultCache open(final Path directory, final int maxEntries) {
+        return OPEN_CACHES.computeIfAbsent(directory.toAbsolutePath(), d -> {
+            try {
+                DirectoryLock.acquire(d);
+                return new DetectionResultCache(maxEntries, d.resolve(LOG_FILE), DEFAULT_MAX_LOG_BYTES);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open detection result cache " + d, e);
+            }
+        });
+    }
+
+    /* Key of a label detection, covering the detector, the image bytes and every parameter that changes the result */
+    public static String key(final String detector, final ByteBuffer imageBytes, final int maxLabels, final float minConfidence) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            String parameters = DETECT_LABELS + "/" + detector + "/" + maxLabels + "/" + minConfidence + "/";
+            digest.update(parameters.getBytes(StandardCharsets.UTF_8));
+            digest.update(imageBytes.duplicate());
+            return bytesToHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* Returns the cached labels, or null when the detection has not been seen before */
+    public synchronized List<Label> get(final String key) {
+        List<Label> labels = entries.get(key);
+        if (labels != null) {
+            memoryHits.incrementAndGet();
+            return labels;
+        }
+        Long offset = recordOffsets.get(key);
+        if (offset != null) {
+            labels = readRecord(key, offset);
+            if (labels != null) {
+                persistentHits.incrementAndGet();
+                entries.put(key, labels);
+                return labels;
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public synchronized void put(final String key, final List<Label> labels) {
+        entries.put(key, labels);
+        if (channel == null || recordOffsets.containsKey(key)) {
+            return;
+        }
+        try {
+            byte[] data = encode(labels);
+            if (channel.size() + RECORD_HEADER_BYTES + data.length > maxLogBytes) {
+                log.info("Detection result log {} is full, starting it over", logPath);
+                channel.truncate(0);
+                recordOffsets.clear();
+            }
+            long offset = channel.size();
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_BYTES + data.length);
+            record.putInt(RECORD_MAGIC).put(hexToBytes(key)).putInt(crc(data)).putInt(data.length).put(data);
+            record.flip();
+            while (record.hasRemaining()) {
+                channel.write(record, offset + record.position());
+            }
+            recordOffsets.put(key, offset);
+        } catch (IOException e) {
+            log.warn("Unable to add detection result to {}", logPath, e);
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getPersistentHits() {
+        return persistentHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public void logStatistics() {
+        long hits = memoryHits.get() + persistentHits.get();
+        long lookups = hits + misses.get();
+        log.info("Detection result cache hit ratio {} ({} in memory, {} on disk, {} misses), {} detections saved",
+                String.format("%.2f", lookups == 0 ? 0.0 : (double) hits / lookups),
+                memoryHits.get(), persistentHits.get(), misses.get(), hits);
+    }
+
+    private List<Label> readRecord(final String key, final long offset) {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+            readFully(header, offset);
+            int crc = header.getInt(Integer.BYTES + KEY_BYTES);
+            ByteBuffer data = ByteBuffer.allocate(header.getInt(Integer.BYTES + KEY_BYTES + Integer.BYTES));
+            readFully(data, offset + RECORD_HEADER_BYTES);
+            if (crc(data.array()) != crc) {
+                log.warn("Dropping corrupt detection result at offset {} of {}", offset, logPath);
+                recordOffsets.remove(key);
+                return null;
+            }
+            return decode(data.array());
+        } catch (IOException e) {
+            log.warn("Unable to read detection result at offset {} of {}", offset, logPath, e);
+            recordOffsets.remove(key);
+            return null;
+        }
+    }
+
+    private void readFully(final ByteBuffer buffer, final long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + logPath);
+            }
+        }
+    }
+
+    /* Indexes the records of the log, stopping at the first one that was not completely written */
+    private void load() throws IOException {
+        channel = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+        while (offset + RECORD_HEADER_BYTES <= size) {
+            header.clear();
+            readFully(header, offset);
+            int length = header.getInt(Integer.BYTES + KEY_BYTES + Integer.BYTES);
+            if (header.getInt(0) != RECORD_MAGIC || length < 0 || offset + RECORD_HEADER_BYTES + length > size) {
+                break;
+            }
+            byte[] keyBytes = new byte[KEY_BYTES];
+            header.position(Integer.BYTES);
+            header.get(keyBytes);
+            recordOffsets.put(bytesToHex(keyBytes), offset);
+            offset += RECORD_HEADER_BYTES + length;
+        }
+        if (offset < size) {
+            channel.truncate(offset);
+        }
+        log.info("Loaded detection result cache {} with {} results", logPath, recordOffsets.size());
+    }
+
+    private static byte[] encode(final List<Label> labels) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(labels.size());
+        for (Label label : labels) {
+            out.writeUTF(label.getName());
+            writeFloat(out, label.getConfidence());
+            List<Instance> instances = label.getInstances() != null ? label.getInstances() : new ArrayList<>();
+            out.writeInt(instances.size());
+            for (Instance instance : instances) {
+                BoundingBox boundingBox = instance.getBoundingBox();
+                out.writeBoolean(boundingBox != null);
+                if (boundingBox != null) {
+                    writeFloat(out, boundingBox.getWidth());
+                    writeFloat(out, boundingBox.getHeight());
+                    writeFloat(out, boundingBox.getLeft());
+                    writeFloat(out, boundingBox.getTop());
+                }
+                writeFloat(out, instance.getConfidence());
+            }
+            List<Parent> parents = label.getParents() != null ? label.getParents() : new ArrayList<>();
+            out.writeInt(parents.size());
+            for (Parent parent : parents) {
+                out.writeUTF(parent.getName());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static List<Label> decode(final byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int labelCount = in.readInt();
+        List<Label> labels = new ArrayList<>(labelCount);
+        for (int i = 0; i < labelCount; i++) {
+            Label label = new Label().withName(in.readUTF()).withConfidence(readFloat(in));
+            int instanceCount = in.readInt();
+            Collection<Instance> instances = new ArrayList<>(instanceCount);
+            for (int j = 0; j < instanceCount; j++) {
+                Instance instance = new Instance();
+                if (in.readBoolean()) {
+                    instance.setBoundingBox(new BoundingBox()
+                            .withWidth(readFloat(in))
+                            .withHeight(readFloat(in))
+                            .withLeft(readFloat(in))
+                            .withTop(readFloat(in)));
+                }
+                instance.setConfidence(readFloat(in));
+                instances.add(instance);
+            }
+            label.setInstances(instances);
+            int parentCount = in.readInt();
+            Collection<Parent> parents = new ArrayList<>(parentCount);
+            for (int j = 0; j < parentCount; j++) {
+                parents.add(new Parent().withName(in.readUTF()));
+            }
+            label.setParents(parents);
+            labels.add(label);
+        }
+        return labels;
+    }
+
+    /* Rekognition leaves some numbers out of a result, those are written as NaN */
+    private static void writeFloat(final DataOutputStream out, final Float value) throws IOException {
+        out.writeFloat(value != null ? value : Float.NaN);
+    }
+
+    private static Float readFloat(final DataInputStream in) throws IOException {
+        float value = in.readFloat();
+        return Float.isNaN(value) ? null : value;
+    }
+
+    private static int crc(final byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return (int) crc32.getValue();
+    }
+
+    private static String bytesToHex(final byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] hexToBytes(final String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
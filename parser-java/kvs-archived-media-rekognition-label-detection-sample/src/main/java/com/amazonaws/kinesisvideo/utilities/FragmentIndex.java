@@ -0,0 +1,287 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.amazonaws.services.kinesisvideo.model.Fragment;
+import com.amazonaws.services.kinesisvideo.model.TimestampRange;
+import lombok.extern.slf4j.Slf4j;
+
+/* Local, persistent index of the fragment metadata of one stream.
+ *
+ * Fragments are stored as fixed width records sorted by server timestamp in a memory-mapped file. Records are only
+ * ever appended, and the header keeps the server timestamp range that has already been listed, so a time range
+ * query is a binary search over the file and ListFragments only has to be called for the part that is not covered yet.
+ *
+ * Record layout: fragment number (24 bytes, unsigned big endian), server timestamp, producer timestamp,
+ * fragment size in bytes and fragment length in milliseconds (8 bytes each). */
+@Slf4j
+public class FragmentIndex {
+
+    /* Lists the fragments of the stream within a server timestamp range, following next tokens until done */
+    public interface FragmentLister {
+        List<Fragment> listFragments(TimestampRange timestampRange);
+    }
+
+    private static final int MAGIC = 0x4b465849;
+    private static final int VERSION = 1;
+
+    private static final int HEADER_BYTES = 64;
+    private static final int RECORD_COUNT_OFFSET = 8;
+    private static final int COVERED_FROM_OFFSET = 16;
+    private static final int COVERED_TO_OFFSET = 24;
+
+    private static final int FRAGMENT_NUMBER_BYTES = 24;
+    private static final int SERVER_TIMESTAMP_OFFSET = FRAGMENT_NUMBER_BYTES;
+    private static final int PRODUCER_TIMESTAMP_OFFSET = SERVER_TIMESTAMP_OFFSET + Long.BYTES;
+    private static final int SIZE_OFFSET = PRODUCER_TIMESTAMP_OFFSET + Long.BYTES;
+    private static final int LENGTH_OFFSET = SIZE_OFFSET + Long.BYTES;
+    private static final int RECORD_BYTES = LENGTH_OFFSET + Long.BYTES;
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /* Fragments may still be arriving for the most recent server timestamps, so those are never marked as covered */
+    private static final long SETTLE_MILLIS = 60_000;
+
+    private static final Map<Path, FragmentIndex> OPEN_INDEXES = new ConcurrentHashMap<>();
+
+    private final Path path;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int recordCount;
+    private long coveredFrom;
+    private long coveredTo;
+
+    private FragmentIndex(final Path path) throws IOException {
+        this.path = path;
+        load();
+    }
+
+    /* Returns the index of the given stream in the directory, shared by every caller within this JVM. The directory is
+     * refused when another process uses it. */
+    public static FragmentIndex open(final Path directory, final String streamName) {
+        final Path path = directory.resolve(streamName + ".fidx").toAbsolutePath();
+        return OPEN_INDEXES.computeIfAbsent(path, p -> {
+            try {
+                DirectoryLock.acquire(directory);
+                return new FragmentIndex(p);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open fragment index " + p, e);
+            }
+        });
+    }
+
+    /* Returns the fragments with a server timestamp within the range, sorted by server timestamp.
+     * Only the part of the range that is not in the index yet is listed through the lister. */
+    public synchronized List<Fragment> getFragments(final TimestampRange timestampRange, final FragmentLister lister) {
+        final long start = timestampRange.getStartTimestamp().getTime();
+        final long end = timestampRange.getEndTimestamp().getTime();
+        final long settled = Math.min(end, System.currentTimeMillis() - SETTLE_MILLIS);
+
+        List<Fragment> unsettled = new ArrayList<>();
+
+        try {
+            if (coveredTo < coveredFrom || isFarFromCoverage(start, end)) {
+                reset();
+                unsettled = append(list(lister, start, end), start, settled);
+            } else {
+                if (start < coveredFrom) {
+                    /* The file only grows at the tail, so an earlier start means merging into a new file */
+                    long previouslyCoveredTo = coveredTo;
+                    List<Fragment> merged = list(lister, start, coveredFrom - 1);
+                    merged.addAll(readAll());
+                    reset();
+                    append(merged, start, previouslyCoveredTo);
+                }
+                if (end > coveredTo) {
+                    unsettled = append(list(lister, coveredTo + 1, end), coveredFrom, settled);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to update fragment index " + path, e);
+        }
+
+        List<Fragment> fragments = new ArrayList<>();
+        for (int i = lowerBound(start); i < recordCount && serverTimestamp(i) <= end; i++) {
+            fragments.add(read(i));
+        }
+        for (Fragment fragment : unsettled) {
+            if (fragment.getServerTimestamp().getTime() >= start) {
+                fragments.add(fragment);
+            }
+        }
+        log.debug("Fragment index {} answered [{}, {}] with {} fragments", path.getFileName(), start, end, fragments.size());
+        return fragments;
+    }
+
+    public synchronized int size() {
+        return recordCount;
+    }
+
+    private List<Fragment> list(final FragmentLister lister, final long start, final long end) {
+        TimestampRange timestampRange = new TimestampRange()
+                .withStartTimestamp(new Date(start))
+                .withEndTimestamp(new Date(end));
+        List<Fragment> listed = new ArrayList<>(lister.listFragments(timestampRange));
+        listed.sort(Comparator.comparing(Fragment::getServerTimestamp));
+        log.info("Listed {} fragments for [{}, {}] not covered by fragment index {}", listed.size(), start, end, path.getFileName());
+        return listed;
+    }
+
+    /* Appends the settled fragments and returns the ones that are too recent to be stored */
+    private List<Fragment> append(final List<Fragment> sortedFragments, final long from, final long settled) throws IOException {
+        int settledCount = 0;
+        while (settledCount < sortedFragments.size()
+                && sortedFragments.get(settledCount).getServerTimestamp().getTime() <= settled) {
+            settledCount++;
+        }
+        ensureCapacity(recordCount + settledCount);
+        for (int i = 0; i < settledCount; i++) {
+            write(recordCount + i, sortedFragments.get(i));
+        }
+        recordCount += settledCount;
+        if (settled >= from) {
+            coveredFrom = from;
+            coveredTo = Math.max(coveredTo, settled);
+        }
+        writeHeader();
+        buffer.force();
+        return sortedFragments.subList(settledCount, sortedFragments.size());
+    }
+
+    /* A range far away from the covered one replaces it rather than listing everything in between */
+    private boolean isFarFromCoverage(final long start, final long end) {
+        long span = end - start;
+        return start > coveredTo + 1 + span || end + 1 + span < coveredFrom;
+    }
+
+    private List<Fragment> readAll() {
+        List<Fragment> fragments = new ArrayList<>(recordCount);
+        for (int i = 0; i < recordCount; i++) {
+            fragments.add(read(i));
+        }
+        return fragments;
+    }
+
+    /* Drops every record and the covered range by starting over with an empty file */
+    private void reset() throws IOException {
+        buffer = null;
+        channel.close();
+        Files.delete(path);
+        load();
+    }
+
+    private void load() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (channel.size() < HEADER_BYTES) {
+            map(INITIAL_CAPACITY);
+            recordCount = 0;
+            coveredFrom = 0;
+            coveredTo = -1;
+            writeHeader();
+            return;
+        }
+        map(Math.max(INITIAL_CAPACITY, (int) ((channel.size() - HEADER_BYTES) / RECORD_BYTES)));
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+            throw new IOException("Not a fragment index: " + path);
+        }
+        recordCount = (int) buffer.getLong(RECORD_COUNT_OFFSET);
+        coveredFrom = buffer.getLong(COVERED_FROM_OFFSET);
+        coveredTo = buffer.getLong(COVERED_TO_OFFSET);
+        log.info("Loaded fragment index {} with {} fragments", path.getFileName(), recordCount);
+    }
+
+    private void map(final int newCapacity) throws IOException {
+        capacity = newCapacity;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) capacity * RECORD_BYTES);
+    }
+
+    private void ensureCapacity(final int records) throws IOException {
+        if (records > capacity) {
+            buffer.force();
+            map(Math.max(records, capacity * 2));
+        }
+    }
+
+    private void writeHeader() {
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(RECORD_COUNT_OFFSET, recordCount);
+        buffer.putLong(COVERED_FROM_OFFSET, coveredFrom);
+        buffer.putLong(COVERED_TO_OFFSET, coveredTo);
+    }
+
+    /* First record with a server timestamp at or after the given one */
+    private int lowerBound(final long timestamp) {
+        int low = 0;
+        int high = recordCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (serverTimestamp(mid) < timestamp) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static int offset(final int record) {
+        return HEADER_BYTES + record * RECORD_BYTES;
+    }
+
+    private long serverTimestamp(final int record) {
+        return buffer.getLong(offset(record) + SERVER_TIMESTAMP_OFFSET);
+    }
+
+    private void write(final int record, final Fragment fragment) {
+        byte[] number = new BigInteger(fragment.getFragmentNumber()).toByteArray();
+        int significant = number.length;
+        int skip = 0;
+        while (significant > 1 && number[skip] == 0) {
+            skip++;
+            significant--;
+        }
+        if (significant > FRAGMENT_NUMBER_BYTES) {
+            throw new IllegalArgumentException("Fragment number too large: " + fragment.getFragmentNumber());
+        }
+        int base = offset(record);
+        for (int i = 0; i < FRAGMENT_NUMBER_BYTES - significant; i++) {
+            buffer.put(base + i, (byte) 0);
+        }
+        for (int i = 0; i < significant; i++) {
+            buffer.put(base + FRAGMENT_NUMBER_BYTES - significant + i, number[skip + i]);
+        }
+        buffer.putLong(base + SERVER_TIMESTAMP_OFFSET, fragment.getServerTimestamp().getTime());
+        buffer.putLong(base + PRODUCER_TIMESTAMP_OFFSET, fragment.getProducerTimestamp().getTime());
+        buffer.putLong(base + SIZE_OFFSET, fragment.getFragmentSizeInBytes());
+        buffer.putLong(base + LENGTH_OFFSET, fragment.getFragmentLengthInMilliseconds());
+    }
+
+    private Fragment read(final int record) {
+        int base = offset(record);
+        byte[] number = new byte[FRAGMENT_NUMBER_BYTES];
+        for (int i = 0; i < FRAGMENT_NUMBER_BYTES; i++) {
+            number[i] = buffer.get(base + i);
+        }
+        return new Fragment()
+                .withFragmentNumber(new BigInteger(1, number).toString())
+                .withServerTimestamp(new Date(buffer.getLong(base + SERVER_TIMESTAMP_OFFSET)))
+                .withProducerTimestamp(new Date(buffer.getLong(base + PRODUCER_TIMESTAMP_OFFSET)))
+                .withFragmentSizeInBytes(buffer.getLong(base + SIZE_OFFSET))
+                .withFragmentLengthInMilliseconds(buffer.getLong(base + LENGTH_OFFSET));
+    }
+}
@@ -73,11 +73,7 @@ public class H264FrameLabelDetector extends H264FrameDecoder {
             //detectFaces(imageBytes);    // Face Detection
             //recognizeCelebrities(imageBytes); // Celebrity Detection
             //detectText(imageBytes); // Text Detection
-            long endTime = System.nanoTime();
-            long totalTime = endTime - startTime;
-            double seconds = (double) totalTime / 1_000_000_000.0;
-            log.info("Time to Rekognize frame: " + seconds + " seconds");
-            log.info("----------------------");
+            PipelineMetrics.DETECT.recordSince(startTime);
         } catch (IOException e) {
             log.warn("Error with png conversion", e);
         }
@@ -94,9 +90,9 @@ public class H264FrameLabelDetector extends H264FrameDecoder {
             DetectLabelsResult result = rekognitionClient.detectLabels(request);
             List<Label> labels = result.getLabels();
 
-            log.info("Detected Labels in " + Thread.currentThread().getName() + ":");
+            log.debug("Detected labels in {}:", Thread.currentThread().getName());
             for (Label label : labels) {
-                log.info(label.getName() + ": " + label.getConfidence().toString());
+                log.debug("{}: {}", label.getName(), label.getConfidence());
             }
         } catch (AmazonRekognitionException e) {
             log.error(e.getMessage());
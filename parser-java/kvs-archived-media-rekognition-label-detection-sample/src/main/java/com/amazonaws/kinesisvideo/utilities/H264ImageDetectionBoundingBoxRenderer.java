@@ -2,22 +2,16 @@ package com.amazonaws.kinesisvideo.utilities;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import com.amazonaws.kinesisvideo.parser.examples.KinesisVideoFrameViewer;
 import com.amazonaws.kinesisvideo.parser.mkv.Frame;
-import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
 import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
-import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
-import com.amazonaws.kinesisvideo.parser.utilities.H264FrameRenderer;
-import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
-import com.amazonaws.services.rekognition.AmazonRekognition;
-import com.amazonaws.services.rekognition.AmazonRekognitionClientBuilder;
 import com.amazonaws.services.rekognition.model.*;
 import com.amazonaws.services.rekognition.model.Image;
 import com.amazonaws.services.rekognition.model.Label;
@@ -26,87 +20,80 @@ import lombok.extern.slf4j.Slf4j;
 import static com.amazonaws.kinesisvideo.parser.utilities.BufferedImageUtil.addTextToImage;
 
 
-import javax.imageio.ImageIO;
-
 @Slf4j
-public class H264ImageDetectionBoundingBoxRenderer extends H264FrameRenderer {
+public class H264ImageDetectionBoundingBoxRenderer extends SamplingH264FrameDecoder {
 
     private final KinesisVideoFrameViewer kinesisVideoFrameViewer;
-    private final int sampleRate;
-    private int frameNumber;
-    private final AmazonRekognition rekognitionClient = AmazonRekognitionClientBuilder.defaultClient();
+    private final FrameEncoder frameEncoder;
+    private final DetectionResultCache resultCache;
+    private final FrameDetector frameDetector;
     private final Color boundingBoxColor = Color.RED;
 
-    private H264ImageDetectionBoundingBoxRenderer(final KinesisVideoFrameViewer kinesisVideoFrameViewer, final int sampleRate) {
-        super(kinesisVideoFrameViewer);
+    private H264ImageDetectionBoundingBoxRenderer(final KinesisVideoFrameViewer kinesisVideoFrameViewer, final SamplingPolicy samplingPolicy,
+                                                  final FrameEncoder frameEncoder, final DetectionResultCache resultCache,
+                                                  final FrameDetector frameDetector) {
+        super(samplingPolicy);
         this.kinesisVideoFrameViewer = kinesisVideoFrameViewer;
-        this.sampleRate = sampleRate;
+        this.frameEncoder = frameEncoder;
+        this.resultCache = resultCache;
+        this.frameDetector = frameDetector;
     }
 
     public static H264ImageDetectionBoundingBoxRenderer create(final KinesisVideoFrameViewer kinesisVideoFrameViewer, final int sampleRate) {
-        return new H264ImageDetectionBoundingBoxRenderer(kinesisVideoFrameViewer, sampleRate);
+        return new H264ImageDetectionBoundingBoxRenderer(kinesisVideoFrameViewer, new FixedSamplingPolicy(sampleRate),
+                ImageIOFrameEncoder.builder().build(), DetectionResultCache.inMemory(DetectionResultCache.DEFAULT_MAX_ENTRIES),
+                FrameDetector.create(FrameDetector.REKOGNITION));
     }
 
-    @Override
-    public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
-                        Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor) throws FrameProcessException {
-
-        BufferedImage bufferedImage = decodeH264Frame(frame, trackMetadata);
+    public static H264ImageDetectionBoundingBoxRenderer create(final KinesisVideoFrameViewer kinesisVideoFrameViewer, final SamplingPolicy samplingPolicy,
+                                                               final FrameEncoder frameEncoder, final DetectionResultCache resultCache,
+                                                               final FrameDetector frameDetector) {
+        return new H264ImageDetectionBoundingBoxRenderer(kinesisVideoFrameViewer, samplingPolicy, frameEncoder, resultCache,
+                frameDetector);
+    }
 
-        /* Only send key frames to Rekognition */
-        if (sampleRate == 0) {
-            if (frame.isKeyFrame()) {
-                renderFrame(bufferedImage);
-            }
-        }
-        else {
-            /* Only send to Rekognition every N frames */
-            if ((frameNumber % sampleRate) == 0) {
-                renderFrame(bufferedImage);
-            }
-            frameNumber++;
-        }
+    /* Only frames picked by the sampling policy are decoded, sent to Rekognition and rendered */
+    @Override
+    protected void processSampledFrame(BufferedImage bufferedImage, Frame frame, Optional<FragmentMetadata> fragmentMetadata) {
+        renderFrame(bufferedImage);
     }
 
     protected void renderFrame(final BufferedImage bufferedImage) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-
         try {
-            ImageIO.write(bufferedImage, "png", outputStream);
-            ByteBuffer imageBytes = ByteBuffer.wrap(outputStream.toByteArray());
+            ByteBuffer imageBytes = ByteBuffer.wrap(frameEncoder.encode(bufferedImage));
             long startTime = System.nanoTime();
+            PipelineMetrics.FRAMES_SUBMITTED.increment();
             sendToRekognition(imageBytes, bufferedImage);
-            long endTime = System.nanoTime();
-            long totalTime = endTime - startTime;
-            double seconds = (double)totalTime / 1_000_000_000.0;
-            log.info("Time to Rekognize frame: " + seconds + " seconds");
-            log.info("----------------------");
+            PipelineMetrics.DETECT.recordSince(startTime);
 
             kinesisVideoFrameViewer.update(bufferedImage);
         }
         catch (IOException e) {
-            log.warn("Error with png conversion", e);
+            log.warn("Error with {} conversion", frameEncoder.getMimeType(), e);
         }
     }
 
     protected void sendToRekognition(ByteBuffer imageBytes, BufferedImage bufferedImage) {
-        DetectLabelsRequest request = new DetectLabelsRequest()
-                .withImage(new Image()
-                        .withBytes(imageBytes))
-                .withMaxLabels(10)
-                .withMinConfidence(77F);
+        final int maxLabels = 10;
+        final float minConfidence = 77F;
 
         try {
-            DetectLabelsResult result = rekognitionClient.detectLabels(request);
-            List<Label> labels = result.getLabels();
+            /* Frames analyzed before are drawn from the cache without calling the detector */
+            String cacheKey = DetectionResultCache.key(frameDetector.getName(), imageBytes, maxLabels, minConfidence);
+            List<Label> labels = resultCache.get(cacheKey);
+            if (labels == null) {
+                labels = frameDetector.detectLabels(imageBytes, maxLabels, minConfidence);
+                resultCache.put(cacheKey, labels);
+            }
 
             int width = bufferedImage.getWidth();
             int height = bufferedImage.getHeight();
 
-            log.info("Detected Labels:");
+            log.debug("Detected labels:");
             for (Label label: labels) {
-                log.info(label.getName() + ": " + label.getConfidence().toString());
+                log.debug("{}: {}", label.getName(), label.getConfidence());
             }
+            getSamplingPolicy().onLabels(labels.stream().map(Label::getName).collect(Collectors.toList()));
 
             for (Label label: labels) {
                 for (Instance instance: label.getInstances()) {
@@ -0,0 +1,84 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadataVisitor;
+import com.amazonaws.kinesisvideo.parser.utilities.H264FrameDecoder;
+import com.amazonaws.kinesisvideo.parser.utilities.MkvTrackMetadata;
+
+/* Frame processor that only decodes the frames it needs for the sampled ones.
+ *
+ * Which frames are sampled is up to the sampling policy. When it only samples key frames, every other frame is skipped
+ * without being decoded. Otherwise H.264 frames depend on the frames before them back to the preceding key
+ * frame, so the frames in between are held back and only decoded once a sampled frame needs them. Frames that are
+ * followed by a key frame before the next sample are dropped without ever being decoded. */
+public abstract class SamplingH264FrameDecoder extends H264FrameDecoder {
+
+    private final SamplingPolicy samplingPolicy;
+    private final List<Frame> pendingFrames = new ArrayList<>();
+
+    protected SamplingH264FrameDecoder(final int sampleRate) {
+        this(new FixedSamplingPolicy(sampleRate));
+    }
+
+    protected SamplingH264FrameDecoder(final SamplingPolicy samplingPolicy) {
+        super();
+        this.samplingPolicy = samplingPolicy;
+    }
+
+    @Override
+    public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
+                        Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor) throws FrameProcessException {
+
+        PipelineMetrics.FRAMES_SEEN.increment();
+        if (frame.isKeyFrame()) {
+            /* Nothing after a key frame refers to the frames before it */
+            pendingFrames.clear();
+        }
+
+        if (!samplingPolicy.shouldSample(frame)) {
+            if (!samplingPolicy.samplesKeyFramesOnly()) {
+                pendingFrames.add(frame);
+            }
+            return;
+        }
+
+        for (Frame pendingFrame : pendingFrames) {
+            decode(pendingFrame, trackMetadata);
+        }
+        pendingFrames.clear();
+
+        BufferedImage bufferedImage = decode(frame, trackMetadata);
+        PipelineMetrics.FRAMES_SAMPLED.increment();
+        samplingPolicy.onSampledImage(bufferedImage);
+        processSampledFrame(bufferedImage, frame, fragmentMetadata);
+    }
+
+    /* Forgets the frames seen so far so that the processor can be reused for other fragments */
+    public void reset() {
+        samplingPolicy.reset();
+        pendingFrames.clear();
+    }
+
+    private BufferedImage decode(final Frame frame, final MkvTrackMetadata trackMetadata) throws FrameProcessException {
+        long startTime = System.nanoTime();
+        BufferedImage bufferedImage = decodeH264Frame(frame, trackMetadata);
+        PipelineMetrics.DECODE.recordSince(startTime);
+        PipelineMetrics.FRAMES_DECODED.increment();
+        return bufferedImage;
+    }
+
+    protected SamplingPolicy getSamplingPolicy() {
+        return samplingPolicy;
+    }
+
+    /* Called with the decoded image of every sampled frame */
+    protected abstract void processSampledFrame(BufferedImage bufferedImage, Frame frame,
+                                                Optional<FragmentMetadata> fragmentMetadata);
+}
@@ -0,0 +1,44 @@
+package com.amazonaws.kinesisvideo.utilities;
+
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+
+/* Decides which frames of a fragment are sampled, that is decoded and sent for detection.
+ *
+ * A policy is asked about every frame in order and is told about each sampled image and the labels detected in it,
+ * so it can adapt to what it sees. Policies keep state and belong to a single frame processor. */
+public interface SamplingPolicy {
+
+    boolean shouldSample(Frame frame);
+
+    /* When true, frames that are not sampled are never needed to decode the sampled ones */
+    default boolean samplesKeyFramesOnly() {
+        return false;
+    }
+
+    /* Called with the decoded image of every sampled frame, before anything is drawn on it */
+    default void onSampledImage(BufferedImage image) {
+    }
+
+    /* Called with the labels detected in a sampled frame, possibly from another thread */
+    default void onLabels(Collection<String> labels) {
+    }
+
+    /* Forgets the frames seen so far so that the policy can be reused for other fragments */
+    void reset();
+
+    /* Samples every sampleRate frames, or key frames only with 0, unless maxSampleRate is above the sample rate, in
+     * which case the sampling interval adapts between the two */
+    static SamplingPolicy create(final int sampleRate, final int maxSampleRate) {
+        int minInterval = Math.max(1, sampleRate);
+        if (maxSampleRate > minInterval) {
+            return AdaptiveSamplingPolicy.builder()
+                    .minInterval(minInterval)
+                    .maxInterval(maxSampleRate)
+                    .build();
+        }
+        return new FixedSamplingPolicy(sampleRate);
+    }
+}
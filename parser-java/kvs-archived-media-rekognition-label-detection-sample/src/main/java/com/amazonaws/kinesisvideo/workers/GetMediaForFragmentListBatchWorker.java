@@ -7,6 +7,8 @@ import com.amazonaws.kinesisvideo.parser.examples.KinesisVideoCommon;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
 import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitor;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.utilities.FragmentMediaCache;
+import com.amazonaws.kinesisvideo.utilities.PipelineMetrics;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
@@ -17,6 +19,9 @@ import com.amazonaws.services.kinesisvideo.model.GetMediaForFragmentListRequest;
 import com.amazonaws.services.kinesisvideo.model.GetMediaForFragmentListResult;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.List;
 
 @Slf4j
@@ -24,12 +29,15 @@ public class GetMediaForFragmentListBatchWorker extends KinesisVideoCommon imple
     private final AmazonKinesisVideoArchivedMedia amazonKinesisVideoArchivedMedia;
     private final MkvElementVisitor elementVisitor;
     private final List<String> fragmentNumbers;
+    private final FragmentMediaCache fragmentMediaCache;
 
     public GetMediaForFragmentListBatchWorker(final String streamName, final List<String> fragmentNumbers,
                                               final AWSCredentialsProvider awsCredentialsProvider, final String endPoint,
-                                              final Regions region, final MkvElementVisitor elementVisitor) {
+                                              final Regions region, final MkvElementVisitor elementVisitor,
+                                              final FragmentMediaCache fragmentMediaCache) {
         super(region, awsCredentialsProvider, streamName);
         this.fragmentNumbers = fragmentNumbers;
+        this.fragmentMediaCache = fragmentMediaCache;
 
         this.elementVisitor = elementVisitor;
         amazonKinesisVideoArchivedMedia = AmazonKinesisVideoArchivedMediaClient
@@ -43,39 +51,49 @@ public class GetMediaForFragmentListBatchWorker extends KinesisVideoCommon imple
                                                             final AWSCredentialsProvider awsCredentialsProvider,
                                                             final Regions region,
                                                             final AmazonKinesisVideo amazonKinesisVideo,
-                                                            final MkvElementVisitor elementVisitor) {
+                                                            final MkvElementVisitor elementVisitor,
+                                                            final FragmentMediaCache fragmentMediaCache) {
         final GetDataEndpointRequest request = new GetDataEndpointRequest()
                 .withAPIName(APIName.GET_MEDIA_FOR_FRAGMENT_LIST).withStreamName(streamName);
         final String endpoint = amazonKinesisVideo.getDataEndpoint(request).getDataEndpoint();
         return new GetMediaForFragmentListBatchWorker(
-                streamName, fragmentNumbers, awsCredentialsProvider, endpoint, region, elementVisitor);
+                streamName, fragmentNumbers, awsCredentialsProvider, endpoint, region, elementVisitor, fragmentMediaCache);
+    }
+
+    private InputStream getMediaForFragmentList(final List<String> fragmentNumbers) {
+        final GetMediaForFragmentListResult result = amazonKinesisVideoArchivedMedia.getMediaForFragmentList(
+                new GetMediaForFragmentListRequest()
+                        .withFragments(fragmentNumbers)
+                        .withStreamName(streamName));
+
+        log.info("GetMediaForFragmentListBatch called on stream {} response {} requestId {}",
+                streamName,
+                result.getSdkHttpMetadata().getHttpStatusCode(),
+                result.getSdkResponseMetadata().getRequestId());
+        return result.getPayload();
     }
 
     @Override
     public void run() {
+        final long startTime = System.nanoTime();
         try {
             log.info("Start GetMediaForFragmentListBatch worker on stream {}", streamName);
-            final GetMediaForFragmentListResult result = amazonKinesisVideoArchivedMedia.getMediaForFragmentList(
-                    new GetMediaForFragmentListRequest()
-                            .withFragments(fragmentNumbers)
-                            .withStreamName(streamName));
-
-            log.info("GetMediaForFragmentListBatch called on stream {} response {} requestId {}",
-                    streamName,
-                    result.getSdkHttpMetadata().getHttpStatusCode(),
-                    result.getSdkResponseMetadata().getRequestId());
-            final StreamingMkvReader mkvStreamReader = StreamingMkvReader.createDefault(
-                    new InputStreamParserByteSource(result.getPayload()));
-            log.info("StreamingMkvReader created for stream {} ", streamName);
-            try {
+            /* Fragments already in the local media cache are not downloaded again */
+            try (InputStream payload = fragmentMediaCache.getMedia(streamName, fragmentNumbers, this::getMediaForFragmentList)) {
+                final StreamingMkvReader mkvStreamReader = StreamingMkvReader.createDefault(
+                        new InputStreamParserByteSource(payload));
+                log.info("StreamingMkvReader created for stream {} ", streamName);
                 mkvStreamReader.apply(this.elementVisitor);
             } catch (final MkvElementVisitException e) {
                 log.warn("Exception while accepting visitor {}", e);
+            } catch (final IOException e) {
+                throw new UncheckedIOException(e);
             }
         } catch (final Throwable t) {
             log.error("Failure in GetMediaForFragmentListBatchWorker for streamName {} {}", streamName, t);
             throw t;
         } finally {
+            PipelineMetrics.TASK.recordSince(startTime);
             log.info("Exiting GetMediaWorker for stream {}", streamName);
         }
     }
@@ -11,6 +11,7 @@ import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.client.builder.AwsClientBuilder;
 
 import com.amazonaws.kinesisvideo.parser.examples.KinesisVideoCommon;
+import com.amazonaws.kinesisvideo.utilities.FragmentIndex;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
@@ -25,14 +26,17 @@ import lombok.extern.slf4j.Slf4j;
 public class ListFragmentWorker extends KinesisVideoCommon implements Callable {
     private final FragmentSelector fragmentSelector;
     private final AmazonKinesisVideoArchivedMedia amazonKinesisVideoArchivedMedia;
+    private final FragmentIndex fragmentIndex;
     private final long fragmentsPerRequest = 100;
 
     public ListFragmentWorker(final String streamName,
                               final AWSCredentialsProvider awsCredentialsProvider, final String endPoint,
                               final Regions region,
-                              final FragmentSelector fragmentSelector) {
+                              final FragmentSelector fragmentSelector,
+                              final FragmentIndex fragmentIndex) {
         super(region, awsCredentialsProvider, streamName);
         this.fragmentSelector = fragmentSelector;
+        this.fragmentIndex = fragmentIndex;
 
         amazonKinesisVideoArchivedMedia = AmazonKinesisVideoArchivedMediaClient
                 .builder()
@@ -45,13 +49,14 @@ public class ListFragmentWorker extends KinesisVideoCommon implements Callable {
                                             final AWSCredentialsProvider awsCredentialsProvider,
                                             final Regions region,
                                             final AmazonKinesisVideo amazonKinesisVideo,
-                                            final FragmentSelector fragmentSelector) {
+                                            final FragmentSelector fragmentSelector,
+                                            final FragmentIndex fragmentIndex) {
         final GetDataEndpointRequest request = new GetDataEndpointRequest()
                 .withAPIName(APIName.LIST_FRAGMENTS).withStreamName(streamName);
         final String endpoint = amazonKinesisVideo.getDataEndpoint(request).getDataEndpoint();
 
         return new ListFragmentWorker(
-                streamName, awsCredentialsProvider, endpoint, region, fragmentSelector);
+                streamName, awsCredentialsProvider, endpoint, region, fragmentSelector, fragmentIndex);
     }
 
     @Override
@@ -60,33 +65,14 @@ public class ListFragmentWorker extends KinesisVideoCommon implements Callable {
         try {
             log.info("Start ListFragment worker on stream {}", streamName);
 
-            ListFragmentsRequest request = new ListFragmentsRequest()
-                    .withStreamName(streamName).withFragmentSelector(fragmentSelector).withMaxResults(fragmentsPerRequest);
+            /* The fragment index is kept by server timestamp, producer timestamp selectors always go to the service */
+            List<Fragment> fragments = FragmentSelectorType.SERVER_TIMESTAMP.toString().equals(fragmentSelector.getFragmentSelectorType())
+                    ? fragmentIndex.getFragments(fragmentSelector.getTimestampRange(), this::listFragments)
+                    : listFragments(fragmentSelector.getTimestampRange());
 
-            ListFragmentsResult result = amazonKinesisVideoArchivedMedia.listFragments(request);
-
-
-            log.info("List Fragments called on stream {} response {} request ID {}",
-                    streamName,
-                    result.getSdkHttpMetadata().getHttpStatusCode(),
-                    result.getSdkResponseMetadata().getRequestId());
-
-            for (Fragment f : result.getFragments()) {
+            for (Fragment f : fragments) {
                 fragmentNumbers.add(f.getFragmentNumber());
             }
-            String nextToken = result.getNextToken();
-
-            /* If result is truncated, keep making requests until nextToken is empty */
-            while (nextToken != null) {
-                request = new ListFragmentsRequest()
-                        .withStreamName(streamName).withNextToken(nextToken);
-                result = amazonKinesisVideoArchivedMedia.listFragments(request);
-
-                for (Fragment f : result.getFragments()) {
-                    fragmentNumbers.add(f.getFragmentNumber());
-                }
-                nextToken = result.getNextToken();
-            }
             Collections.sort(fragmentNumbers);
         } catch (Throwable t) {
             log.error("Failure in ListFragmentWorker for streamName {} {}", streamName, t.toString());
@@ -96,4 +82,34 @@ public class ListFragmentWorker extends KinesisVideoCommon implements Callable {
             return fragmentNumbers;
         }
     }
+
+    private List<Fragment> listFragments(final TimestampRange timestampRange) {
+        ListFragmentsRequest request = new ListFragmentsRequest()
+                .withStreamName(streamName)
+                .withFragmentSelector(new FragmentSelector()
+                        .withFragmentSelectorType(fragmentSelector.getFragmentSelectorType())
+                        .withTimestampRange(timestampRange))
+                .withMaxResults(fragmentsPerRequest);
+
+        ListFragmentsResult result = amazonKinesisVideoArchivedMedia.listFragments(request);
+
+        log.info("List Fragments called on stream {} response {} request ID {}",
+                streamName,
+                result.getSdkHttpMetadata().getHttpStatusCode(),
+                result.getSdkResponseMetadata().getRequestId());
+
+        List<Fragment> fragments = new ArrayList<>(result.getFragments());
+        String nextToken = result.getNextToken();
+
+        /* If result is truncated, keep making requests until nextToken is empty */
+        while (nextToken != null) {
+            request = new ListFragmentsRequest()
+                    .withStreamName(streamName).withNextToken(nextToken);
+            result = amazonKinesisVideoArchivedMedia.listFragments(request);
+
+            fragments.addAll(result.getFragments());
+            nextToken = result.getNextToken();
+        }
+        return fragments;
+    }
 }
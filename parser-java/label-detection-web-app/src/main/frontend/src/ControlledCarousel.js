@@ -16,7 +16,7 @@ const ControlledCarousel = (props) => {
         <Carousel activeIndex={props.index} onSelect={handleSelect}>
             {frames && frames.map((frame, index) => (
               <Carousel.Item key={index}>
-                <img src={`data:image/png;base64,${frame.imageBytes}`}/>
+                <img src={"http://localhost:8080/images/" + frame.imageHash} alt={frame.playbackTimestamp}/>
                 <Carousel.Caption>
                   <h1>{frame.playbackTimestamp}</h1>
                 </Carousel.Caption>
@@ -17,14 +17,45 @@ const Stream = () => {
     const [carouselIndex, setCarouselIndex] = useState(0);
     const [label, setLabel] = useState();
     
-    const fetchStreamInfo = async () => {
+    const [progress, setProgress] = useState();
+    const [frames, setFrames] = useState([]);
+
+    /* Analysis runs as a background job, its progress is streamed until it is done */
+    const followJob = (job) => {
+      const events = new EventSource("http://localhost:8080/jobs/" + job.id + "/events");
+      events.addEventListener("progress", event => {
+        const update = JSON.parse(event.data);
+        setProgress(update);
+        if (update.status === "SUCCEEDED" || update.status === "FAILED") {
+          events.close();
+          fetchStreamInfo(false);
+        }
+      });
+      events.onerror = () => events.close();
+    };
+
+    /* Frames come a page at a time, the stream is analyzed when it has none yet */
+    const fetchFrames = (page, loaded, analyze) => {
+      axios.get("http://localhost:8080/streams/" + id + "/frames?size=500&page=" + page).then(res => {
+        const all = loaded.concat(res.data.content);
+        if (!res.data.last) {
+          fetchFrames(page + 1, all, analyze);
+        } else if (analyze && all.length === 0) {
+          axios.post("http://localhost:8080/streams/" + id + "/jobs").then(job => followJob(job.data));
+        } else {
+          setFrames(all);
+          setLoading(false);
+        }
+      });
+    };
+
+    const fetchStreamInfo = async (analyze) => {
       try {
         setLoading(true);
         axios.get("http://localhost:8080/streams/" + id).then(res => {
           console.log(res);
-          console.log(res.data.length);
           setStream(res.data);
-          setLoading(false);
+          fetchFrames(0, [], analyze);
         });
       } catch (err) {
         console.log(err);
@@ -35,10 +66,9 @@ const Stream = () => {
 
 
     useEffect(() => {
-      fetchStreamInfo();
+      fetchStreamInfo(true);
     }, []);
   
-    var frames = Stream.frames; 
     var labelToTimestamps = Stream.labelToTimestamps;
     var timestamps;
     var labels;
@@ -75,6 +105,10 @@ const Stream = () => {
   return (
     <React.Fragment>
       {loading ? <LoadingIndicator/> : <h2>{Stream.name} Frame Viewer</h2>}
+      {loading && progress ?
+        <p>{progress.fragmentsProcessed} of {progress.fragmentCount} fragments, {progress.framesProcessed} frames
+          {progress.etaSeconds >= 0 ? ", about " + progress.etaSeconds + " seconds left" : ""}</p> : null}
+      {!loading && progress && progress.status === "FAILED" ? <p>Analysis failed: {progress.error}</p> : null}
       {loading ? null :
       <div id="dropdown-wrapper">
         <DropdownButton id="dropdown-labels-button" title="Labels" style={{margin:'7.5px'}}>
@@ -87,6 +121,8 @@ const Stream = () => {
             <DropdownTimestamps index={index} key={index} timestampsDisplaying={TimestampsDisplaying} labels={labels} timestampCollection={timestampCollection} timestamps={timestamps} onClick={handleCarouselIndexChange}></DropdownTimestamps>
           ))}
         </DropdownButton>
+        {/* Plays the annotated frames as an MJPEG stream rather than one image at a time */}
+        <a href={"http://localhost:8080/streams/" + id + "/clip"} target="_blank" rel="noopener noreferrer" style={{margin:'7.5px'}}>Play annotated frames</a>
       </div>
       }
       <h1></h1>
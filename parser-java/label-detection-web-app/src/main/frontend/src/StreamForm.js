@@ -35,7 +35,8 @@ const StreamForm = props => {
                 startTimestamp: formattedStartTimestamp,
                 endTimestamp: formattedEndTimestamp,
                 threads: event.target[3].value,
-                sampleRate: event.target[4].value
+                sampleRate: event.target[4].value,
+                maxSampleRate: event.target[5].value || 0
             })
             .then(res => {
                 console.log("Successfully submitted")
@@ -98,6 +99,15 @@ const StreamForm = props => {
                     </Form.Row>
                 </Form.Group>
 
+                <Form.Group>
+                    <Form.Row className="form-group">
+                        <Col>
+                            <Form.Label>Max Sample Rate</Form.Label>
+                            <Form.Control type="int" name="maxSampleRate" placeholder="Optional, adapts sampling between the sample rate and this"/>
+                        </Col>
+                    </Form.Row>
+                </Form.Group>
+
                 <Button variant="primary" type="Submit">
                     Submit
                 </Button>
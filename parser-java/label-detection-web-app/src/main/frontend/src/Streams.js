@@ -9,9 +9,9 @@ const Streams = () => {
     const [streams, setStreams] = useState([]);
   
     const fetchStreams = () => {
-      axios.get("http://localhost:8080/streams").then(res => {
+      axios.get("http://localhost:8080/streams?size=100").then(res => {
         console.log(res);
-        setStreams(res.data);
+        setStreams(res.data.content);
       });
     };
   
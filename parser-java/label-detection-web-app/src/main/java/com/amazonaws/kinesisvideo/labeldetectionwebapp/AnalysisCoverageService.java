@@ -0,0 +1,155 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions.ArchivedVideoStreamNotFoundException;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.FragmentIndex;
+import com.amazonaws.services.kinesisvideo.model.TimestampRange;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/* Knows which time ranges of each stream record were analyzed and with what, so that a job only analyzes the rest.
+ *
+ * When the start, the sample rates or the detector of a record changed since a range was analyzed, its results no
+ * longer fit with new ones, so they are removed and the whole record is analyzed again. Otherwise only the parts of
+ * the record outside every analyzed range are analyzed, and their frames and labels are added to those already there. */
+@Slf4j
+@Service
+public class AnalysisCoverageService {
+
+    private static final String TIMESTAMP_FORMAT = "dd/MM/yyyy HH:mm:ss";
+    private static final int REMOVE_BATCH_SIZE = 200;
+
+    private final AnalyzedRangeRepository analyzedRangeRepository;
+    private final ArchivedVideoStreamsRepository archivedVideoStreamsRepository;
+    private final JpaFrameRepository jpaFrameRepository;
+    private final LabelIndexService labelIndexService;
+    private final TransactionTemplate transactionTemplate;
+
+    AnalysisCoverageService(final AnalyzedRangeRepository analyzedRangeRepository,
+                            final ArchivedVideoStreamsRepository archivedVideoStreamsRepository,
+                            final JpaFrameRepository jpaFrameRepository,
+                            final LabelIndexService labelIndexService,
+                            final PlatformTransactionManager transactionManager) {
+        this.analyzedRangeRepository = analyzedRangeRepository;
+        this.archivedVideoStreamsRepository = archivedVideoStreamsRepository;
+        this.jpaFrameRepository = jpaFrameRepository;
+        this.labelIndexService = labelIndexService;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /* The time range of the record, in server timestamps */
+    public static TimestampRange recordRange(final ArchivedVideoStream stream) throws ParseException {
+        TimestampRange timestampRange = new TimestampRange();
+        timestampRange.setStartTimestamp(new SimpleDateFormat(TIMESTAMP_FORMAT).parse(stream.getStartTimestamp()));
+        timestampRange.setEndTimestamp(new SimpleDateFormat(TIMESTAMP_FORMAT).parse(stream.getEndTimestamp()));
+        return timestampRange;
+    }
+
+    /* Parts of the record left to analyze with its current settings, in time order */
+    public List<TimestampRange> uncovered(final ArchivedVideoStream stream, final String detector) throws ParseException {
+        TimestampRange recordRange = recordRange(stream);
+        List<AnalyzedRange> analyzed = analyzedRangeRepository.findByStreamIdOrderByStartMillis(stream.getId());
+        if (isStale(stream, analyzed, detector)) {
+            return Collections.singletonList(recordRange);
+        }
+        List<TimestampRange> uncovered = new ArrayList<>();
+        long next = recordRange.getStartTimestamp().getTime();
+        long end = recordRange.getEndTimestamp().getTime();
+        for (AnalyzedRange range : analyzed) {
+            if (range.getStartMillis() > next && next <= end) {
+                uncovered.add(range(next, Math.min(range.getStartMillis() - 1, end)));
+            }
+            next = Math.max(next, range.getEndMillis() + 1);
+        }
+        if (next <= end) {
+            uncovered.add(range(next, end));
+        }
+        return uncovered;
+    }
+
+    /* The parts of the ranges that are settled at the given time. Fragments may still arrive for the most recent
+     * server timestamps, which the fragment index leaves unsettled for that reason, so a job only analyzes and records
+     * what is settled and leaves the rest to a later job. */
+    public static List<TimestampRange> settled(final List<TimestampRange> ranges, final long nowMillis) {
+        long settled = nowMillis - FragmentIndex.SETTLE_MILLIS;
+        List<TimestampRange> settledRanges = new ArrayList<>();
+        for (TimestampRange range : ranges) {
+            if (range.getStartTimestamp().getTime() > settled) {
+                break;
+            }
+            settledRanges.add(range(range.getStartTimestamp().getTime(), Math.min(range.getEndTimestamp().getTime(), settled)));
+        }
+        return settledRanges;
+    }
+
+    /* Whether the record has results that do not fit its current settings, including results from before analyzed
+     * ranges were kept */
+    public boolean isStale(final ArchivedVideoStream stream, final String detector) throws ParseException {
+        return isStale(stream, analyzedRangeRepository.findByStreamIdOrderByStartMillis(stream.getId()), detector);
+    }
+
+    /* Keeps the ranges as analyzed with the current settings of the record */
+    public void record(final ArchivedVideoStream stream, final String detector, final List<TimestampRange> ranges)
+            throws ParseException {
+        List<AnalyzedRange> analyzed = new ArrayList<>();
+        for (TimestampRange range : ranges) {
+            analyzed.add(analyzedLikeNow(stream, detector, range));
+        }
+        analyzedRangeRepository.saveAll(analyzed);
+        log.info("Stream {} has {} more analyzed ranges", stream.getId(), analyzed.size());
+    }
+
+    /* Removes every result of the record: frames, labels and analyzed ranges */
+    public void clear(final Long streamId) {
+        removeFrames(streamId, 0);
+        transactionTemplate.executeWithoutResult(status -> {
+            ArchivedVideoStream stream = archivedVideoStreamsRepository.findById(streamId)
+                    .orElseThrow(() -> new ArchivedVideoStreamNotFoundException(streamId));
+            stream.getLabelToTimestamps().clear();
+            archivedVideoStreamsRepository.save(stream);
+            analyzedRangeRepository.deleteByStream(streamId);
+        });
+        log.info("Removed the results of stream {}", streamId);
+    }
+
+    /* Removes the frames of the record from the given frame id on, with their label occurrences. Only one job runs on
+     * a record at a time and ids only grow, so these are the frames a job wrote when given its first frame id. */
+    public void removeFrames(final Long streamId, final long fromFrameId) {
+        labelIndexService.remove(streamId, fromFrameId);
+        List<Long> ids;
+        while (!(ids = jpaFrameRepository.findIdsByStreamFrom(streamId, fromFrameId, PageRequest.of(0, REMOVE_BATCH_SIZE))).isEmpty()) {
+            final List<Long> batch = ids;
+            transactionTemplate.executeWithoutResult(status ->
+                    jpaFrameRepository.deleteAll(jpaFrameRepository.findWithLabelsByIdIn(batch)));
+        }
+        log.info("Removed the frames of stream {} from frame id {} on", streamId, fromFrameId);
+    }
+
+    private boolean isStale(final ArchivedVideoStream stream, final List<AnalyzedRange> analyzed, final String detector)
+            throws ParseException {
+        if (analyzed.isEmpty()) {
+            return jpaFrameRepository.existsByStreamId(stream.getId()) || !stream.getLabelToTimestamps().isEmpty();
+        }
+        AnalyzedRange now = analyzedLikeNow(stream, detector, recordRange(stream));
+        return analyzed.stream().anyMatch(range -> !range.isAnalyzedLike(now));
+    }
+
+    private static AnalyzedRange analyzedLikeNow(final ArchivedVideoStream stream, final String detector,
+                                                 final TimestampRange range) throws ParseException {
+        return new AnalyzedRange(stream.getId(), range.getStartTimestamp().getTime(), range.getEndTimestamp().getTime(),
+                recordRange(stream).getStartTimestamp().getTime(), stream.getSampleRate(), stream.getMaxSampleRate(), detector);
+    }
+
+    private static TimestampRange range(final long startMillis, final long endMillis) {
+        return new TimestampRange().withStartTimestamp(new Date(startMillis)).withEndTimestamp(new Date(endMillis));
+    }
+}
@@ -0,0 +1,100 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.GetArchivedMedia;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/* One run of the label detection of an archived video stream record, with its progress while it runs */
+@Getter
+public class AnalysisJob {
+
+    public enum Status {
+        QUEUED, RUNNING, SUCCEEDED, FAILED;
+
+        public boolean isDone() {
+            return this == SUCCEEDED || this == FAILED;
+        }
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final Long streamId;
+    private final long createdMillis = System.currentTimeMillis();
+    private volatile Status status = Status.QUEUED;
+    private volatile long startedMillis;
+    private volatile long finishedMillis;
+    private volatile String error;
+
+    /* Progress is read from the running media retrieval, and kept once it finished */
+    @Getter(AccessLevel.NONE)
+    private volatile GetArchivedMedia media;
+    @Getter(AccessLevel.NONE)
+    private volatile long fragmentCount;
+    @Getter(AccessLevel.NONE)
+    private volatile long fragmentsProcessed;
+    @Getter(AccessLevel.NONE)
+    private volatile long framesProcessed;
+
+    @Getter(AccessLevel.NONE)
+    private final List<SseEmitter> subscribers = new CopyOnWriteArrayList<>();
+
+    AnalysisJob(final Long streamId) {
+        this.streamId = streamId;
+    }
+
+    public long getFragmentCount() {
+        GetArchivedMedia running = media;
+        return running != null ? running.getFragmentCount() : fragmentCount;
+    }
+
+    public long getFragmentsProcessed() {
+        GetArchivedMedia running = media;
+        return running != null ? running.getFragmentsProcessed() : fragmentsProcessed;
+    }
+
+    public long getFramesProcessed() {
+        GetArchivedMedia running = media;
+        return running != null ? running.getFramesProcessed() : framesProcessed;
+    }
+
+    /* Remaining time extrapolated from the fragments processed so far, -1 while there is nothing to go by */
+    public long getEtaSeconds() {
+        if (status.isDone()) {
+            return 0;
+        }
+        long total = getFragmentCount();
+        long processed = getFragmentsProcessed();
+        if (status != Status.RUNNING || processed == 0 || total == 0) {
+            return -1;
+        }
+        long elapsedMillis = System.currentTimeMillis() - startedMillis;
+        return Math.max(0, elapsedMillis * (total - processed) / processed / 1000);
+    }
+
+    void started(final GetArchivedMedia media) {
+        this.media = media;
+        this.startedMillis = System.currentTimeMillis();
+        this.status = Status.RUNNING;
+    }
+
+    void finished(final Status status, final String error) {
+        GetArchivedMedia running = media;
+        if (running != null) {
+            fragmentCount = running.getFragmentCount();
+            fragmentsProcessed = running.getFragmentsProcessed();
+            framesProcessed = running.getFramesProcessed();
+            media = null;
+        }
+        this.error = error;
+        this.finishedMillis = System.currentTimeMillis();
+        this.status = status;
+    }
+
+    List<SseEmitter> subscribers() {
+        return subscribers;
+    }
+}
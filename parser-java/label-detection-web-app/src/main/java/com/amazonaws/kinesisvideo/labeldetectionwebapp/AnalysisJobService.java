@@ -0,0 +1,299 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import com.amazonaws.auth.profile.ProfileCredentialsProvider;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions.AnalysisJobNotFoundException;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions.AnalysisJobRejectedException;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions.ArchivedVideoStreamAlreadyAnalyzedException;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions.ArchivedVideoStreamNotFoundException;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.FrameBlobStore;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.FrameDetector;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.FrameSink;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.GetArchivedMedia;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.kinesisvideo.model.TimestampRange;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+/* Runs the label detection of archived video stream records in the background, a few at a time.
+ *
+ * Jobs wait in a bounded queue for one of the job threads, and are refused once the queue is full. A stream has at
+ * most one job queued or running, which every request to analyze it gets. Subscribers get a progress event every
+ * second while the job runs and a last one once it is done. Jobs are kept in memory, the results in the database,
+ * where frames are written behind the detection as the job goes. A job only analyzes the parts of the record that no
+ * earlier job analyzed with the same settings, so that extending a record only costs the extension. */
+@Slf4j
+@Service
+public class AnalysisJobService {
+
+    private static final String PROGRESS_EVENT = "progress";
+    private static final int MAX_FINISHED_JOBS = 100;
+
+    private final ArchivedVideoStreamsRepository archivedVideoStreamsRepository;
+    private final JpaFrameRepository jpaFrameRepository;
+    private final LabelIndexService labelIndexService;
+    private final LabelOccurrenceRepository labelOccurrenceRepository;
+    private final AnalysisCoverageService analysisCoverageService;
+    private final FrameBlobStore frameBlobStore;
+    private final TransactionTemplate transactionTemplate;
+    private final ThreadPoolExecutor jobExecutor;
+    private final ScheduledExecutorService progressPublisher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "analysis-job-progress");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final long subscriptionTimeoutMillis;
+    private final int writeBatchSize;
+    private final int writeQueueCapacity;
+
+    /* rekognition, or stub to process archives without calling Rekognition */
+    @Value("${kvs.detector:" + FrameDetector.REKOGNITION + "}")
+    private String frameDetector;
+
+    /* Fragment index, media and detection caches, used by this process alone, by default in ~/.kvs-archived-media */
+    @Value("${kvs.cache.directory:}")
+    private String cacheDirectory;
+
+    private final Map<String, AnalysisJob> jobs = new LinkedHashMap<>();
+    private final Map<Long, AnalysisJob> activeJobs = new ConcurrentHashMap<>();
+
+    AnalysisJobService(final ArchivedVideoStreamsRepository archivedVideoStreamsRepository,
+                       final JpaFrameRepository jpaFrameRepository,
+                       final LabelIndexService labelIndexService,
+                       final LabelOccurrenceRepository labelOccurrenceRepository,
+                       final AnalysisCoverageService analysisCoverageService,
+                       final PlatformTransactionManager transactionManager,
+                       final FrameBlobStore frameBlobStore,
+                       @Value("${kvs.jobs.threads:2}") final int threads,
+                       @Value("${kvs.jobs.queue-capacity:16}") final int queueCapacity,
+                       @Value("${kvs.jobs.subscription-timeout-ms:3600000}") final long subscriptionTimeoutMillis,
+                       @Value("${kvs.frames.write-batch-size:50}") final int writeBatchSize,
+                       @Value("${kvs.frames.write-queue-capacity:500}") final int writeQueueCapacity) {
+        this.archivedVideoStreamsRepository = archivedVideoStreamsRepository;
+        this.jpaFrameRepository = jpaFrameRepository;
+        this.labelIndexService = labelIndexService;
+        this.labelOccurrenceRepository = labelOccurrenceRepository;
+        this.analysisCoverageService = analysisCoverageService;
+        this.frameBlobStore = frameBlobStore;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        AtomicInteger threadCount = new AtomicInteger();
+        this.jobExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity), runnable -> new Thread(runnable, "analysis-job-" + threadCount.incrementAndGet()));
+        this.subscriptionTimeoutMillis = subscriptionTimeoutMillis;
+        this.writeBatchSize = writeBatchSize;
+        this.writeQueueCapacity = writeQueueCapacity;
+        progressPublisher.scheduleAtFixedRate(this::publishProgress, 1, 1, TimeUnit.SECONDS);
+        log.info("Analysis jobs run on {} threads with up to {} queued", threads, queueCapacity);
+    }
+
+    /* Queues the analysis of the stream, or returns the job already queued or running for it */
+    public synchronized AnalysisJob submit(final Long streamId) {
+        AnalysisJob active = activeJobs.get(streamId);
+        if (active != null) {
+            log.info("Stream {} is already analyzed by job {}", streamId, active.getId());
+            return active;
+        }
+        ArchivedVideoStream stream = archivedVideoStreamsRepository.findById(streamId)
+                .orElseThrow(() -> new ArchivedVideoStreamNotFoundException(streamId));
+        if (isAnalyzed(stream)) {
+            throw new ArchivedVideoStreamAlreadyAnalyzedException(streamId);
+        }
+
+        AnalysisJob job = new AnalysisJob(streamId);
+        /* Known before it runs, since a job can finish and forget itself before execute even returns */
+        activeJobs.put(streamId, job);
+        remember(job);
+        try {
+            jobExecutor.execute(() -> run(job));
+        } catch (RejectedExecutionException e) {
+            activeJobs.remove(streamId, job);
+            jobs.remove(job.getId());
+            throw new AnalysisJobRejectedException(streamId);
+        }
+        log.info("Queued job {} for stream {}", job.getId(), streamId);
+        return job;
+    }
+
+    public synchronized AnalysisJob get(final String jobId) {
+        return Optional.ofNullable(jobs.get(jobId)).orElseThrow(() -> new AnalysisJobNotFoundException(jobId));
+    }
+
+    public Optional<AnalysisJob> getActive(final Long streamId) {
+        return Optional.ofNullable(activeJobs.get(streamId));
+    }
+
+    public synchronized List<AnalysisJob> all() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /* Streams the progress of the job, completing once the job is done */
+    public SseEmitter subscribe(final String jobId) throws IOException {
+        AnalysisJob job = get(jobId);
+        SseEmitter emitter = new SseEmitter(subscriptionTimeoutMillis);
+        emitter.onCompletion(() -> job.subscribers().remove(emitter));
+        emitter.onTimeout(() -> job.subscribers().remove(emitter));
+        job.subscribers().add(emitter);
+        emitter.send(SseEmitter.event().name(PROGRESS_EVENT).data(job));
+        /* The job may have finished before the subscriber was added */
+        if (job.getStatus().isDone()) {
+            job.subscribers().remove(emitter);
+            emitter.complete();
+        }
+        return emitter;
+    }
+
+    @PreDestroy
+    void shutdown() {
+        progressPublisher.shutdown();
+        jobExecutor.shutdownNow();
+    }
+
+    /* Whether every part of the record was analyzed with its current settings. A record whose timestamps do not
+     * parse is left to its job to fail on. */
+    private boolean isAnalyzed(final ArchivedVideoStream stream) {
+        try {
+            return analysisCoverageService.uncovered(stream, frameDetector).isEmpty();
+        } catch (ParseException e) {
+            return false;
+        }
+    }
+
+    private void run(final AnalysisJob job) {
+        try {
+            ArchivedVideoStream stream = findStream(job.getStreamId());
+            if (analysisCoverageService.isStale(stream, frameDetector)) {
+                /* Results analyzed with other settings do not fit with new ones, so the record starts over */
+                log.info("Results of stream {} do not fit its current settings, analyzing it again from scratch", stream.getName());
+                analysisCoverageService.clear(stream.getId());
+                stream = findStream(job.getStreamId());
+            }
+            List<TimestampRange> uncovered = analysisCoverageService.uncovered(stream, frameDetector);
+            List<TimestampRange> ranges = AnalysisCoverageService.settled(uncovered, System.currentTimeMillis());
+            if (ranges.isEmpty()) {
+                log.info(uncovered.isEmpty() ? "Stream {} was analyzed by an earlier job"
+                        : "Stream {} has nothing settled left to analyze, fragments may still arrive", stream.getName());
+                job.finished(AnalysisJob.Status.SUCCEEDED, null);
+                return;
+            }
+            FrameWriteBehind frameWriteBehind = new FrameWriteBehind(job.getStreamId(), archivedVideoStreamsRepository,
+                    jpaFrameRepository, labelIndexService, labelOccurrenceRepository, analysisCoverageService,
+                    transactionTemplate, writeBatchSize, writeQueueCapacity);
+            try {
+                GetArchivedMedia getArchivedMedia = createArchivedMedia(stream, ranges, frameWriteBehind);
+                job.started(getArchivedMedia);
+
+                getArchivedMedia.execute();
+                frameWriteBehind.finish();
+            } catch (Exception e) {
+                /* A failed job leaves nothing behind, so that its ranges can be analyzed again */
+                frameWriteBehind.discard();
+                throw e;
+            }
+            analysisCoverageService.record(stream, frameDetector, ranges);
+            log.info("Saved stream {} with {} more frames from {} ranges", stream.getName(),
+                    frameWriteBehind.getFramesWritten(), ranges.size());
+            job.finished(AnalysisJob.Status.SUCCEEDED, null);
+        } catch (InterruptedException e) {
+            job.finished(AnalysisJob.Status.FAILED, "Interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Job {} for stream {} failed", job.getId(), job.getStreamId(), e);
+            job.finished(AnalysisJob.Status.FAILED, e.toString());
+        } finally {
+            activeJobs.remove(job.getStreamId(), job);
+            publish(job);
+            job.subscribers().forEach(SseEmitter::complete);
+            log.info("Job {} for stream {} {} after {} ms", job.getId(), job.getStreamId(), job.getStatus(),
+                    job.getFinishedMillis() - job.getCreatedMillis());
+        }
+    }
+
+    private ArchivedVideoStream findStream(final Long streamId) {
+        return archivedVideoStreamsRepository.findById(streamId)
+                .orElseThrow(() -> new ArchivedVideoStreamNotFoundException(streamId));
+    }
+
+    private GetArchivedMedia createArchivedMedia(final ArchivedVideoStream stream, final List<TimestampRange> ranges,
+                                                 final FrameSink frameSink) throws ParseException {
+        String startTimestamp = stream.getStartTimestamp();
+        String endTimestamp = stream.getEndTimestamp();
+        String streamName = stream.getName();
+        int threads = stream.getThreads();
+
+        TimestampRange timestampRange = AnalysisCoverageService.recordRange(stream);
+
+        /* Tasks for the time left to analyze rather than for the whole record */
+        long timeDuration = ranges.stream()
+                .mapToLong(range -> range.getEndTimestamp().getTime() - range.getStartTimestamp().getTime())
+                .sum();
+        int tasks = (int) (timeDuration / 10000);
+        tasks = Math.max(tasks, threads);
+        log.info("Starting processing with {} tasks and {} threads on {} from {} to {}, {} ranges of it left to analyze",
+                tasks, threads, streamName, startTimestamp, endTimestamp, ranges.size());
+
+        return GetArchivedMedia.builder()
+                .region(Regions.US_WEST_2)
+                .streamName(streamName)
+                .awsCredentialsProvider(new ProfileCredentialsProvider())
+                .sampleRate(stream.getSampleRate())
+                .maxSampleRate(stream.getMaxSampleRate())
+                .frameDetector(frameDetector)
+                .frameBlobStore(frameBlobStore)
+                .cacheDirectory(cacheDirectory == null || cacheDirectory.isEmpty() ? null : Paths.get(cacheDirectory))
+                .frameSink(frameSink)
+                .tasks(tasks)
+                .threads(threads)
+                .timestampRange(timestampRange)
+                .ranges(ranges)
+                .build();
+    }
+
+    /* Finished jobs are forgotten oldest first, jobs that are not done are always kept */
+    private synchronized void remember(final AnalysisJob job) {
+        jobs.put(job.getId(), job);
+        Iterator<AnalysisJob> oldest = jobs.values().iterator();
+        while (jobs.size() > MAX_FINISHED_JOBS && oldest.hasNext()) {
+            if (oldest.next().getStatus().isDone()) {
+                oldest.remove();
+            }
+        }
+    }
+
+    private void publishProgress() {
+        activeJobs.values().forEach(this::publish);
+    }
+
+    private void publish(final AnalysisJob job) {
+        for (SseEmitter emitter : job.subscribers()) {
+            try {
+                emitter.send(SseEmitter.event().name(PROGRESS_EVENT).data(job));
+            } catch (IOException | IllegalStateException e) {
+                /* The client went away */
+                job.subscribers().remove(emitter);
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import lombok.Data;
+
+import javax.persistence.*;
+
+/* A time range of a stream record that an analysis job finished, with what it was analyzed with. Playback positions
+ * count from the start of the record, so the start is part of what the range was analyzed with. */
+@Data
+@Entity
+@Table(indexes = @Index(name = "analyzed_range_stream", columnList = "streamId, startMillis"))
+public class AnalyzedRange {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    @Column(nullable = false)
+    private Long streamId;
+
+    /* Server timestamps of the first and last millisecond of the range */
+    private long startMillis;
+    private long endMillis;
+
+    private long recordStartMillis;
+    private int sampleRate;
+    private int maxSampleRate;
+    private String detector;
+
+    protected AnalyzedRange() {
+    }
+
+    public AnalyzedRange(Long streamId, long startMillis, long endMillis, long recordStartMillis, int sampleRate,
+                         int maxSampleRate, String detector) {
+        this.streamId = streamId;
+        this.startMillis = startMillis;
+        this.endMillis = endMillis;
+        this.recordStartMillis = recordStartMillis;
+        this.sampleRate = sampleRate;
+        this.maxSampleRate = maxSampleRate;
+        this.detector = detector;
+    }
+
+    /* Whether the range was analyzed the way the record would be analyzed now */
+    public boolean isAnalyzedLike(AnalyzedRange other) {
+        return recordStartMillis == other.recordStartMillis && sampleRate == other.sampleRate
+                && maxSampleRate == other.maxSampleRate && detector.equals(other.detector);
+    }
+}
@@ -0,0 +1,17 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+public interface AnalyzedRangeRepository extends JpaRepository<AnalyzedRange, Long> {
+
+    List<AnalyzedRange> findByStreamIdOrderByStartMillis(Long streamId);
+
+    @Modifying
+    @Query("delete from AnalyzedRange r where r.streamId = :streamId")
+    int deleteByStream(@Param("streamId") Long streamId);
+}
@@ -1,26 +1,37 @@
 package com.amazonaws.kinesisvideo.labeldetectionwebapp;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.LazyCollection;
 import org.hibernate.annotations.LazyCollectionOption;
 
 import javax.persistence.*;
 import java.util.*;
 
+/* Read far more often than written, so kept in the second-level cache with its labels when that is enabled */
 @Data
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class ArchivedVideoStream {
 
     private @Id
     @GeneratedValue
     Long id;
 
-    @OneToMany(cascade = CascadeType.ALL)
+    /* Served a page at a time from /streams/{id}/frames rather than with the stream */
+    @JsonIgnore
+    @OneToMany(mappedBy = "stream", cascade = CascadeType.ALL)
+    @OrderBy("playbackMillis ASC, id ASC")
     private List<JpaFrame> frames = new ArrayList<>();
 
 
-    @OneToMany(cascade = CascadeType.ALL)
+    /* Replaced as a whole when a stream is analyzed again from scratch */
+    @OneToMany(cascade = CascadeType.ALL, orphanRemoval = true)
     @LazyCollection(LazyCollectionOption.FALSE)
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     private Map<String, TimestampCollection> labelToTimestamps = new HashMap<>();
 
     private String name;
@@ -28,6 +39,8 @@ public class ArchivedVideoStream {
     private String startTimestamp;
     private String endTimestamp;
     private int sampleRate;
+    /* When above the sample rate, sampling adapts between the two depending on how much the scene changes */
+    private int maxSampleRate;
     private int threads;
 
     protected ArchivedVideoStream() {
@@ -41,6 +54,7 @@ public class ArchivedVideoStream {
     }
 
     public void addFrame(JpaFrame jpaFrame) {
+        jpaFrame.setStream(this);
         this.frames.add(jpaFrame);
     }
 
@@ -49,6 +63,7 @@ public class ArchivedVideoStream {
     }
 
     public void sortFrames() {
-        Collections.sort(this.frames, (f1, f2) -> f1.getFrameNumber().compareTo(f2.getFrameNumber()));
+        this.frames.sort(Comparator.comparingLong(JpaFrame::getPlaybackMillis).thenComparing(JpaFrame::getId,
+                Comparator.nullsLast(Comparator.naturalOrder())));
     }
 }
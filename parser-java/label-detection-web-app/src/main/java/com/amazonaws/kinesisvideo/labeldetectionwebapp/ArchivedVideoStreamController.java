@@ -1,18 +1,38 @@
 package com.amazonaws.kinesisvideo.labeldetectionwebapp;
 
 import java.io.*;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.net.URI;
+import java.net.URLConnection;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ExecutionException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-import com.amazonaws.auth.profile.ProfileCredentialsProvider;
 import com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions.ArchivedVideoStreamNotFoundException;
-import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.GetArchivedMedia;
-import com.amazonaws.regions.Regions;
-import com.amazonaws.services.kinesisvideo.model.*;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions.FrameImageNotFoundException;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.AwsClientRegistry;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.FrameBlobStore;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.web.PageableDefault;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 
 @Slf4j
@@ -21,14 +41,30 @@ import org.springframework.web.bind.annotation.*;
 public class ArchivedVideoStreamController {
 
     private final ArchivedVideoStreamsRepository archivedVideoStreamsRepository;
-
-    ArchivedVideoStreamController(ArchivedVideoStreamsRepository archivedVideoStreamsRepository) {
+    private final JpaFrameRepository jpaFrameRepository;
+    private final AnalysisJobService analysisJobService;
+    private final LabelIndexService labelIndexService;
+    private final FrameBlobStore frameBlobStore;
+    private final FrameClipService frameClipService;
+
+    ArchivedVideoStreamController(ArchivedVideoStreamsRepository archivedVideoStreamsRepository,
+                                  JpaFrameRepository jpaFrameRepository,
+                                  AnalysisJobService analysisJobService,
+                                  LabelIndexService labelIndexService,
+                                  FrameBlobStore frameBlobStore,
+                                  FrameClipService frameClipService) {
         this.archivedVideoStreamsRepository = archivedVideoStreamsRepository;
+        this.jpaFrameRepository = jpaFrameRepository;
+        this.analysisJobService = analysisJobService;
+        this.labelIndexService = labelIndexService;
+        this.frameBlobStore = frameBlobStore;
+        this.frameClipService = frameClipService;
     }
 
+    /* Only the stream records, however many frames they have */
     @GetMapping("/streams")
-    List<ArchivedVideoStream> all() {
-        return archivedVideoStreamsRepository.findAll();
+    Page<ArchivedVideoStreamSummary> all(@PageableDefault(size = 20, sort = "id") Pageable pageable) {
+        return archivedVideoStreamsRepository.findAllProjectedBy(pageable);
     }
 
     @PostMapping("/streams")
@@ -40,55 +76,173 @@ public class ArchivedVideoStreamController {
         return archivedVideoStreamsRepository.save(newArchivedVideoStream);
     }
 
-    @GetMapping("/streams/{id}")
-    ArchivedVideoStream one(@PathVariable Long id) throws IOException, InterruptedException, ParseException, ExecutionException {
+    /* Connection pool utilization of the shared AWS clients */
+    @GetMapping("/clients")
+    Map<String, AwsClientRegistry.ConnectionPoolStatistics> clients() {
+        return AwsClientRegistry.getConnectionPoolStatistics();
+    }
 
-        ArchivedVideoStream streamToUpdate = archivedVideoStreamsRepository.findById(id)
+    /* Changes the time range or the analysis settings of the record and keeps its results, so that the next job
+     * only analyzes the time they do not cover. Results that no longer fit, after the start or the sample rates
+     * changed, are replaced by that job. */
+    @PutMapping("/streams/{id}")
+    ArchivedVideoStream updateArchivedVideoStream(@PathVariable Long id, @RequestBody ArchivedVideoStream update) {
+        if (analysisJobService.getActive(id).isPresent()) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "Stream " + id + " is being analyzed");
+        }
+        ArchivedVideoStream stream = archivedVideoStreamsRepository.findById(id)
                 .orElseThrow(() -> new ArchivedVideoStreamNotFoundException(id));
+        stream.setStartTimestamp(update.getStartTimestamp());
+        stream.setEndTimestamp(update.getEndTimestamp());
+        stream.setSampleRate(update.getSampleRate());
+        stream.setMaxSampleRate(update.getMaxSampleRate());
+        stream.setThreads(update.getThreads());
+        log.info("Updated stream {} to {} - {}", id, stream.getStartTimestamp(), stream.getEndTimestamp());
+        return archivedVideoStreamsRepository.save(stream);
+    }
+
+    /* Stored results only, an empty stream until an analysis job has finished. Frames are listed separately. */
+    @GetMapping("/streams/{id}")
+    ArchivedVideoStream one(@PathVariable Long id) {
+        return archivedVideoStreamsRepository.findWithLabelsById(id)
+                .orElseThrow(() -> new ArchivedVideoStreamNotFoundException(id));
+    }
 
-        log.info("Retrieving stream data: {}", streamToUpdate.getName());
-
-        if (streamToUpdate.getFrames().size() == 0 && streamToUpdate.getLabelToTimestamps().size() == 0) {
-            log.info("Peforming GetMedia on archived stream");
-            String startTimestamp = streamToUpdate.getStartTimestamp();
-            String endTimestamp = streamToUpdate.getEndTimestamp();
-            String streamName = streamToUpdate.getName();
-            int threads = streamToUpdate.getThreads();
-            int sampleRate = streamToUpdate.getSampleRate();
-
-            TimestampRange timestampRange = new TimestampRange();
-            try {
-                timestampRange.setStartTimestamp(new SimpleDateFormat("dd/MM/yyyy HH:mm:ss").parse(startTimestamp));
-                timestampRange.setEndTimestamp(new SimpleDateFormat("dd/MM/yyyy HH:mm:ss").parse(endTimestamp));
-            } catch (java.text.ParseException e) {
-                log.error(e.getMessage());
-                System.exit(1);
+    /* Frames of the stream in playback order, only those with the label when one is given */
+    @GetMapping("/streams/{id}/frames")
+    Page<FrameSummary> frames(@PathVariable Long id, @RequestParam(required = false) String label,
+                              @PageableDefault(size = 50) Pageable pageable) {
+        if (!archivedVideoStreamsRepository.existsById(id)) {
+            throw new ArchivedVideoStreamNotFoundException(id);
+        }
+        /* Frames always come in playback order, the query sets it */
+        Pageable page = PageRequest.of(pageable.getPageNumber(), pageable.getPageSize());
+        Page<Long> ids = label == null
+                ? jpaFrameRepository.findIdsByStream(id, page)
+                : jpaFrameRepository.findIdsByStreamAndLabel(id, label, page);
+        List<FrameSummary> frames = ids.isEmpty() ? Collections.emptyList()
+                : jpaFrameRepository.findWithLabelsByIdIn(ids.getContent()).stream()
+                .map(FrameSummary::of)
+                .collect(Collectors.toList());
+        return new PageImpl<>(frames, page, ids.getTotalElements());
+    }
+
+    /* When labels were seen between two playback positions, given in milliseconds or as [[HH:]mm:]ss */
+    @GetMapping("/streams/{id}/labels/intervals")
+    Map<String, List<LabelInterval>> labelIntervals(@PathVariable Long id,
+                                                    @RequestParam(required = false) String label,
+                                                    @RequestParam(required = false) String from,
+                                                    @RequestParam(required = false) String to,
+                                                    @RequestParam(defaultValue = "0") float minConfidence,
+                                                    @RequestParam(defaultValue = "" + LabelIndexService.DEFAULT_GAP_MILLIS) long gapMillis) {
+        if (!archivedVideoStreamsRepository.existsById(id)) {
+            throw new ArchivedVideoStreamNotFoundException(id);
+        }
+        return labelIndexService.intervals(id, label, from == null ? 0 : parsePlaybackMillis(from),
+                to == null ? Long.MAX_VALUE : parsePlaybackMillis(to), minConfidence, gapMillis);
+    }
+
+    /* The annotated frames between two playback positions as an MJPEG stream, written as it is read. With a Range
+     * header only that range of it is sent, so players can seek without downloading every frame before. */
+    @GetMapping("/streams/{id}/clip")
+    ResponseEntity<StreamingResponseBody> clip(@PathVariable Long id,
+                                               @RequestParam(required = false) String from,
+                                               @RequestParam(required = false) String to,
+                                               @RequestHeader(value = HttpHeaders.RANGE, required = false) String range) {
+        if (!archivedVideoStreamsRepository.existsById(id)) {
+            throw new ArchivedVideoStreamNotFoundException(id);
+        }
+        long fromMillis = from == null ? 0 : parsePlaybackMillis(from);
+        long toMillis = to == null ? Long.MAX_VALUE : parsePlaybackMillis(to);
+        FrameClipService.Clip clip = frameClipService.clip(id, fromMillis, toMillis);
+        ResponseEntity.BodyBuilder response = ResponseEntity.ok();
+        long start = 0;
+        long end = Long.MAX_VALUE;
+        List<HttpRange> ranges = parseRanges(range);
+        /* Several ranges at once are not served, the whole clip is sent instead as the Range header allows. So is a
+         * range while a job works on the stream, since the job may remove frames of the clip before it is written. */
+        if (ranges.size() == 1 && !analysisJobService.getActive(id).isPresent()) {
+            long length = frameClipService.length(clip);
+            HttpRange httpRange = ranges.get(0);
+            if (httpRange.getRangeStart(length) >= length) {
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                        .header(HttpHeaders.CONTENT_RANGE, "bytes */" + length).build();
             }
+            start = httpRange.getRangeStart(length);
+            end = httpRange.getRangeEnd(length);
+            response = ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length)
+                    .contentLength(end - start + 1);
+        }
+        long rangeStart = start;
+        long rangeEnd = end;
+        return response
+                .header(HttpHeaders.ACCEPT_RANGES, "bytes")
+                .contentType(FrameClipService.CONTENT_TYPE)
+                .body(out -> frameClipService.write(clip, rangeStart, rangeEnd, out));
+    }
 
-            long timeDuration = timestampRange.getEndTimestamp().getTime() - timestampRange.getStartTimestamp().getTime();
-            int tasks = (int) timeDuration / 10000;
-            tasks = Math.max(tasks, threads);
-            log.info("Starting processing with {} tasks and {} threads on {} from {} to {}", tasks, threads, streamName, startTimestamp, endTimestamp);
-
-            GetArchivedMedia getArchivedMedia = GetArchivedMedia.builder()
-                    .region(Regions.US_WEST_2)
-                    .streamName(streamName)
-                    .awsCredentialsProvider(new ProfileCredentialsProvider())
-                    .sampleRate(sampleRate)
-                    .tasks(tasks)
-                    .threads(threads)
-                    .timestampRange(timestampRange)
-                    .build();
-
-            getArchivedMedia.execute();
-
-            getArchivedMedia.getLabelToTimestamps().forEach((k, v) -> streamToUpdate.addLabelAndTimestampCollection(k, v));
-            getArchivedMedia.getFrames().forEach((k, v) -> streamToUpdate.addFrame(k));
-
-            streamToUpdate.sortFrames();
-            archivedVideoStreamsRepository.save(streamToUpdate);
-            log.info("Saved stream {} with {} frames and {} labels", streamToUpdate.getName(), streamToUpdate.getFrames().size(), streamToUpdate.getLabelToTimestamps().size());
+    /* Images never change under their hash, so clients and proxies may keep them for good */
+    @GetMapping("/images/{hash}")
+    ResponseEntity<Resource> image(@PathVariable String hash) throws IOException {
+        Path path = frameBlobStore.find(hash).orElseThrow(() -> new FrameImageNotFoundException(hash));
+        String contentType;
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+            contentType = URLConnection.guessContentTypeFromStream(in);
+        }
+        return ResponseEntity.ok()
+                .eTag(hash)
+                .cacheControl(CacheControl.maxAge(365, TimeUnit.DAYS).cachePublic())
+                .contentType(contentType != null ? MediaType.parseMediaType(contentType) : MediaType.APPLICATION_OCTET_STREAM)
+                .contentLength(Files.size(path))
+                .body(new FileSystemResource(path));
+    }
+
+    /* Starts analyzing the stream in the background, or returns the job already analyzing it */
+    @PostMapping("/streams/{id}/jobs")
+    ResponseEntity<AnalysisJob> analyze(@PathVariable Long id) {
+        AnalysisJob job = analysisJobService.submit(id);
+        log.info("Analysis of stream {} runs as job {}", id, job.getId());
+        return ResponseEntity.accepted().location(URI.create("/jobs/" + job.getId())).body(job);
+    }
+
+    @GetMapping("/jobs")
+    List<AnalysisJob> jobs() {
+        return analysisJobService.all();
+    }
+
+    @GetMapping("/jobs/{jobId}")
+    AnalysisJob job(@PathVariable String jobId) {
+        return analysisJobService.get(jobId);
+    }
+
+    /* Server-sent progress events, the last one once the job is done */
+    @GetMapping(path = "/jobs/{jobId}/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    SseEmitter jobEvents(@PathVariable String jobId) throws IOException {
+        return analysisJobService.subscribe(jobId);
+    }
+
+    private static List<HttpRange> parseRanges(String range) {
+        try {
+            return HttpRange.parseRanges(range);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE, "Invalid range: " + range);
+        }
+    }
+
+    /* A playback position in milliseconds, or as [[hh:]mm:]ss */
+    static long parsePlaybackMillis(String playbackTime) {
+        try {
+            if (!playbackTime.contains(":")) {
+                return Long.parseLong(playbackTime);
+            }
+            long seconds = 0;
+            for (String field : playbackTime.split(":")) {
+                seconds = seconds * 60 + Long.parseLong(field);
+            }
+            return TimeUnit.SECONDS.toMillis(seconds);
+        } catch (NumberFormatException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid playback time: " + playbackTime);
         }
-        return streamToUpdate;
     }
 }
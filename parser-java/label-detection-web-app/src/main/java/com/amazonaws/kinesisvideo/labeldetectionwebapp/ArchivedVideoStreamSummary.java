@@ -0,0 +1,19 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+/* The columns of a stream record without its frames and labels, which is all a listing of the streams needs */
+public interface ArchivedVideoStreamSummary {
+
+    Long getId();
+
+    String getName();
+
+    String getStartTimestamp();
+
+    String getEndTimestamp();
+
+    int getSampleRate();
+
+    int getMaxSampleRate();
+
+    int getThreads();
+}
@@ -1,5 +1,23 @@
 package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+import java.util.Optional;
+
+import javax.persistence.QueryHint;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 
 public interface ArchivedVideoStreamsRepository extends JpaRepository <ArchivedVideoStream, Long> {
+
+    /* Selects only the columns of the summary, never the frames */
+    Page<ArchivedVideoStreamSummary> findAllProjectedBy(Pageable pageable);
+
+    /* The stream with its labels and their timestamps, in one query. Distinct only applies to the stream in memory,
+     * in SQL it would also drop the same timestamp seen in two frames of a label. */
+    @QueryHints(@QueryHint(name = "hibernate.query.passDistinctThrough", value = "false"))
+    @Query("select distinct s from ArchivedVideoStream s left join fetch s.labelToTimestamps t left join fetch t.timestamps where s.id = :id")
+    Optional<ArchivedVideoStream> findWithLabelsById(@Param("id") Long id);
 }
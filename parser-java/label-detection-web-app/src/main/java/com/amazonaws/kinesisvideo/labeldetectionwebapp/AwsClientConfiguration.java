@@ -0,0 +1,26 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import javax.annotation.PostConstruct;
+
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.AwsClientRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+
+/* Tunes the AWS clients shared by all archived media requests */
+@Configuration
+@Slf4j
+public class AwsClientConfiguration {
+
+    @Value("${kvs.clients.max-connections:" + AwsClientRegistry.DEFAULT_MAX_CONNECTIONS + "}")
+    private int maxConnections;
+
+    @Value("${kvs.clients.tcp-keep-alive:true}")
+    private boolean tcpKeepAlive;
+
+    @PostConstruct
+    void configureClients() {
+        log.info("AWS clients use up to {} connections each, TCP keep-alive {}", maxConnections, tcpKeepAlive);
+        AwsClientRegistry.configure(maxConnections, tcpKeepAlive);
+    }
+}
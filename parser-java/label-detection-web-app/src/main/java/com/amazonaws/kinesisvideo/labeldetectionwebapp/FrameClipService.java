@@ -0,0 +1,191 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.FrameBlobStore;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Service;
+
+/* Serves the annotated frames of a stream as one multipart/x-mixed-replace response, the MJPEG that browsers and
+ * most players show as a video, with one frame image per part in playback order.
+ *
+ * The layout of a clip only depends on the frame records, so its length and where each frame starts are known
+ * without reading a single image. A clip is written as it is read, a page of frame records at a time, and a byte
+ * range of it is written by skipping the frames before the range.
+ *
+ * A clip is taken at the last frame id of its stream, and both its length and its bytes only cover the frames up to
+ * that id, so frames a job saves in the meantime change neither. Its length is kept once worked out, so that the
+ * requests of a player seeking through the same clip do not read every frame record again. */
+@Slf4j
+@Service
+public class FrameClipService {
+
+    public static final String BOUNDARY = "kvsframe";
+    public static final MediaType CONTENT_TYPE = MediaType.parseMediaType("multipart/x-mixed-replace;boundary=" + BOUNDARY);
+
+    private static final int PAGE_SIZE = 200;
+    private static final int MAX_CACHED_LENGTHS = 256;
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] CLOSE_DELIMITER = ("--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+
+    private final JpaFrameRepository jpaFrameRepository;
+    private final FrameBlobStore frameBlobStore;
+    private final Map<Clip, Long> lengths = Collections.synchronizedMap(new LinkedHashMap<Clip, Long>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<Clip, Long> eldest) {
+            return size() > MAX_CACHED_LENGTHS;
+        }
+    });
+
+    /* The frames of a stream between two playback positions, up to the last frame id the stream had when the clip
+     * was taken. The frame count tells clips apart once frames were removed. */
+    @Value
+    public static class Clip {
+        Long streamId;
+        long fromMillis;
+        long toMillis;
+        long lastFrameId;
+        long frameCount;
+    }
+
+    FrameClipService(final JpaFrameRepository jpaFrameRepository, final FrameBlobStore frameBlobStore) {
+        this.jpaFrameRepository = jpaFrameRepository;
+        this.frameBlobStore = frameBlobStore;
+    }
+
+    /* The clip of the frames the stream has now between the two playback positions */
+    public Clip clip(final Long streamId, final long fromMillis, final long toMillis) {
+        Long lastFrameId = jpaFrameRepository.findLastIdByStream(streamId);
+        return new Clip(streamId, fromMillis, toMillis, lastFrameId != null ? lastFrameId : Long.MIN_VALUE,
+                jpaFrameRepository.countByStreamId(streamId));
+    }
+
+    /* Length in bytes of the clip */
+    public long length(final Clip clip) {
+        Long length = lengths.get(clip);
+        if (length == null) {
+            length = layOut(clip);
+            lengths.put(clip, length);
+        }
+        return length;
+    }
+
+    private long layOut(final Clip clip) {
+        long length = 0;
+        JpaFrameRepository.FrameImage last = null;
+        List<JpaFrameRepository.FrameImage> frames;
+        while (!(frames = page(clip, last)).isEmpty()) {
+            for (JpaFrameRepository.FrameImage frame : frames) {
+                length += header(frame).length + frame.getImageSize() + CRLF.length;
+            }
+            last = frames.get(frames.size() - 1);
+        }
+        return length + CLOSE_DELIMITER.length;
+    }
+
+    /* Writes the bytes from start to end, both included, of the clip, flushing after every frame so that clients
+     * show frames as they arrive */
+    public void write(final Clip clip, final long start, final long end, final OutputStream out) throws IOException {
+        long offset = 0;
+        JpaFrameRepository.FrameImage last = null;
+        List<JpaFrameRepository.FrameImage> frames;
+        while (offset <= end && !(frames = page(clip, last)).isEmpty()) {
+            last = frames.get(frames.size() - 1);
+            for (JpaFrameRepository.FrameImage frame : frames) {
+                byte[] header = header(frame);
+                long partEnd = offset + header.length + frame.getImageSize() + CRLF.length;
+                if (partEnd > start) {
+                    offset = writeSegment(new ByteArrayInputStream(header), offset, header.length, start, end, out);
+                    try (InputStream image = openImage(frame)) {
+                        offset = writeSegment(image, offset, frame.getImageSize(), start, end, out);
+                    }
+                    offset = writeSegment(new ByteArrayInputStream(CRLF), offset, CRLF.length, start, end, out);
+                    out.flush();
+                }
+                offset = partEnd;
+                if (offset > end) {
+                    return;
+                }
+            }
+        }
+        writeSegment(new ByteArrayInputStream(CLOSE_DELIMITER), offset, CLOSE_DELIMITER.length, start, end, out);
+    }
+
+    /* The page after the last frame of the previous one, or the first page */
+    private List<JpaFrameRepository.FrameImage> page(final Clip clip, final JpaFrameRepository.FrameImage last) {
+        return last == null
+                ? jpaFrameRepository.findImagesByStreamAfter(clip.getStreamId(), clip.getFromMillis(), clip.getToMillis(),
+                        clip.getLastFrameId(), Long.MIN_VALUE, Long.MIN_VALUE, PageRequest.of(0, PAGE_SIZE))
+                : jpaFrameRepository.findImagesByStreamAfter(clip.getStreamId(), clip.getFromMillis(), clip.getToMillis(),
+                        clip.getLastFrameId(), last.getPlaybackMillis(), last.getId(), PageRequest.of(0, PAGE_SIZE));
+    }
+
+    private static byte[] header(final JpaFrameRepository.FrameImage frame) {
+        String contentType = frame.getImageMimeType() != null ? frame.getImageMimeType() : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+        return ("--" + BOUNDARY + "\r\n"
+                + "Content-Type: " + contentType + "\r\n"
+                + "Content-Length: " + frame.getImageSize() + "\r\n"
+                + "X-Playback-Millis: " + frame.getPlaybackMillis() + "\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /* A missing image is written as zeros, so that every later frame still starts where the layout says */
+    private InputStream openImage(final JpaFrameRepository.FrameImage frame) throws IOException {
+        Optional<Path> path = frameBlobStore.find(frame.getImageHash());
+        if (!path.isPresent()) {
+            log.warn("Image {} of a frame is missing from the frame blob store", frame.getImageHash());
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return Files.newInputStream(path.get());
+    }
+
+    /* Writes what falls between start and end of the segment of the clip at the given offset, padding a source that
+     * ends early with zeros, and returns the offset after the segment */
+    private static long writeSegment(final InputStream source, final long offset, final long length, final long start,
+                                     final long end, final OutputStream out) throws IOException {
+        long from = Math.max(start, offset);
+        long to = Math.min(end, offset + length - 1) + 1;
+        if (from >= to) {
+            return offset + length;
+        }
+        long toSkip = from - offset;
+        while (toSkip > 0) {
+            long skipped = source.skip(toSkip);
+            if (skipped <= 0) {
+                if (source.read() < 0) {
+                    break;
+                }
+                skipped = 1;
+            }
+            toSkip -= skipped;
+        }
+        byte[] buffer = new byte[8192];
+        long remaining = to - from;
+        while (remaining > 0) {
+            int count = (int) Math.min(buffer.length, remaining);
+            int read = source.read(buffer, 0, count);
+            if (read < 0) {
+                Arrays.fill(buffer, 0, count, (byte) 0);
+                read = count;
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+        return offset + length;
+    }
+}
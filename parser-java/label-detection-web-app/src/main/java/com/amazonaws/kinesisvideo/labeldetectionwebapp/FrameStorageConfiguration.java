@@ -0,0 +1,27 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.nio.file.Paths;
+
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.FrameBlobStore;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.GetArchivedMedia;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/* Where the annotated frame images are kept, outside the database */
+@Configuration
+@Slf4j
+public class FrameStorageConfiguration {
+
+    @Value("${kvs.frames.directory:}")
+    private String directory;
+
+    @Bean
+    FrameBlobStore frameBlobStore() {
+        FrameBlobStore frameBlobStore = FrameBlobStore.open(directory.isEmpty()
+                ? GetArchivedMedia.DEFAULT_CACHE_DIRECTORY.resolve(GetArchivedMedia.FRAMES_DIRECTORY) : Paths.get(directory));
+        log.info("Frame images are stored in {}", directory.isEmpty() ? "the cache directory" : directory);
+        return frameBlobStore;
+    }
+}
@@ -0,0 +1,23 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lombok.Value;
+
+/* What a client needs to show a frame, its image is fetched from /images/{imageHash} */
+@Value
+public class FrameSummary {
+    Long id;
+    long frameNumber;
+    String playbackTimestamp;
+    String imageHash;
+    long imageSize;
+    String imageMimeType;
+    List<String> labels;
+
+    public static FrameSummary of(final JpaFrame frame) {
+        return new FrameSummary(frame.getId(), frame.getFrameNumber(), frame.getPlaybackTimestamp(), frame.getImageHash(),
+                frame.getImageSize(), frame.getImageMimeType(), new ArrayList<>(frame.getLabels()));
+    }
+}
@@ -0,0 +1,196 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.stream.Stream;
+
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions.ArchivedVideoStreamNotFoundException;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.FrameSink;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.transaction.support.TransactionTemplate;
+
+/* Writes the frames of one analysis job to the database behind the tasks that detect them.
+ *
+ * Frames wait in a bounded queue, so that a task only blocks when the writer falls that far behind, and a writer
+ * thread inserts them a batch at a time, one transaction per batch, which Hibernate sends as JDBC batches. Memory
+ * use therefore depends on the batch size and queue capacity rather than on the length of the archive. Frames arrive
+ * with their playback position, so once the last one is written only the label timestamps of the stream are left,
+ * which are built again from every frame of the stream, including those of earlier jobs on other time ranges. */
+@Slf4j
+public class FrameWriteBehind implements FrameSink {
+
+    /* Queued after the last frame */
+    private static final JpaFrame END = new JpaFrame();
+    private static final long NO_FRAME = Long.MAX_VALUE;
+
+    private final Long streamId;
+    private final ArchivedVideoStreamsRepository archivedVideoStreamsRepository;
+    private final JpaFrameRepository jpaFrameRepository;
+    private final LabelIndexService labelIndexService;
+    private final LabelOccurrenceRepository labelOccurrenceRepository;
+    private final AnalysisCoverageService analysisCoverageService;
+    private final TransactionTemplate transactionTemplate;
+    private final int batchSize;
+    private final BlockingQueue<JpaFrame> queue;
+    private final Thread writer;
+
+    private volatile RuntimeException failure;
+    private volatile boolean discarded;
+    private volatile long framesWritten;
+    private volatile long batchesWritten;
+    /* Frames of this job are those from this id on */
+    private volatile long firstFrameId = NO_FRAME;
+
+    FrameWriteBehind(final Long streamId,
+                     final ArchivedVideoStreamsRepository archivedVideoStreamsRepository,
+                     final JpaFrameRepository jpaFrameRepository,
+                     final LabelIndexService labelIndexService,
+                     final LabelOccurrenceRepository labelOccurrenceRepository,
+                     final AnalysisCoverageService analysisCoverageService,
+                     final TransactionTemplate transactionTemplate,
+                     final int batchSize,
+                     final int queueCapacity) {
+        this.streamId = streamId;
+        this.archivedVideoStreamsRepository = archivedVideoStreamsRepository;
+        this.jpaFrameRepository = jpaFrameRepository;
+        this.labelIndexService = labelIndexService;
+        this.labelOccurrenceRepository = labelOccurrenceRepository;
+        this.analysisCoverageService = analysisCoverageService;
+        this.transactionTemplate = transactionTemplate;
+        this.batchSize = batchSize;
+        this.queue = new ArrayBlockingQueue<>(Math.max(queueCapacity, batchSize));
+        this.writer = new Thread(this::write, "frame-writer-" + streamId);
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void accept(final JpaFrame frame) throws InterruptedException {
+        if (failure != null) {
+            throw new IllegalStateException("Unable to write the frames of stream " + streamId, failure);
+        }
+        queue.put(frame);
+    }
+
+    /* Waits until every frame is written, then saves the label timestamps of the stream */
+    public void finish() throws InterruptedException {
+        close();
+        if (failure != null) {
+            throw new IllegalStateException("Unable to write the frames of stream " + streamId, failure);
+        }
+        log.info("Wrote {} frames of stream {} in {} batches", framesWritten, streamId, batchesWritten);
+        saveLabelTimestamps();
+    }
+
+    /* Stops writing and removes the frames this job wrote so far, so that its time ranges can be analyzed again */
+    public void discard() {
+        discarded = true;
+        boolean interrupted = Thread.interrupted();
+        try {
+            queue.clear();
+            close();
+            if (firstFrameId != NO_FRAME) {
+                analysisCoverageService.removeFrames(streamId, firstFrameId);
+                /* The timestamps of the stream may already include the removed frames */
+                saveLabelTimestamps();
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+            log.warn("Interrupted while discarding the frames of stream {}", streamId);
+        } catch (RuntimeException e) {
+            log.warn("Unable to remove the frames written for stream {}", streamId, e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long getFramesWritten() {
+        return framesWritten;
+    }
+
+    private void close() throws InterruptedException {
+        queue.put(END);
+        writer.join();
+    }
+
+    private void write() {
+        List<JpaFrame> batch = new ArrayList<>(batchSize);
+        boolean end = false;
+        while (!end) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                /* Fails the job like a failed batch, and goes on taking frames so that no task or close() blocks */
+                log.warn("Frame writer of stream {} interrupted", streamId);
+                if (failure == null) {
+                    failure = new IllegalStateException("Frame writer of stream " + streamId + " interrupted", e);
+                }
+                continue;
+            }
+            queue.drainTo(batch, batchSize - 1);
+            /* Nothing is queued after the end, so it can only be the last one */
+            end = batch.get(batch.size() - 1) == END;
+            if (end) {
+                batch.remove(batch.size() - 1);
+            }
+            /* Once a batch failed, the rest are still taken so that no task blocks, but no longer written */
+            if (!batch.isEmpty() && failure == null && !discarded) {
+                writeBatch(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    private void writeBatch(final List<JpaFrame> batch) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> {
+                ArchivedVideoStream stream = archivedVideoStreamsRepository.getOne(streamId);
+                batch.forEach(frame -> frame.setStream(stream));
+                jpaFrameRepository.saveAll(batch);
+                if (firstFrameId == NO_FRAME) {
+                    firstFrameId = batch.stream().mapToLong(JpaFrame::getId).min().getAsLong();
+                }
+                labelIndexService.index(streamId, batch);
+            });
+            framesWritten += batch.size();
+            batchesWritten++;
+        } catch (RuntimeException e) {
+            log.error("Unable to write {} frames of stream {}", batch.size(), streamId, e);
+            failure = e;
+        }
+    }
+
+    /* Builds the timestamps of every label from the label index, in playback order, replacing those of the labels
+     * the stream already had. Labels whose frames were all removed since are removed from the stream too. */
+    private void saveLabelTimestamps() {
+        transactionTemplate.executeWithoutResult(status -> {
+            ArchivedVideoStream stream = archivedVideoStreamsRepository.findById(streamId)
+                    .orElseThrow(() -> new ArchivedVideoStreamNotFoundException(streamId));
+            Map<String, TimestampCollection> labelToTimestamps = new HashMap<>();
+            try (Stream<LabelOccurrenceRepository.LabelTime> occurrences =
+                         labelOccurrenceRepository.streamByStream(streamId, 0, Long.MAX_VALUE, 0f)) {
+                occurrences.forEachOrdered(occurrence -> labelToTimestamps
+                        .computeIfAbsent(occurrence.getLabel(), label -> new TimestampCollection())
+                        .addTimestamp(JpaFrame.toPlaybackTimestamp(occurrence.getPlaybackMillis())));
+            }
+            stream.getLabelToTimestamps().keySet().retainAll(labelToTimestamps.keySet());
+            labelToTimestamps.forEach((label, timestamps) -> {
+                TimestampCollection collection = stream.getLabelToTimestamps().get(label);
+                if (collection == null) {
+                    stream.addLabelAndTimestampCollection(label, timestamps);
+                } else {
+                    collection.getTimestamps().clear();
+                    collection.getTimestamps().addAll(timestamps.getTimestamps());
+                }
+            });
+            archivedVideoStreamsRepository.save(stream);
+            log.info("Saved the timestamps of {} labels of stream {}", labelToTimestamps.size(), streamId);
+        });
+    }
+}
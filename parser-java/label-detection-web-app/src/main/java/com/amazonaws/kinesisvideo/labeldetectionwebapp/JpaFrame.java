@@ -1,43 +1,78 @@
 package com.amazonaws.kinesisvideo.labeldetectionwebapp;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 import lombok.extern.slf4j.Slf4j;
 
 import javax.persistence.*;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
+/* Frames are listed in playback order within a stream, and by id from a given frame on */
 @Slf4j
 @Data
 @Entity
+@Table(indexes = {
+        @Index(name = "jpa_frame_stream_playback", columnList = "stream_id, playbackMillis, id"),
+        @Index(name = "jpa_frame_stream_id", columnList = "stream_id, id")})
 public class JpaFrame {
 
     @Id
     @GeneratedValue
     private Long id;
 
+    @JsonIgnore
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    @ManyToOne(fetch = FetchType.LAZY)
+    private ArchivedVideoStream stream;
+
+    /* Orders the frames saved by one analysis of a stream; numbers are unique to it but not consecutive */
     private long frameNumber;
 
-    @Lob
-    private byte[] imageBytes;
+    /* The image is kept in the frame blob store under this hash, and served from /images/{imageHash} */
+    private String imageHash;
+
+    private long imageSize;
+
+    private String imageMimeType;
 
     private String playbackTimestamp;
 
+    /* Playback position from the start of the stream record, as indexed in the label index */
+    private long playbackMillis;
+
+    /* Producer timestamp of the frame in milliseconds since the epoch: that of its fragment plus its timecode */
+    private long producerTimestampMillis;
+
     @ElementCollection
+    @CollectionTable(indexes = @Index(name = "jpa_frame_label", columnList = "labels"))
     private List<String> labels = new ArrayList<>();
 
+    /* Confidence of each label, only kept until the frame is added to the label index */
+    @Transient
+    @JsonIgnore
+    @ToString.Exclude
+    @EqualsAndHashCode.Exclude
+    private Map<String, Float> labelConfidences = new HashMap<>();
+
     public JpaFrame() {
     }
 
-    public JpaFrame(byte[] imageBytes) {
-        this.imageBytes = imageBytes;
+    public JpaFrame(String imageHash, long imageSize, String imageMimeType) {
+        this.imageHash = imageHash;
+        this.imageSize = imageSize;
+        this.imageMimeType = imageMimeType;
     }
 
     public Long getFrameNumber() {
         return this.frameNumber;
     }
 
-    public byte[] getImageBytes() {
-        return this.imageBytes;
+    public String getImageHash() {
+        return this.imageHash;
     }
 
     public void setPlaybackTimestampAndFrameNum(String playbackTimestamp, long frameNumber) {
@@ -45,6 +80,17 @@ public class JpaFrame {
         this.frameNumber = frameNumber;
     }
 
+    /* Sets the playback position and its hh:mm:ss form */
+    public void setPlaybackPosition(long playbackMillis) {
+        this.playbackMillis = playbackMillis;
+        this.playbackTimestamp = toPlaybackTimestamp(playbackMillis);
+    }
+
+    public static String toPlaybackTimestamp(long playbackMillis) {
+        return String.format("%02d:%02d:%02d", TimeUnit.MILLISECONDS.toHours(playbackMillis),
+                TimeUnit.MILLISECONDS.toMinutes(playbackMillis) % 60, TimeUnit.MILLISECONDS.toSeconds(playbackMillis) % 60);
+    }
+
     public String getPlaybackTimestamp() {
         return this.playbackTimestamp;
     }
@@ -56,4 +102,15 @@ public class JpaFrame {
     public void addLabel(String label) {
         this.labels.add(label);
     }
+
+    public void addLabel(String label, Float confidence) {
+        addLabel(label);
+        if (confidence != null) {
+            this.labelConfidences.put(label, confidence);
+        }
+    }
+
+    public float getLabelConfidence(String label) {
+        return this.labelConfidences.getOrDefault(label, 0f);
+    }
 }
@@ -0,0 +1,65 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+/* Frames are paged by id first and then loaded with their labels in one query, since paging a fetch join of a
+ * collection would happen in memory */
+public interface JpaFrameRepository extends JpaRepository<JpaFrame, Long> {
+
+    /* What a frame clip needs of a frame, without its labels */
+    interface FrameImage {
+        long getId();
+
+        String getImageHash();
+
+        long getImageSize();
+
+        String getImageMimeType();
+
+        long getPlaybackMillis();
+    }
+
+    boolean existsByStreamId(Long streamId);
+
+    long countByStreamId(Long streamId);
+
+    /* Ids only grow, so the frames of a stream up to its last id are those it had at that point */
+    @Query("select max(f.id) from JpaFrame f where f.stream.id = :streamId")
+    Long findLastIdByStream(@Param("streamId") Long streamId);
+
+    /* Keyset paging in id order, which stays cheap however deep into the stream it gets. Ids only grow, so the
+     * frames from an id on are those saved since that frame. */
+    @Query("select f.id from JpaFrame f where f.stream.id = :streamId and f.id >= :fromId order by f.id")
+    List<Long> findIdsByStreamFrom(@Param("streamId") Long streamId, @Param("fromId") long fromId, Pageable pageable);
+
+    /* Frames are in playback order, whichever analysis of the stream saved them */
+    @Query(value = "select f.id from JpaFrame f where f.stream.id = :streamId order by f.playbackMillis, f.id",
+            countQuery = "select count(f) from JpaFrame f where f.stream.id = :streamId")
+    Page<Long> findIdsByStream(@Param("streamId") Long streamId, Pageable pageable);
+
+    @Query(value = "select f.id from JpaFrame f join f.labels l where f.stream.id = :streamId and l = :label order by f.playbackMillis, f.id",
+            countQuery = "select count(f) from JpaFrame f join f.labels l where f.stream.id = :streamId and l = :label")
+    Page<Long> findIdsByStreamAndLabel(@Param("streamId") Long streamId, @Param("label") String label, Pageable pageable);
+
+    /* Keyset paging in playback order, on the playback position and then the id of the last frame of the page, over
+     * the frames up to the given id */
+    @Query("select f.id as id, f.imageHash as imageHash, f.imageSize as imageSize, f.imageMimeType as imageMimeType,"
+            + " f.playbackMillis as playbackMillis from JpaFrame f where f.stream.id = :streamId and f.playbackMillis between :fromMillis"
+            + " and :toMillis and f.id <= :lastId"
+            + " and (f.playbackMillis > :afterMillis or (f.playbackMillis = :afterMillis and f.id > :afterId))"
+            + " order by f.playbackMillis, f.id")
+    List<FrameImage> findImagesByStreamAfter(@Param("streamId") Long streamId, @Param("fromMillis") long fromMillis,
+                                             @Param("toMillis") long toMillis, @Param("lastId") long lastId,
+                                             @Param("afterMillis") long afterMillis, @Param("afterId") long afterId,
+                                             Pageable pageable);
+
+    @Query("select distinct f from JpaFrame f left join fetch f.labels where f.id in :ids order by f.playbackMillis, f.id")
+    List<JpaFrame> findWithLabelsByIdIn(@Param("ids") Collection<Long> ids);
+}
@@ -0,0 +1,98 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/* Keeps the label index of every analyzed stream, and answers when labels appeared from it.
+ *
+ * Occurrences are read in label and time order straight from the composite index and merged into intervals as they
+ * stream by, so a query holds one interval per label in memory rather than every occurrence. */
+@Slf4j
+@Service
+public class LabelIndexService {
+
+    public static final long DEFAULT_GAP_MILLIS = 2000;
+
+    private final LabelOccurrenceRepository labelOccurrenceRepository;
+
+    LabelIndexService(final LabelOccurrenceRepository labelOccurrenceRepository) {
+        this.labelOccurrenceRepository = labelOccurrenceRepository;
+    }
+
+    /* Indexes the labels of the frames, which must have been saved so that they have their ids */
+    @Transactional
+    public void index(final Long streamId, final Collection<JpaFrame> frames) {
+        List<LabelOccurrence> occurrences = LabelOccurrence.of(streamId, frames);
+        labelOccurrenceRepository.saveAll(occurrences);
+        log.debug("Indexed {} label occurrences of {} frames for stream {}", occurrences.size(), frames.size(), streamId);
+    }
+
+    /* Removes the occurrences of the frames of the stream from the given frame id on */
+    @Transactional
+    public void remove(final Long streamId, final long fromFrameId) {
+        int removed = labelOccurrenceRepository.deleteByStreamFrom(streamId, fromFrameId);
+        log.info("Removed {} label occurrences of stream {} from frame id {} on", removed, streamId, fromFrameId);
+    }
+
+    /* Intervals of each label, or only of the given label, between the two playback positions. Occurrences no more
+     * than the gap apart belong to the same interval. */
+    @Transactional(readOnly = true)
+    public Map<String, List<LabelInterval>> intervals(final Long streamId, final String label, final long fromMillis,
+                                                      final long toMillis, final float minConfidence, final long gapMillis) {
+        Map<String, List<LabelInterval>> intervals = new LinkedHashMap<>();
+        try (Stream<LabelOccurrenceRepository.LabelTime> occurrences = label == null
+                ? labelOccurrenceRepository.streamByStream(streamId, fromMillis, toMillis, minConfidence)
+                : labelOccurrenceRepository.streamByStreamAndLabel(streamId, label, fromMillis, toMillis, minConfidence)) {
+            IntervalMerger merger = new IntervalMerger(gapMillis, intervals);
+            occurrences.forEachOrdered(merger::add);
+            merger.flush();
+        }
+        return intervals;
+    }
+
+    /* Folds occurrences sorted by label and time into intervals */
+    private static class IntervalMerger {
+        private final long gapMillis;
+        private final Map<String, List<LabelInterval>> intervals;
+        private String label;
+        private long startMillis;
+        private long endMillis;
+        private int frames;
+        private float maxConfidence;
+
+        IntervalMerger(final long gapMillis, final Map<String, List<LabelInterval>> intervals) {
+            this.gapMillis = gapMillis;
+            this.intervals = intervals;
+        }
+
+        void add(final LabelOccurrenceRepository.LabelTime occurrence) {
+            if (occurrence.getLabel().equals(label) && occurrence.getPlaybackMillis() - endMillis <= gapMillis) {
+                endMillis = occurrence.getPlaybackMillis();
+                frames++;
+                maxConfidence = Math.max(maxConfidence, occurrence.getConfidence());
+                return;
+            }
+            flush();
+            label = occurrence.getLabel();
+            startMillis = occurrence.getPlaybackMillis();
+            endMillis = startMillis;
+            frames = 1;
+            maxConfidence = occurrence.getConfidence();
+        }
+
+        void flush() {
+            if (label != null) {
+                intervals.computeIfAbsent(label, l -> new ArrayList<>())
+                        .add(new LabelInterval(startMillis, endMillis, frames, maxConfidence));
+            }
+        }
+    }
+}
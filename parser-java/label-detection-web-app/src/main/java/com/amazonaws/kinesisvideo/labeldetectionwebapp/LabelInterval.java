@@ -0,0 +1,12 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import lombok.Value;
+
+/* A stretch of playback during which a label was detected in every sampled frame no more than the gap apart */
+@Value
+public class LabelInterval {
+    long startMillis;
+    long endMillis;
+    int frames;
+    float maxConfidence;
+}
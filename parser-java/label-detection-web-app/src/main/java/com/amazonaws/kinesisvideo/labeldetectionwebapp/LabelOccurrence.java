@@ -0,0 +1,58 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import lombok.Data;
+
+import javax.persistence.*;
+
+/* One label detected in one frame, the row of the label index that time range queries run on */
+@Data
+@Entity
+@Table(indexes = {
+        @Index(name = "label_occurrence_stream_label_time", columnList = "streamId, label, playbackMillis"),
+        @Index(name = "label_occurrence_stream_time", columnList = "streamId, playbackMillis"),
+        @Index(name = "label_occurrence_frame", columnList = "frameId")})
+public class LabelOccurrence {
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    @Column(nullable = false)
+    private String label;
+
+    @Column(nullable = false)
+    private Long streamId;
+
+    private long playbackMillis;
+
+    private Long frameId;
+
+    private float confidence;
+
+    protected LabelOccurrence() {
+    }
+
+    public LabelOccurrence(String label, Long streamId, long playbackMillis, Long frameId, float confidence) {
+        this.label = label;
+        this.streamId = streamId;
+        this.playbackMillis = playbackMillis;
+        this.frameId = frameId;
+        this.confidence = confidence;
+    }
+
+    /* Index rows of every label of the frames, which must have been saved so that they have their ids */
+    public static List<LabelOccurrence> of(Long streamId, Collection<JpaFrame> frames) {
+        List<LabelOccurrence> occurrences = new ArrayList<>();
+        for (JpaFrame frame : frames) {
+            for (String label : frame.getLabels()) {
+                occurrences.add(new LabelOccurrence(label, streamId, frame.getPlaybackMillis(), frame.getId(),
+                        frame.getLabelConfidence(label)));
+            }
+        }
+        return occurrences;
+    }
+}
@@ -0,0 +1,37 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.util.stream.Stream;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+public interface LabelOccurrenceRepository extends JpaRepository<LabelOccurrence, Long> {
+
+    /* Only what merging needs, in the order of the stream, label and time index */
+    interface LabelTime {
+        String getLabel();
+
+        long getPlaybackMillis();
+
+        float getConfidence();
+    }
+
+    @Modifying
+    @Query("delete from LabelOccurrence o where o.streamId = :streamId and o.frameId >= :fromFrameId")
+    int deleteByStreamFrom(@Param("streamId") Long streamId, @Param("fromFrameId") long fromFrameId);
+
+    @Query("select o.label as label, o.playbackMillis as playbackMillis, o.confidence as confidence from LabelOccurrence o"
+            + " where o.streamId = :streamId and o.playbackMillis between :fromMillis and :toMillis and o.confidence >= :minConfidence"
+            + " order by o.label, o.playbackMillis")
+    Stream<LabelTime> streamByStream(@Param("streamId") Long streamId, @Param("fromMillis") long fromMillis,
+                                     @Param("toMillis") long toMillis, @Param("minConfidence") float minConfidence);
+
+    @Query("select o.label as label, o.playbackMillis as playbackMillis, o.confidence as confidence from LabelOccurrence o"
+            + " where o.streamId = :streamId and o.label = :label and o.playbackMillis between :fromMillis and :toMillis"
+            + " and o.confidence >= :minConfidence order by o.playbackMillis")
+    Stream<LabelTime> streamByStreamAndLabel(@Param("streamId") Long streamId, @Param("label") String label,
+                                             @Param("fromMillis") long fromMillis, @Param("toMillis") long toMillis,
+                                             @Param("minConfidence") float minConfidence);
+}
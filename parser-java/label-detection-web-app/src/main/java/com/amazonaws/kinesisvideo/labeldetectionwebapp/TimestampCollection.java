@@ -1,14 +1,16 @@
 package com.amazonaws.kinesisvideo.labeldetectionwebapp;
 
 import lombok.Data;
-import org.hibernate.annotations.LazyCollection;
-import org.hibernate.annotations.LazyCollectionOption;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 
 import javax.persistence.*;
 import java.util.*;
 
 @Data
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class TimestampCollection {
 
     @Id
@@ -16,14 +18,11 @@ public class TimestampCollection {
     private Long id;
 
     @ElementCollection
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     private List<String> timestamps = new ArrayList<>();
 
-    @ManyToMany
-    private Set<JpaFrame> frames = new HashSet<>();
-
-    @ManyToMany
-    @LazyCollection(LazyCollectionOption.FALSE)
-    private Map<String, JpaFrame> timestampToFrame = new HashMap<>();
+    /* Frames of a label are served from /streams/{id}/frames?label= and its occurrences kept in the label index,
+     * so only the timestamps are kept here */
 
     public TimestampCollection() {
     }
@@ -35,12 +34,4 @@ public class TimestampCollection {
     public void addTimestamp(String timestamp) {
         this.timestamps.add(timestamp);
     }
-
-    public void addTimestampAndFrame(String timestamp, JpaFrame frame) {
-        this.timestampToFrame.put(timestamp, frame);
-    }
-
-    public void addFrame(JpaFrame frame) {
-        this.frames.add(frame);
-    }
 }
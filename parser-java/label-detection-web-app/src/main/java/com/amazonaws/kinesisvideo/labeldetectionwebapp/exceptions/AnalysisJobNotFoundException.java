@@ -0,0 +1,12 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.NOT_FOUND)
+public class AnalysisJobNotFoundException extends RuntimeException {
+
+    public AnalysisJobNotFoundException(String id) {
+        super("Could not find analysis job id: " + id);
+    }
+}
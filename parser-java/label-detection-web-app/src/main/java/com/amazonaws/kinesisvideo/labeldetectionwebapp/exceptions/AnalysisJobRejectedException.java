@@ -0,0 +1,13 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/* Every job thread is busy and the queue of waiting jobs is full */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class AnalysisJobRejectedException extends RuntimeException {
+
+    public AnalysisJobRejectedException(Long streamId) {
+        super("Too many analysis jobs queued, try again later for stream id: " + streamId);
+    }
+}
@@ -0,0 +1,12 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.CONFLICT)
+public class ArchivedVideoStreamAlreadyAnalyzedException extends RuntimeException {
+
+    public ArchivedVideoStreamAlreadyAnalyzedException(Long id) {
+        super("Archived stream id " + id + " was already analyzed over its whole time range");
+    }
+}
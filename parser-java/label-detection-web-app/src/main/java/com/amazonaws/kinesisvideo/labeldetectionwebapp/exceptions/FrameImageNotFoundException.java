@@ -0,0 +1,12 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.NOT_FOUND)
+public class FrameImageNotFoundException extends RuntimeException {
+
+    public FrameImageNotFoundException(String hash) {
+        super("Could not find frame image: " + hash);
+    }
+}
@@ -0,0 +1,151 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.client.builder.AwsClientBuilder;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.regions.Regions;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMediaClient;
+import com.amazonaws.services.rekognition.AmazonRekognition;
+import com.amazonaws.services.rekognition.AmazonRekognitionClientBuilder;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.TimingInfo;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+/* Clients shared by every task of the process, one per service, endpoint and region.
+ *
+ * AWS SDK clients are thread-safe and each one owns an HTTP connection pool, so building them per task means a new
+ * pool and new TLS handshakes per task. All clients are built from the same tuned client configuration and report
+ * the utilization of their connection pool after every request. */
+@Slf4j
+public final class AwsClientRegistry {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 50;
+
+    private static final long CONNECTION_TTL_MILLIS = 300_000;
+    private static final long CONNECTION_MAX_IDLE_MILLIS = 60_000;
+
+    private static volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private static volatile boolean tcpKeepAlive = true;
+
+    private static final Map<String, AmazonKinesisVideoArchivedMedia> ARCHIVED_MEDIA_CLIENTS = new ConcurrentHashMap<>();
+    private static final Map<String, AmazonRekognition> REKOGNITION_CLIENTS = new ConcurrentHashMap<>();
+    private static final Map<String, ConnectionPoolMetricCollector> POOL_METRICS = new ConcurrentHashMap<>();
+
+    /* Latest connection pool counts of one client, along with the peak number of leased connections */
+    @Value
+    public static class ConnectionPoolStatistics {
+        long requests;
+        long leased;
+        long available;
+        long pending;
+        long maxLeased;
+        int maxConnections;
+    }
+
+    private AwsClientRegistry() {
+    }
+
+    /* Applies to the clients built from now on, so call it before the first client is requested */
+    public static void configure(final int maxConnections, final boolean tcpKeepAlive) {
+        AwsClientRegistry.maxConnections = maxConnections;
+        AwsClientRegistry.tcpKeepAlive = tcpKeepAlive;
+    }
+
+    public static AmazonKinesisVideoArchivedMedia getArchivedMediaClient(final AWSCredentialsProvider awsCredentialsProvider,
+                                                                         final String endpoint,
+                                                                         final Regions region) {
+        final String key = "kinesisvideo-archived-media " + endpoint + " " + region.getName();
+        return ARCHIVED_MEDIA_CLIENTS.computeIfAbsent(key, k -> AmazonKinesisVideoArchivedMediaClient
+                .builder()
+                .withCredentials(awsCredentialsProvider)
+                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(endpoint, region.getName()))
+                .withClientConfiguration(clientConfiguration())
+                .withMetricsCollector(metricCollector(k))
+                .build());
+    }
+
+    /* Rekognition client for the region and credentials of the default provider chains */
+    public static AmazonRekognition getRekognitionClient() {
+        return REKOGNITION_CLIENTS.computeIfAbsent("rekognition default", k -> AmazonRekognitionClientBuilder
+                .standard()
+                .withClientConfiguration(clientConfiguration())
+                .withMetricsCollector(metricCollector(k))
+                .build());
+    }
+
+    public static Map<String, ConnectionPoolStatistics> getConnectionPoolStatistics() {
+        Map<String, ConnectionPoolStatistics> statistics = new TreeMap<>();
+        POOL_METRICS.forEach((key, collector) -> statistics.put(key, collector.snapshot()));
+        return statistics;
+    }
+
+    public static void logStatistics() {
+        getConnectionPoolStatistics().forEach((key, statistics) ->
+                log.info("Connection pool of {}: {} requests, {} leased, {} available, {} pending, peak {} of {} connections leased",
+                        key, statistics.getRequests(), statistics.getLeased(), statistics.getAvailable(),
+                        statistics.getPending(), statistics.getMaxLeased(), statistics.getMaxConnections()));
+    }
+
+    private static ClientConfiguration clientConfiguration() {
+        return new ClientConfiguration()
+                .withMaxConnections(maxConnections)
+                .withTcpKeepAlive(tcpKeepAlive)
+                .withConnectionTTL(CONNECTION_TTL_MILLIS)
+                .withConnectionMaxIdleMillis(CONNECTION_MAX_IDLE_MILLIS);
+    }
+
+    private static ConnectionPoolMetricCollector metricCollector(final String key) {
+        return POOL_METRICS.computeIfAbsent(key, k -> new ConnectionPoolMetricCollector(maxConnections));
+    }
+
+    /* The SDK only captures the connection pool counts when a request metric collector is set on the client */
+    private static class ConnectionPoolMetricCollector extends RequestMetricCollector {
+        private final int maxConnections;
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong leased = new AtomicLong();
+        private final AtomicLong available = new AtomicLong();
+        private final AtomicLong pending = new AtomicLong();
+        private final AtomicLong maxLeased = new AtomicLong();
+
+        ConnectionPoolMetricCollector(final int maxConnections) {
+            this.maxConnections = maxConnections;
+        }
+
+        @Override
+        public void collectMetrics(final Request<?> request, final Response<?> response) {
+            AWSRequestMetrics metrics = request.getAWSRequestMetrics();
+            if (metrics == null) {
+                return;
+            }
+            TimingInfo timingInfo = metrics.getTimingInfo();
+            requests.incrementAndGet();
+            long leasedNow = counter(timingInfo, AWSRequestMetrics.Field.HttpClientPoolLeasedCount, leased);
+            counter(timingInfo, AWSRequestMetrics.Field.HttpClientPoolAvailableCount, available);
+            counter(timingInfo, AWSRequestMetrics.Field.HttpClientPoolPendingCount, pending);
+            maxLeased.accumulateAndGet(leasedNow, Math::max);
+        }
+
+        private static long counter(final TimingInfo timingInfo, final AWSRequestMetrics.Field field, final AtomicLong target) {
+            Number value = timingInfo.getCounter(field.name());
+            if (value != null) {
+                target.set(value.longValue());
+            }
+            return target.get();
+        }
+
+        ConnectionPoolStatistics snapshot() {
+            return new ConnectionPoolStatistics(requests.get(), leased.get(), available.get(), pending.get(),
+                    maxLeased.get(), maxConnections);
+        }
+    }
+}
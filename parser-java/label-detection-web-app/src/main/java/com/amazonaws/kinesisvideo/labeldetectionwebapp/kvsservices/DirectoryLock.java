@@ -0,0 +1,75 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+
+/* Use of a cache directory by a single process.
+ *
+ * The fragment index, fragment media cache and detection result cache map their files into memory and keep what they
+ * hold in memory too, so a second process appending to the same files would overwrite records of the first. The first
+ * process to open a cache directory holds a lock on a lock file in it until it exits, and other processes are refused
+ * the directory. */
+@Slf4j
+public final class DirectoryLock {
+
+    private static final String LOCK_FILE = ".lock";
+    private static final Map<Path, FileLock> HELD = new HashMap<>();
+
+    private DirectoryLock() {
+    }
+
+    /* Takes the directory for this process, or fails when another process uses it */
+    public static void acquire(final Path directory) throws IOException {
+        if (!tryAcquire(directory)) {
+            throw new IllegalStateException("Cache directory " + directory.toAbsolutePath() + " is used by another process,"
+                    + " give every process on this host a cache directory of its own");
+        }
+    }
+
+    /* Takes the first numbered subdirectory of the parent that no other process uses, so that processes started one
+     * after the other on the same host reuse the caches of those before them */
+    public static Path acquireFirstFree(final Path parent) throws IOException {
+        for (int slot = 0; ; slot++) {
+            Path directory = parent.resolve(String.valueOf(slot));
+            if (!isHeld(directory) && tryAcquire(directory)) {
+                log.info("Using cache directory {}", directory.toAbsolutePath());
+                return directory;
+            }
+        }
+    }
+
+    private static synchronized boolean isHeld(final Path directory) {
+        return HELD.containsKey(directory.toAbsolutePath());
+    }
+
+    private static synchronized boolean tryAcquire(final Path directory) throws IOException {
+        final Path absolute = directory.toAbsolutePath();
+        if (HELD.containsKey(absolute)) {
+            return true;
+        }
+        Files.createDirectories(absolute);
+        FileChannel channel = FileChannel.open(absolute.resolve(LOCK_FILE), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            return false;
+        }
+        /* Held until the process exits, which releases the lock */
+        HELD.put(absolute, lock);
+        return true;
+    }
+}
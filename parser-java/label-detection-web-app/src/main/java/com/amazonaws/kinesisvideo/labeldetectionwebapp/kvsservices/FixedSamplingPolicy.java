@@ -0,0 +1,31 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import com.amazonaws.kinesisvideo.parser.mkv.Frame;
+
+/* Samples every Nth frame, or only key frames when N is 0 */
+public class FixedSamplingPolicy implements SamplingPolicy {
+
+    private final int sampleRate;
+    private long frameNumber;
+
+    public FixedSamplingPolicy(final int sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    @Override
+    public boolean shouldSample(final Frame frame) {
+        boolean sampled = sampleRate == 0 ? frame.isKeyFrame() : frameNumber % sampleRate == 0;
+        frameNumber++;
+        return sampled;
+    }
+
+    @Override
+    public boolean samplesKeyFramesOnly() {
+        return sampleRate == 0;
+    }
+
+    @Override
+    public void reset() {
+        frameNumber = 0;
+    }
+}
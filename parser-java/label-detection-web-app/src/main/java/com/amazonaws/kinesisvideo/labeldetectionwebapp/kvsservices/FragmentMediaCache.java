@@ -0,0 +1,397 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import lombok.extern.slf4j.Slf4j;
+
+/* Local cache of the raw MKV bytes of archived fragments, keyed by stream name and fragment number.
+ *
+ * Entries are appended to fixed size memory-mapped segment files and looked up through an in-memory LRU map that
+ * is rebuilt from the segment files on start up. Once the cached bytes exceed the budget the least recently used
+ * entries are evicted, and segment files are deleted as soon as none of their entries are live any more.
+ *
+ * Entry layout: magic, key (SHA-256 of stream name and fragment number), CRC32 and length of the data, data. */
+@Slf4j
+public class FragmentMediaCache {
+
+    /* Fetches the media of the given fragments from the service, in the given order */
+    public interface MediaFetcher {
+        InputStream getMediaForFragmentList(List<String> fragmentNumbers);
+    }
+
+    public static final long DEFAULT_MAX_BYTES = 2L * 1024 * 1024 * 1024;
+
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final int ENTRY_MAGIC = 0x4b564d43;
+    private static final int KEY_BYTES = 32;
+    private static final int ENTRY_HEADER_BYTES = Integer.BYTES + KEY_BYTES + Integer.BYTES + Integer.BYTES;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final Map<Path, FragmentMediaCache> OPEN_CACHES = new ConcurrentHashMap<>();
+
+    private static class Segment {
+        final int id;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writePosition;
+        long liveBytes;
+
+        Segment(final int id, final Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+        }
+    }
+
+    private static class Entry {
+        final Segment segment;
+        final int dataOffset;
+        final int length;
+        final int crc;
+
+        Entry(final Segment segment, final int dataOffset, final int length, final int crc) {
+            this.segment = segment;
+            this.dataOffset = dataOffset;
+            this.length = length;
+            this.crc = crc;
+        }
+    }
+
+    private final Path directory;
+    private final long maxBytes;
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+    private Segment currentSegment;
+    private long liveBytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final AtomicLong bytesFetched = new AtomicLong();
+
+    private FragmentMediaCache(final Path directory, final long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        load();
+    }
+
+    /* Returns the cache in the directory, shared by every caller within this JVM. The directory is refused when
+     * another process uses it. */
+    public static FragmentMediaCache open(final Path directory, final long maxBytes) {
+        return OPEN_CACHES.computeIfAbsent(directory.toAbsolutePath(), d -> {
+            try {
+                DirectoryLock.acquire(d);
+                return new FragmentMediaCache(d, maxBytes);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open fragment media cache " + d, e);
+            }
+        });
+    }
+
+    /* Returns the MKV media of the fragments in order. Cached fragments are read locally, the others are fetched
+     * with a single GetMediaForFragmentList call, streamed through and added to the cache on the way. */
+    public InputStream getMedia(final String streamName, final List<String> fragmentNumbers, final MediaFetcher fetcher) {
+        List<String> missing = new ArrayList<>();
+        synchronized (this) {
+            for (String fragmentNumber : fragmentNumbers) {
+                if (!entries.containsKey(key(streamName, fragmentNumber))) {
+                    missing.add(fragmentNumber);
+                }
+            }
+        }
+        log.info("Fragment media cache has {} of {} fragments for stream {}",
+                fragmentNumbers.size() - missing.size(), fragmentNumbers.size(), streamName);
+
+        MkvFragmentSplitter splitter = missing.isEmpty() ? null : new MkvFragmentSplitter(fetcher.getMediaForFragmentList(missing));
+        return new FragmentSequenceInputStream(streamName, fragmentNumbers, new HashSet<>(missing), splitter, fetcher);
+    }
+
+    public synchronized byte[] get(final String streamName, final String fragmentNumber) {
+        String key = key(streamName, fragmentNumber);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        byte[] bytes = new byte[entry.length];
+        ByteBuffer view = entry.segment.buffer.duplicate();
+        view.position(entry.dataOffset);
+        view.get(bytes);
+        if (crc(bytes) != entry.crc) {
+            log.warn("Dropping corrupt cache entry for fragment {} of stream {}", fragmentNumber, streamName);
+            remove(key);
+            return null;
+        }
+        return bytes;
+    }
+
+    public synchronized void put(final String streamName, final String fragmentNumber, final byte[] bytes) {
+        String key = key(streamName, fragmentNumber);
+        if (entries.containsKey(key) || ENTRY_HEADER_BYTES + bytes.length > SEGMENT_BYTES) {
+            return;
+        }
+        try {
+            if (currentSegment == null || currentSegment.writePosition + ENTRY_HEADER_BYTES + bytes.length > SEGMENT_BYTES) {
+                int id = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+                currentSegment = new Segment(id, directory.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)));
+                segments.put(id, currentSegment);
+            }
+            Segment segment = currentSegment;
+            int offset = segment.writePosition;
+            int crc = crc(bytes);
+            byte[] keyBytes = hexToBytes(key);
+
+            ByteBuffer view = segment.buffer.duplicate();
+            view.position(offset + Integer.BYTES);
+            view.put(keyBytes).putInt(crc).putInt(bytes.length).put(bytes);
+            /* The magic goes in last so that a partially written entry is never picked up on load */
+            segment.buffer.putInt(offset, ENTRY_MAGIC);
+            segment.writePosition = offset + ENTRY_HEADER_BYTES + bytes.length;
+
+            addEntry(key, new Entry(segment, offset + ENTRY_HEADER_BYTES, bytes.length, crc));
+            evict();
+        } catch (IOException e) {
+            log.warn("Unable to add fragment {} of stream {} to the media cache", fragmentNumber, streamName, e);
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public long getBytesFetched() {
+        return bytesFetched.get();
+    }
+
+    public double getHitRatio() {
+        long lookups = hits.get() + misses.get();
+        return lookups == 0 ? 0 : (double) hits.get() / lookups;
+    }
+
+    public void logStatistics() {
+        log.info("Fragment media cache hit ratio {} ({} hits, {} misses), {} bytes saved, {} bytes fetched, {} bytes cached",
+                String.format("%.2f", getHitRatio()), hits.get(), misses.get(), bytesSaved.get(), bytesFetched.get(), liveBytes);
+    }
+
+    private void addEntry(final String key, final Entry entry) {
+        entries.put(key, entry);
+        entry.segment.liveBytes += entry.length;
+        liveBytes += entry.length;
+    }
+
+    private void remove(final String key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) {
+            return;
+        }
+        entry.segment.liveBytes -= entry.length;
+        liveBytes -= entry.length;
+        if (entry.segment.liveBytes == 0 && entry.segment != currentSegment) {
+            deleteSegment(entry.segment);
+        }
+    }
+
+    private void evict() {
+        Iterator<String> eldest = entries.keySet().iterator();
+        List<String> evicted = new ArrayList<>();
+        long remaining = liveBytes;
+        while (remaining > maxBytes && eldest.hasNext()) {
+            String key = eldest.next();
+            evicted.add(key);
+            remaining -= entries.get(key).length;
+        }
+        evicted.forEach(this::remove);
+    }
+
+    private void deleteSegment(final Segment segment) {
+        segments.remove(segment.id);
+        try {
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } catch (IOException e) {
+            log.warn("Unable to delete cache segment {}", segment.path, e);
+        }
+    }
+
+    /* Rebuilds the entry map from the segment files, oldest segment first */
+    private void load() throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        Collections.sort(paths);
+
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+            Segment segment = new Segment(id, path);
+            segments.put(id, segment);
+
+            int offset = 0;
+            while (offset + ENTRY_HEADER_BYTES <= SEGMENT_BYTES && segment.buffer.getInt(offset) == ENTRY_MAGIC) {
+                byte[] keyBytes = new byte[KEY_BYTES];
+                ByteBuffer view = segment.buffer.duplicate();
+                view.position(offset + Integer.BYTES);
+                view.get(keyBytes);
+                int crc = segment.buffer.getInt(offset + Integer.BYTES + KEY_BYTES);
+                int length = segment.buffer.getInt(offset + Integer.BYTES + KEY_BYTES + Integer.BYTES);
+                String key = bytesToHex(keyBytes);
+                if (!entries.containsKey(key)) {
+                    addEntry(key, new Entry(segment, offset + ENTRY_HEADER_BYTES, length, crc));
+                }
+                offset += ENTRY_HEADER_BYTES + length;
+            }
+            segment.writePosition = offset;
+            currentSegment = segment;
+        }
+        for (Segment segment : new ArrayList<>(segments.values())) {
+            if (segment.liveBytes == 0 && segment != currentSegment) {
+                deleteSegment(segment);
+            }
+        }
+        evict();
+        log.info("Loaded fragment media cache {} with {} fragments and {} bytes", directory, entries.size(), liveBytes);
+    }
+
+    private static String key(final String streamName, final String fragmentNumber) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return bytesToHex(digest.digest((streamName + "/" + fragmentNumber).getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static int crc(final byte[] bytes) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(bytes, 0, bytes.length);
+        return (int) crc32.getValue();
+    }
+
+    private static String bytesToHex(final byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    private static byte[] hexToBytes(final String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    /* Concatenates the fragments in order, taking each one from the cache or from the fetched stream */
+    private class FragmentSequenceInputStream extends InputStream {
+        private final String streamName;
+        private final Iterator<String> fragmentNumbers;
+        private final Set<String> missing;
+        private final MkvFragmentSplitter splitter;
+        private final MediaFetcher fetcher;
+        private InputStream current = new ByteArrayInputStream(new byte[0]);
+
+        FragmentSequenceInputStream(final String streamName, final List<String> fragmentNumbers, final Set<String> missing,
+                                    final MkvFragmentSplitter splitter, final MediaFetcher fetcher) {
+            this.streamName = streamName;
+            this.fragmentNumbers = fragmentNumbers.iterator();
+            this.missing = missing;
+            this.splitter = splitter;
+            this.fetcher = fetcher;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            while (true) {
+                int count = current.read(b, off, len);
+                if (count >= 0) {
+                    return count;
+                }
+                if (!fragmentNumbers.hasNext()) {
+                    return -1;
+                }
+                current = new ByteArrayInputStream(nextFragment(fragmentNumbers.next()));
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (splitter != null) {
+                splitter.close();
+            }
+        }
+
+        private byte[] nextFragment(final String fragmentNumber) throws IOException {
+            if (!missing.contains(fragmentNumber)) {
+                byte[] cached = get(streamName, fragmentNumber);
+                if (cached != null) {
+                    hits.incrementAndGet();
+                    bytesSaved.addAndGet(cached.length);
+                    return cached;
+                }
+                /* Evicted since the lookup, fetch it on its own */
+                return fetch(new MkvFragmentSplitter(fetcher.getMediaForFragmentList(Collections.singletonList(fragmentNumber))),
+                        fragmentNumber);
+            }
+            return fetch(splitter, fragmentNumber);
+        }
+
+        private byte[] fetch(final MkvFragmentSplitter source, final String fragmentNumber) throws IOException {
+            MkvFragmentSplitter.FragmentBytes fragment = source.next();
+            if (fragment == null) {
+                throw new IOException("Media for fragment " + fragmentNumber + " missing from GetMediaForFragmentList response");
+            }
+            if (fragment.getFragmentNumber() != null && !fragment.getFragmentNumber().equals(fragmentNumber)) {
+                log.warn("Expected fragment {} but received fragment {}", fragmentNumber, fragment.getFragmentNumber());
+            }
+            misses.incrementAndGet();
+            bytesFetched.addAndGet(fragment.getBytes().length);
+            PipelineMetrics.BYTES_DOWNLOADED.add(fragment.getBytes().length);
+            put(streamName, fragment.getFragmentNumber() != null ? fragment.getFragmentNumber() : fragmentNumber, fragment.getBytes());
+            return fragment.getBytes();
+        }
+    }
+}
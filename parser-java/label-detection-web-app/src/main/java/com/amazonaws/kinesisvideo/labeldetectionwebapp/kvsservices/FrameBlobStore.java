@@ -0,0 +1,109 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import lombok.extern.slf4j.Slf4j;
+
+/* Content addressed store of the annotated frame images, kept as files so that the database only holds references.
+ *
+ * An image is stored under the SHA-256 of its bytes, in a subdirectory named after the first two hex digits, so the
+ * same image is only stored once and a stored image never changes. Images are written to a temporary file and moved
+ * in place, so readers never see a partial image. */
+@Slf4j
+public class FrameBlobStore {
+
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{64}");
+    private static final Map<Path, FrameBlobStore> OPEN_STORES = new ConcurrentHashMap<>();
+
+    private final Path directory;
+
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong deduplicated = new AtomicLong();
+    private final AtomicLong bytesStored = new AtomicLong();
+
+    private FrameBlobStore(final Path directory) {
+        this.directory = directory;
+    }
+
+    /* Returns the store in the directory, shared by every caller within this JVM */
+    public static FrameBlobStore open(final Path directory) {
+        return OPEN_STORES.computeIfAbsent(directory.toAbsolutePath(), d -> {
+            try {
+                Files.createDirectories(d);
+                return new FrameBlobStore(d);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Unable to open frame blob store " + d, e);
+            }
+        });
+    }
+
+    public static String hash(final byte[] image) {
+        try {
+            return bytesToHex(MessageDigest.getInstance("SHA-256").digest(image));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* Stores the image unless it is stored already, and returns its hash */
+    public String put(final byte[] image) throws IOException {
+        String hash = hash(image);
+        Path path = path(hash);
+        if (Files.exists(path)) {
+            deduplicated.incrementAndGet();
+            return hash;
+        }
+        Files.createDirectories(path.getParent());
+        Path temporary = Files.createTempFile(path.getParent(), hash, ".tmp");
+        try {
+            Files.write(temporary, image);
+            Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE);
+            stored.incrementAndGet();
+            bytesStored.addAndGet(image.length);
+        } catch (FileAlreadyExistsException e) {
+            /* Stored by another thread in the meantime */
+            deduplicated.incrementAndGet();
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+        return hash;
+    }
+
+    /* File of a stored image, empty for hashes that are malformed or not stored */
+    public Optional<Path> find(final String hash) {
+        if (hash == null || !HASH.matcher(hash).matches()) {
+            return Optional.empty();
+        }
+        Path path = path(hash);
+        return Files.isRegularFile(path) ? Optional.of(path) : Optional.empty();
+    }
+
+    public void logStatistics() {
+        log.info("Frame blob store {}: {} images stored ({} bytes), {} already stored",
+                directory, stored.get(), bytesStored.get(), deduplicated.get());
+    }
+
+    private Path path(final String hash) {
+        return directory.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    private static String bytesToHex(final byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+}
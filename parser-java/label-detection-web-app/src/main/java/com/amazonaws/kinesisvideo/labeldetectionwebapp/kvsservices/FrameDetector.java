@@ -0,0 +1,33 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.amazonaws.services.rekognition.model.Label;
+
+/* Detects labels in an encoded frame, the way Rekognition DetectLabels does.
+ *
+ * Implementations other than Rekognition make it possible to process archives offline and to benchmark decoding and
+ * persistence without the latency and cost of API calls. Implementations are used by several threads at once. */
+public interface FrameDetector {
+
+    String REKOGNITION = "rekognition";
+    String STUB = "stub";
+
+    /* Name of the detector, part of the key of cached results so that results of different detectors never mix */
+    String getName();
+
+    List<Label> detectLabels(ByteBuffer imageBytes, int maxLabels, float minConfidence);
+
+    /* Detector by name, rekognition or stub */
+    static FrameDetector create(final String name) {
+        switch (name) {
+            case REKOGNITION:
+                return new RekognitionFrameDetector(AwsClientRegistry.getRekognitionClient());
+            case STUB:
+                return new StubFrameDetector();
+            default:
+                throw new IllegalArgumentException("Unknown frame detector " + name);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import java.awt.image.BufferedImage;
+
+/* Difference hash of a frame, a cheap fingerprint that barely changes with noise or compression artifacts.
+ *
+ * The image is reduced to 9x8 cells of average luminance and each bit of the 64 bit hash tells whether a cell is
+ * brighter than its right neighbour. The number of differing bits between two hashes measures how different the
+ * frames look. */
+public final class FrameHash {
+
+    private static final int HASH_WIDTH = 9;
+    private static final int HASH_HEIGHT = 8;
+    /* Pixels sampled along each side of a cell, enough to average out noise without reading every pixel */
+    private static final int SAMPLES_PER_CELL = 12;
+
+    private FrameHash() {
+    }
+
+    public static int distance(final long hash, final long otherHash) {
+        return Long.bitCount(hash ^ otherHash);
+    }
+
+    public static long differenceHash(final BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[][] luminance = new int[HASH_HEIGHT][HASH_WIDTH];
+
+        for (int cellY = 0; cellY < HASH_HEIGHT; cellY++) {
+            int top = cellY * height / HASH_HEIGHT;
+            int bottom = Math.max(top + 1, (cellY + 1) * height / HASH_HEIGHT);
+            int stepY = Math.max(1, (bottom - top) / SAMPLES_PER_CELL);
+            for (int cellX = 0; cellX < HASH_WIDTH; cellX++) {
+                int left = cellX * width / HASH_WIDTH;
+                int right = Math.max(left + 1, (cellX + 1) * width / HASH_WIDTH);
+                int stepX = Math.max(1, (right - left) / SAMPLES_PER_CELL);
+                long sum = 0;
+                int count = 0;
+                for (int y = top; y < bottom && y < height; y += stepY) {
+                    for (int x = left; x < right && x < width; x += stepX) {
+                        int rgb = image.getRGB(x, y);
+                        sum += (((rgb >> 16) & 0xff) * 299 + ((rgb >> 8) & 0xff) * 587 + (rgb & 0xff) * 114) / 1000;
+                        count++;
+                    }
+                }
+                luminance[cellY][cellX] = count == 0 ? 0 : (int) (sum / count);
+            }
+        }
+
+        long hash = 0;
+        for (int cellY = 0; cellY < HASH_HEIGHT; cellY++) {
+            for (int cellX = 0; cellX < HASH_WIDTH - 1; cellX++) {
+                hash <<= 1;
+                if (luminance[cellY][cellX] > luminance[cellY][cellX + 1]) {
+                    hash |= 1;
+                }
+            }
+        }
+        return hash;
+    }
+}
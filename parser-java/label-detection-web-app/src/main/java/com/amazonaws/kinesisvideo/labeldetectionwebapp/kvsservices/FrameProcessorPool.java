@@ -0,0 +1,94 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import lombok.extern.slf4j.Slf4j;
+
+/* Pool of frame processors shared by the tasks of one run.
+ *
+ * Every frame processor carries its own H.264 decoder and Rekognition client, which is expensive to set up compared to
+ * a short task. Tasks borrow a processor for their fragments and give it back once done, so only as many processors
+ * are ever created as there are tasks running at the same time. Processors are reset before they are reused. */
+@Slf4j
+public class FrameProcessorPool<T extends SamplingH264FrameDecoder> {
+
+    private final Supplier<T> factory;
+    private final int maxSize;
+    private final BlockingDeque<T> idle = new LinkedBlockingDeque<>();
+    private final AtomicInteger created = new AtomicInteger();
+    private final AtomicLong borrowed = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    private FrameProcessorPool(final int maxSize, final Supplier<T> factory) {
+        this.maxSize = maxSize;
+        this.factory = factory;
+    }
+
+    /* Creates a pool of at most maxSize processors, warmed up with all of them */
+    public static <T extends SamplingH264FrameDecoder> FrameProcessorPool<T> create(final int maxSize, final Supplier<T> factory) {
+        FrameProcessorPool<T> pool = new FrameProcessorPool<>(maxSize, factory);
+        for (int i = 0; i < maxSize; i++) {
+            pool.idle.add(pool.newProcessor());
+        }
+        return pool;
+    }
+
+    /* Returns an idle processor, creates one if the pool is not full yet, or else waits for one to be given back */
+    public T borrow() throws InterruptedException {
+        borrowed.incrementAndGet();
+        T processor = idle.pollFirst();
+        if (processor != null) {
+            reused.incrementAndGet();
+            return processor;
+        }
+        if (created.get() < maxSize) {
+            synchronized (this) {
+                if (created.get() < maxSize) {
+                    return newProcessor();
+                }
+            }
+        }
+        processor = idle.takeFirst();
+        reused.incrementAndGet();
+        return processor;
+    }
+
+    public void giveBack(final T processor) {
+        processor.reset();
+        idle.offerFirst(processor);
+    }
+
+    public int getCreated() {
+        return created.get();
+    }
+
+    public int getIdle() {
+        return idle.size();
+    }
+
+    public int getInUse() {
+        return created.get() - idle.size();
+    }
+
+    public long getBorrowed() {
+        return borrowed.get();
+    }
+
+    public long getReused() {
+        return reused.get();
+    }
+
+    public void logStatistics() {
+        log.info("Frame processor pool created {} processors for {} tasks ({} reused), {} idle, {} in use",
+                created.get(), borrowed.get(), reused.get(), getIdle(), getInUse());
+    }
+
+    private T newProcessor() {
+        created.incrementAndGet();
+        return factory.get();
+    }
+}
@@ -0,0 +1,10 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.JpaFrame;
+
+/* Takes the frames of an analysis as soon as they are saved, so that they need not be kept until every task is done */
+public interface FrameSink {
+
+    /* Called from every task thread, and may block while earlier frames are still being written */
+    void accept(JpaFrame frame) throws InterruptedException;
+}
@@ -1,24 +1,27 @@
 package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
 
 import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.kinesisvideo.labeldetectionwebapp.JpaFrame;
-import com.amazonaws.kinesisvideo.labeldetectionwebapp.TimestampCollection;
 import com.amazonaws.kinesisvideo.parser.examples.KinesisVideoCommon;
 import com.amazonaws.kinesisvideo.parser.examples.StreamOps;
 import com.amazonaws.kinesisvideo.parser.utilities.*;
 import com.amazonaws.regions.Regions;
+import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
 import com.amazonaws.services.kinesisvideo.model.*;
 import lombok.Builder;
 import lombok.Getter;
+import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
 
@@ -26,54 +29,142 @@ import lombok.extern.slf4j.Slf4j;
 public class GetArchivedMedia extends KinesisVideoCommon {
 
     private final TimestampRange timestampRange;
+    /* Parts of the time range to analyze, playback positions still count from the start of the whole range */
+    private final List<TimestampRange> ranges;
     private final StreamOps streamOps;
     private final ExecutorService executorService;
     private final int sampleRate;
+    private final int maxSampleRate;
+    private final int threads;
     private int tasks;
+    private final Path cacheDirectory;
+    private final long cacheSizeBytes;
+    private final float jpegQuality;
+    private final int maxDimension;
+    private final String frameDetector;
+    private final FrameBlobStore frameBlobStore;
+    private final FrameSink frameSink;
 
     private final int awaitTerminationTime = 10800;
-    private AtomicLong playbackLength = new AtomicLong();
-
-    @Getter
-    private Set<String> labels = Collections.synchronizedSet(new HashSet<>());
 
-    @Getter
-    private Map<String, TimestampCollection> labelToTimestamps = Collections.synchronizedMap(new HashMap<>());
+    public static final Path DEFAULT_CACHE_DIRECTORY = Paths.get(System.getProperty("user.home"), ".kvs-archived-media");
+    public static final String FRAMES_DIRECTORY = "frames";
+    private AtomicLong playbackLength = new AtomicLong();
+    private final AtomicLong fragmentsProcessed = new AtomicLong();
+    /* Counted by every task for every frame, so without a single contended value */
+    private final LongAdder framesProcessed = new LongAdder();
+    private volatile int fragmentCount;
 
+    /* Each task adds the labels it found once it is done */
     @Getter
-    private Map<JpaFrame, JpaFrame> frames = Collections.synchronizedMap(new HashMap<>());
+    private final Set<String> labels = ConcurrentHashMap.newKeySet();
 
     @Builder
     private GetArchivedMedia(Regions region,
                              String streamName,
                              AWSCredentialsProvider awsCredentialsProvider,
                              TimestampRange timestampRange,
+                             List<TimestampRange> ranges,
                              int sampleRate,
+                             int maxSampleRate,
                              int threads,
-                             int tasks) {
+                             int tasks,
+                             Path cacheDirectory,
+                             long cacheSizeBytes,
+                             float jpegQuality,
+                             int maxDimension,
+                             String frameDetector,
+                             FrameBlobStore frameBlobStore,
+                             @NonNull FrameSink frameSink) {
         super(region, awsCredentialsProvider, streamName);
         this.streamOps = new StreamOps(region, streamName, awsCredentialsProvider);
         this.executorService = Executors.newFixedThreadPool(threads);
         this.timestampRange = timestampRange;
+        this.ranges = ranges != null && !ranges.isEmpty() ? ranges : Collections.singletonList(timestampRange);
         this.sampleRate = sampleRate;
+        this.maxSampleRate = maxSampleRate;
+        this.threads = threads;
         this.tasks = tasks;
+        this.cacheDirectory = cacheDirectory != null ? cacheDirectory : DEFAULT_CACHE_DIRECTORY;
+        this.cacheSizeBytes = cacheSizeBytes > 0 ? cacheSizeBytes : FragmentMediaCache.DEFAULT_MAX_BYTES;
+        this.jpegQuality = jpegQuality;
+        this.maxDimension = maxDimension;
+        this.frameDetector = frameDetector != null ? frameDetector : FrameDetector.REKOGNITION;
+        this.frameBlobStore = frameBlobStore != null ? frameBlobStore : FrameBlobStore.open(this.cacheDirectory.resolve(FRAMES_DIRECTORY));
+        this.frameSink = frameSink;
+    }
+
+    /* Fragments in the ranges to analyze, known once they were listed at the start of execute */
+    public int getFragmentCount() {
+        return fragmentCount;
+    }
+
+    /* Fragments whose task has finished, so far */
+    public long getFragmentsProcessed() {
+        return fragmentsProcessed.get();
+    }
+
+    /* Frames handed to the frame sink so far */
+    public long getFramesProcessed() {
+        return framesProcessed.sum();
     }
 
-    public void execute() throws InterruptedException, ParseException, ExecutionException {
+    public void execute() throws InterruptedException, ParseException, ExecutionException, TimeoutException {
 
-        List<TimestampRange> timestampRanges = partitionTimeRange(timestampRange);
+        /* Each range to analyze gets its share of the tasks, and at least one */
+        long span = ranges.stream().mapToLong(GetArchivedMedia::span).sum();
+        List<TimestampRange> timestampRanges = new ArrayList<>();
+        for (TimestampRange range : ranges) {
+            timestampRanges.addAll(partitionTimeRange(range, (int) Math.max(1, tasks * span(range) / Math.max(1, span))));
+        }
 
         String listFragmentsEndpoint = getListFragmentsEndpoint(getStreamName());
         String getMediaFragmentListEndpoint = getGetMediaForFragmentListEndpoint(getStreamName());
 
-        List<Future<List<JpaFrame>>> framesForEachTask = new ArrayList<>();
+        FragmentIndex fragmentIndex = FragmentIndex.open(cacheDirectory.resolve("fragment-index"), getStreamName());
 
-        for (TimestampRange timestampRange : timestampRanges) {
+        /* Bring the whole range into the fragment index up front so that every task only does a local lookup */
+        AmazonKinesisVideoArchivedMedia listFragmentsClient = AwsClientRegistry.getArchivedMediaClient(
+                getCredentialsProvider(), listFragmentsEndpoint, getRegion());
+        List<Fragment> fragments = fragmentIndex.getFragments(timestampRange,
+                range -> GetMediaArchivedRekognitionWorker.listFragments(listFragmentsClient, getStreamName(), range));
+        fragmentCount = (int) fragments.stream()
+                .filter(fragment -> ranges.stream().anyMatch(range -> contains(range, fragment.getServerTimestamp())))
+                .count();
+        log.info("Fragment index holds {} fragments for the requested range, {} of them to analyze", fragments.size(), fragmentCount);
 
-            log.info(timestampRange.toString());
+        /* Playback positions count from the first fragment in producer time, which frame timestamps are in */
+        long recordStartMillis = fragments.stream().mapToLong(fragment -> fragment.getProducerTimestamp().getTime()).min()
+                .orElse(timestampRange.getStartTimestamp().getTime());
+
+        FragmentMediaCache fragmentMediaCache = FragmentMediaCache.open(cacheDirectory.resolve("fragment-media"), cacheSizeBytes);
+
+        /* Frames analyzed for an earlier stream record are saved again without calling Rekognition */
+        DetectionResultCache detectionResultCache = DetectionResultCache.open(cacheDirectory.resolve("detections"),
+                DetectionResultCache.DEFAULT_MAX_ENTRIES);
 
-            H264ImageDetectionBoundingBoxSaver h264ImageDetectionBoundingBoxSaver = H264ImageDetectionBoundingBoxSaver.create(sampleRate, getLabels(), getFrames(), getLabelToTimestamps());
-            FrameVisitor frameVisitor = FrameVisitor.create(h264ImageDetectionBoundingBoxSaver);
+        /* Detectors keep no state between frames, so every saver shares the same one */
+        FrameDetector detector = FrameDetector.create(frameDetector);
+
+        /* Frames go to the sink as soon as they are saved rather than being kept until every task is done */
+        FrameSink countingFrameSink = frame -> {
+            framesProcessed.increment();
+            frameSink.accept(frame);
+        };
+
+        /* One saver per thread is enough, tasks borrow them rather than each creating their own */
+        FrameProcessorPool<H264ImageDetectionBoundingBoxSaver> frameProcessorPool = FrameProcessorPool.create(threads,
+                () -> H264ImageDetectionBoundingBoxSaver.create(SamplingPolicy.create(sampleRate, maxSampleRate), getLabels(), countingFrameSink, recordStartMillis,
+                        ImageIOFrameEncoder.builder().quality(jpegQuality).maxDimension(maxDimension).build(),
+                        ImageIOFrameEncoder.builder().quality(jpegQuality).build(),
+                        detectionResultCache, detector, frameBlobStore));
+
+        List<Future<Integer>> framesForEachTask = new ArrayList<>();
+
+        for (int taskIndex = 0; taskIndex < timestampRanges.size(); taskIndex++) {
+            TimestampRange timestampRange = timestampRanges.get(taskIndex);
+
+            log.info(timestampRange.toString());
 
             GetMediaArchivedRekognitionWorker getMediaArchivedRekognitionWorker = GetMediaArchivedRekognitionWorker.create(getStreamName(),
                     getCredentialsProvider(),
@@ -82,13 +173,16 @@ public class GetArchivedMedia extends KinesisVideoCommon {
                     new FragmentSelector()
                             .withFragmentSelectorType(FragmentSelectorType.SERVER_TIMESTAMP)
                             .withTimestampRange(timestampRange),
-                    frameVisitor,
-                    h264ImageDetectionBoundingBoxSaver,
+                    frameProcessorPool,
                     listFragmentsEndpoint,
                     getMediaFragmentListEndpoint,
-                    playbackLength);
+                    playbackLength,
+                    fragmentsProcessed,
+                    fragmentIndex,
+                    fragmentMediaCache,
+                    taskIndex);
 
-            Future<List<JpaFrame>> framesForTask = executorService.submit(getMediaArchivedRekognitionWorker);
+            Future<Integer> framesForTask = executorService.submit(getMediaArchivedRekognitionWorker);
             framesForEachTask.add(framesForTask);
         }
 
@@ -98,16 +192,32 @@ public class GetArchivedMedia extends KinesisVideoCommon {
         if (!executorService.isTerminated()) {
             log.warn("Shutting down executor service by force");
             executorService.shutdownNow();
+            /* Tasks cut short leave their ranges partly analyzed, so the analysis fails rather than being taken as done */
+            throw new TimeoutException("Tasks of stream " + getStreamName() + " did not finish within "
+                    + awaitTerminationTime + " seconds");
         } else {
             log.info("Executor service is shutdown");
             log.info("Total playback time duration: {} milliseconds", playbackLength.get());
-            log.info("Total frames processed: {}", this.frames.size());
-            updateFramePlaybackTimestamps(framesForEachTask, playbackLength, frames.size());
+            /* Fails the analysis when a task failed */
+            for (Future<Integer> framesForTask : framesForEachTask) {
+                framesForTask.get();
+            }
+            log.info("Total frames processed: {} with {} labels", framesProcessed.sum(), labels.size());
         }
+        PipelineMetrics.logStatistics();
+        fragmentMediaCache.logStatistics();
+        detectionResultCache.logStatistics();
+        frameBlobStore.logStatistics();
+        frameProcessorPool.logStatistics();
+        AwsClientRegistry.logStatistics();
     }
 
     /* Create N time stamp ranges so that each of the N threads can call ListFragments on a specified partition */
     public List<TimestampRange> partitionTimeRange(TimestampRange timestampRange) throws ParseException {
+        return partitionTimeRange(timestampRange, tasks);
+    }
+
+    public List<TimestampRange> partitionTimeRange(TimestampRange timestampRange, int tasks) {
         List<TimestampRange> timestampRanges = new ArrayList<>();
 
 
@@ -143,43 +253,13 @@ public class GetArchivedMedia extends KinesisVideoCommon {
         return timestampRanges;
     }
 
-    private void updateFramePlaybackTimestamps(List<Future<List<JpaFrame>>> framesForEachTask, AtomicLong playbackLength, long numFrames) throws ExecutionException, InterruptedException {
-        long timespan = playbackLength.get();
-        long msStartTimestamp = 0;
-        long timePerFrame = timespan / numFrames;
-        long frameCount = 0;
-
-        for (Future<List<JpaFrame>> listFuture : framesForEachTask) {
-            List<JpaFrame> framesForTask = listFuture.get();
-            long framesPerTask = (long) framesForTask.size();
-
-            if (framesPerTask > 0) {
-
-                for (JpaFrame f : framesForTask) {
-                    long timeAfterStart = timePerFrame * frameCount;
-                    long frameTimestampInMs = timeAfterStart + msStartTimestamp;
-                    String frameTimestamp = convertMillisecondsToTimestamp(frameTimestampInMs);
-
-                    this.frames.get(f).setPlaybackTimestampAndFrameNum(frameTimestamp, frameCount);
-
-                    for (String label : f.getLabels()) {
-                        this.labelToTimestamps.get(label).addTimestamp(frameTimestamp);
-                        this.labelToTimestamps.get(label).addTimestampAndFrame(frameTimestamp, f);
-                    }
-                    frameCount++;
-                }
-            }
-        }
+    /* Milliseconds in the range, both ends included */
+    private static long span(TimestampRange range) {
+        return range.getEndTimestamp().getTime() - range.getStartTimestamp().getTime() + 1;
     }
 
-    private String convertMillisecondsToTimestamp(long millis) {
-        String timestamp = String.format("%02d:%02d:%02d",
-                TimeUnit.MILLISECONDS.toHours(millis),
-                TimeUnit.MILLISECONDS.toMinutes(millis) -
-                        TimeUnit.HOURS.toMinutes(TimeUnit.MILLISECONDS.toHours(millis)), // The change is in this line
-                TimeUnit.MILLISECONDS.toSeconds(millis) -
-                        TimeUnit.MINUTES.toSeconds(TimeUnit.MILLISECONDS.toMinutes(millis)));
-        return timestamp;
+    private static boolean contains(TimestampRange range, Date timestamp) {
+        return timestamp != null && !timestamp.before(range.getStartTimestamp()) && !timestamp.after(range.getEndTimestamp());
     }
 
     private String getListFragmentsEndpoint(String streamName) {
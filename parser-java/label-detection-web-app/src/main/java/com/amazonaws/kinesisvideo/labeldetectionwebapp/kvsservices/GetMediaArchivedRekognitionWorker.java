@@ -1,5 +1,6 @@
 package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
 
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -7,32 +8,31 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.atomic.AtomicLong;
 
 import com.amazonaws.auth.AWSCredentialsProvider;
-import com.amazonaws.client.builder.AwsClientBuilder;
 
-import com.amazonaws.kinesisvideo.labeldetectionwebapp.JpaFrame;
 import com.amazonaws.kinesisvideo.parser.ebml.InputStreamParserByteSource;
 import com.amazonaws.kinesisvideo.parser.examples.KinesisVideoCommon;
-import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitException;
-import com.amazonaws.kinesisvideo.parser.mkv.MkvElementVisitor;
 import com.amazonaws.kinesisvideo.parser.mkv.StreamingMkvReader;
+import com.amazonaws.kinesisvideo.parser.utilities.FrameVisitor;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideo;
 import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMedia;
-import com.amazonaws.services.kinesisvideo.AmazonKinesisVideoArchivedMediaClient;
 import com.amazonaws.services.kinesisvideo.model.*;
 
 import lombok.extern.slf4j.Slf4j;
 
 
 @Slf4j
-public class GetMediaArchivedRekognitionWorker extends KinesisVideoCommon implements Callable {
+public class GetMediaArchivedRekognitionWorker extends KinesisVideoCommon implements Callable<Integer> {
     private FragmentSelector fragmentSelector;
     private final AmazonKinesisVideoArchivedMedia amazonKinesisVideoArchivedMediaListFragments;
     private final AmazonKinesisVideoArchivedMedia amazonKinesisVideoArchivedMediaGetMediaForFragmentList;
-    private MkvElementVisitor elementVisitor;
-    private H264ImageDetectionBoundingBoxSaver h264ImageDetectionBoundingBoxSaver;
-    private final long fragmentsPerRequest = 100;
+    private final FrameProcessorPool<H264ImageDetectionBoundingBoxSaver> frameProcessorPool;
+    private final FragmentIndex fragmentIndex;
+    private final FragmentMediaCache fragmentMediaCache;
+    private static final long FRAGMENTS_PER_REQUEST = 1000;
     private AtomicLong playbackLength;
+    private final AtomicLong fragmentsProcessed;
+    private final int taskIndex;
 
     public GetMediaArchivedRekognitionWorker(final String streamName,
                                              final AWSCredentialsProvider awsCredentialsProvider,
@@ -40,26 +40,27 @@ public class GetMediaArchivedRekognitionWorker extends KinesisVideoCommon implem
                                              final String getMediaForFragmentListEndPoint,
                                              final Regions region,
                                              final FragmentSelector fragmentSelector,
-                                             final MkvElementVisitor elementVisitor,
-                                             final H264ImageDetectionBoundingBoxSaver h264ImageDetectionBoundingBoxSaver,
-                                             final AtomicLong playbackLength) {
+                                             final FrameProcessorPool<H264ImageDetectionBoundingBoxSaver> frameProcessorPool,
+                                             final AtomicLong playbackLength,
+                                             final AtomicLong fragmentsProcessed,
+                                             final FragmentIndex fragmentIndex,
+                                             final FragmentMediaCache fragmentMediaCache,
+                                             final int taskIndex) {
         super(region, awsCredentialsProvider, streamName);
         this.fragmentSelector = fragmentSelector;
-        this.elementVisitor = elementVisitor;
+        this.frameProcessorPool = frameProcessorPool;
         this.playbackLength = playbackLength;
-        this.h264ImageDetectionBoundingBoxSaver = h264ImageDetectionBoundingBoxSaver;
+        this.fragmentsProcessed = fragmentsProcessed;
+        this.fragmentIndex = fragmentIndex;
+        this.fragmentMediaCache = fragmentMediaCache;
+        this.taskIndex = taskIndex;
 
-        amazonKinesisVideoArchivedMediaListFragments = AmazonKinesisVideoArchivedMediaClient
-                .builder()
-                .withCredentials(awsCredentialsProvider)
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(listFragmentsEndPoint, region.getName()))
-                .build();
+        /* Clients are shared by all tasks rather than built per task */
+        amazonKinesisVideoArchivedMediaListFragments = AwsClientRegistry.getArchivedMediaClient(
+                awsCredentialsProvider, listFragmentsEndPoint, region);
 
-        amazonKinesisVideoArchivedMediaGetMediaForFragmentList = AmazonKinesisVideoArchivedMediaClient
-                .builder()
-                .withCredentials(awsCredentialsProvider)
-                .withEndpointConfiguration(new AwsClientBuilder.EndpointConfiguration(getMediaForFragmentListEndPoint, region.getName()))
-                .build();
+        amazonKinesisVideoArchivedMediaGetMediaForFragmentList = AwsClientRegistry.getArchivedMediaClient(
+                awsCredentialsProvider, getMediaForFragmentListEndPoint, region);
 
     }
 
@@ -68,84 +69,111 @@ public class GetMediaArchivedRekognitionWorker extends KinesisVideoCommon implem
                                                            final Regions region,
                                                            final AmazonKinesisVideo amazonKinesisVideo,
                                                            final FragmentSelector fragmentSelector,
-                                                           final MkvElementVisitor elementVisitor,
-                                                           final H264ImageDetectionBoundingBoxSaver h264ImageDetectionBoundingBoxSaver,
+                                                           final FrameProcessorPool<H264ImageDetectionBoundingBoxSaver> frameProcessorPool,
                                                            final String listFragmentsEndpoint,
                                                            final String getMediaForFragmentListEndpoint,
-                                                           final AtomicLong playbackLength) {
+                                                           final AtomicLong playbackLength,
+                                                           final AtomicLong fragmentsProcessed,
+                                                           final FragmentIndex fragmentIndex,
+                                                           final FragmentMediaCache fragmentMediaCache,
+                                                           final int taskIndex) {
 
         return new GetMediaArchivedRekognitionWorker(
-                streamName, awsCredentialsProvider, listFragmentsEndpoint, getMediaForFragmentListEndpoint, region, fragmentSelector, elementVisitor, h264ImageDetectionBoundingBoxSaver, playbackLength);
+                streamName, awsCredentialsProvider, listFragmentsEndpoint, getMediaForFragmentListEndpoint, region, fragmentSelector, frameProcessorPool, playbackLength, fragmentsProcessed, fragmentIndex, fragmentMediaCache, taskIndex);
     }
 
+    /* Lists every fragment of the stream within the server timestamp range, following next tokens until done */
+    public static List<Fragment> listFragments(final AmazonKinesisVideoArchivedMedia amazonKinesisVideoArchivedMedia,
+                                               final String streamName,
+                                               final TimestampRange timestampRange) {
+        ListFragmentsRequest listFragmentsRequest = new ListFragmentsRequest()
+                .withStreamName(streamName)
+                .withFragmentSelector(new FragmentSelector()
+                        .withFragmentSelectorType(FragmentSelectorType.SERVER_TIMESTAMP)
+                        .withTimestampRange(timestampRange))
+                .withMaxResults(FRAGMENTS_PER_REQUEST);
+
+        ListFragmentsResult listFragmentsResult = amazonKinesisVideoArchivedMedia.listFragments(listFragmentsRequest);
+
+        log.info("List Fragments called on stream {} response {} request ID {}",
+                streamName,
+                listFragmentsResult.getSdkHttpMetadata().getHttpStatusCode(),
+                listFragmentsResult.getSdkResponseMetadata().getRequestId());
+
+        List<Fragment> fragments = new ArrayList<>(listFragmentsResult.getFragments());
+        String nextToken = listFragmentsResult.getNextToken();
+
+        /* If result is truncated, keep making requests until nextToken is empty */
+        while (nextToken != null) {
+            listFragmentsRequest = new ListFragmentsRequest()
+                    .withStreamName(streamName).withNextToken(nextToken);
+            listFragmentsResult = amazonKinesisVideoArchivedMedia.listFragments(listFragmentsRequest);
+
+            fragments.addAll(listFragmentsResult.getFragments());
+            nextToken = listFragmentsResult.getNextToken();
+        }
+        return fragments;
+    }
+
+    private InputStream getMediaForFragmentList(final List<String> fragmentNumbers) {
+        GetMediaForFragmentListRequest getMediaFragmentListRequest = new GetMediaForFragmentListRequest()
+                .withFragments(fragmentNumbers)
+                .withStreamName(streamName);
+
+        return amazonKinesisVideoArchivedMediaGetMediaForFragmentList.getMediaForFragmentList(getMediaFragmentListRequest).getPayload();
+    }
+
+    /* Returns the number of frames the task saved, and fails when any part of its range could not be analyzed so that
+     * the range is not taken as covered */
     @Override
-    public List<JpaFrame> call() {
+    public Integer call() throws Exception {
+        final long startTime = System.nanoTime();
+        int framesInTask = 0;
         try {
             log.info("Start ListFragment worker on stream {}", streamName);
 
             /* ---------------------------- LIST FRAGMENTS SECTION ---------------------------- */
-            ListFragmentsRequest listFragmentsRequest = new ListFragmentsRequest()
-                    .withStreamName(streamName).withFragmentSelector(fragmentSelector).withMaxResults(fragmentsPerRequest);
-
-            log.info(listFragmentsRequest.toString());
-
-            ListFragmentsResult listFragmentsResult = amazonKinesisVideoArchivedMediaListFragments.listFragments(listFragmentsRequest);
-
-
-            log.info("List Fragments called on stream {} response {} request ID {}",
-                    streamName,
-                    listFragmentsResult.getSdkHttpMetadata().getHttpStatusCode(),
-                    listFragmentsResult.getSdkResponseMetadata().getRequestId());
-
-
             List<String> fragmentNumbers = new ArrayList<>();
-            for (Fragment f : listFragmentsResult.getFragments()) {
+            for (Fragment f : fragmentIndex.getFragments(fragmentSelector.getTimestampRange(),
+                    timestampRange -> listFragments(amazonKinesisVideoArchivedMediaListFragments, streamName, timestampRange))) {
                 fragmentNumbers.add(f.getFragmentNumber());
                 playbackLength.addAndGet(f.getFragmentLengthInMilliseconds());
             }
 
-            String nextToken = listFragmentsResult.getNextToken();
-
-            /* If result is truncated, keep making requests until nextToken is empty */
-            while (nextToken != null) {
-                listFragmentsRequest = new ListFragmentsRequest()
-                        .withStreamName(streamName).withNextToken(nextToken);
-                listFragmentsResult = amazonKinesisVideoArchivedMediaListFragments.listFragments(listFragmentsRequest);
-
-                for (Fragment f : listFragmentsResult.getFragments()) {
-                    fragmentNumbers.add(f.getFragmentNumber());
-                }
-                nextToken = listFragmentsResult.getNextToken();
-            }
-
             Collections.sort(fragmentNumbers);
 
             /* ------------------------- GET MEDIA SECTION ------------------------- */
 
             if (fragmentNumbers.size() > 0) {
-                GetMediaForFragmentListRequest getMediaFragmentListRequest = new GetMediaForFragmentListRequest()
-                        .withFragments(fragmentNumbers)
-                        .withStreamName(streamName);
-
-                GetMediaForFragmentListResult getMediaForFragmentListResult = amazonKinesisVideoArchivedMediaGetMediaForFragmentList.getMediaForFragmentList(getMediaFragmentListRequest);
-
-                StreamingMkvReader mkvStreamReader = StreamingMkvReader.createDefault(
-                        new InputStreamParserByteSource(getMediaForFragmentListResult.getPayload()));
-
-                try {
-                    mkvStreamReader.apply(this.elementVisitor);
-                } catch (final MkvElementVisitException e) {
-                    log.warn("Exception while accepting visitor {}", e);
+                /* Borrow a warmed up saver rather than setting up a decoder and Rekognition client per task */
+                H264ImageDetectionBoundingBoxSaver h264ImageDetectionBoundingBoxSaver = frameProcessorPool.borrow();
+                h264ImageDetectionBoundingBoxSaver.startTask(taskIndex);
+
+                /* Fragments already in the local media cache are not downloaded again */
+                try (InputStream payload = fragmentMediaCache.getMedia(streamName, fragmentNumbers, this::getMediaForFragmentList)) {
+                    StreamingMkvReader mkvStreamReader = StreamingMkvReader.createDefault(
+                            new InputStreamParserByteSource(payload));
+
+                    mkvStreamReader.apply(FrameVisitor.create(h264ImageDetectionBoundingBoxSaver));
+                } finally {
+                    framesInTask = h264ImageDetectionBoundingBoxSaver.finishTask();
+                    frameProcessorPool.giveBack(h264ImageDetectionBoundingBoxSaver);
                 }
             }
+            fragmentsProcessed.addAndGet(fragmentNumbers.size());
+
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for a frame processor");
+            Thread.currentThread().interrupt();
+            throw e;
 
         } catch (Throwable t) {
-            log.error("Failure in GetMediaArchivedRekognitionWorker for streamName {} {} with timestamp range {}", streamName, t.toString(), fragmentSelector.getTimestampRange().toString());
-            t.printStackTrace();
+            log.error("Failure in GetMediaArchivedRekognitionWorker for streamName {} {} with timestamp range {}", streamName, t.toString(), fragmentSelector.getTimestampRange().toString(), t);
             throw t;
         } finally {
+            PipelineMetrics.TASK.recordSince(startTime);
             log.info("Exiting GetMediaArchivedRekognitionWorker for stream {}", streamName);
-            return this.h264ImageDetectionBoundingBoxSaver.getFramesInTask();
         }
+        return framesInTask;
     }
 }
\ No newline at end of file
@@ -2,19 +2,14 @@ package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.List;
 
 import com.amazonaws.kinesisvideo.labeldetectionwebapp.JpaFrame;
-import com.amazonaws.kinesisvideo.labeldetectionwebapp.TimestampCollection;
 import com.amazonaws.kinesisvideo.parser.mkv.Frame;
-import com.amazonaws.kinesisvideo.parser.mkv.FrameProcessException;
-import com.amazonaws.kinesisvideo.parser.utilities.*;
-import com.amazonaws.services.rekognition.AmazonRekognition;
-import com.amazonaws.services.rekognition.AmazonRekognitionClientBuilder;
+import com.amazonaws.kinesisvideo.parser.utilities.FragmentMetadata;
 import com.amazonaws.services.rekognition.model.*;
 import com.amazonaws.services.rekognition.model.Image;
 import com.amazonaws.services.rekognition.model.Label;
@@ -24,102 +19,126 @@ import lombok.extern.slf4j.Slf4j;
 import static com.amazonaws.kinesisvideo.parser.utilities.BufferedImageUtil.addTextToImage;
 
 
-import javax.imageio.ImageIO;
-
 @Slf4j
-public class H264ImageDetectionBoundingBoxSaver extends H264FrameDecoder {
-
-    private final AmazonRekognition rekognitionClient = AmazonRekognitionClientBuilder.defaultClient();
-    private final int sampleRate;
-    private Set<String> labels;
-    private Map<JpaFrame, JpaFrame> frames;
-    private Map<String, TimestampCollection> labelToTimestamps;
-    private List<JpaFrame> framesInTask = new ArrayList<>();
-    private long frameNumber;
-
-    private H264ImageDetectionBoundingBoxSaver(final int sampleRate, Set<String> labels, Map<JpaFrame, JpaFrame> frames, Map<String, TimestampCollection> labelToTimestamps) {
-        this.sampleRate = sampleRate;
+public class H264ImageDetectionBoundingBoxSaver extends SamplingH264FrameDecoder {
+
+    /* Labels of every task, which each task only adds to once it is done */
+    private final Set<String> labels;
+    private final Set<String> labelsInTask = new HashSet<>();
+    private final FrameSink frameSink;
+    /* Producer timestamp of the start of the stream record, where playback positions start from */
+    private final long recordStartMillis;
+    private long fragmentStartMillis;
+    private int taskIndex;
+    private int framesInTask;
+    private final FrameEncoder detectionEncoder;
+    private final FrameEncoder storageEncoder;
+    private final DetectionResultCache resultCache;
+    private final FrameDetector frameDetector;
+    private final FrameBlobStore frameBlobStore;
+
+    private H264ImageDetectionBoundingBoxSaver(final SamplingPolicy samplingPolicy, Set<String> labels, FrameSink frameSink, long recordStartMillis,
+                                               FrameEncoder detectionEncoder, FrameEncoder storageEncoder, DetectionResultCache resultCache,
+                                               FrameDetector frameDetector, FrameBlobStore frameBlobStore) {
+        super(samplingPolicy);
         this.labels = labels;
-        this.frames = frames;
-        this.labelToTimestamps = labelToTimestamps;
+        this.frameSink = frameSink;
+        this.recordStartMillis = recordStartMillis;
+        this.detectionEncoder = detectionEncoder;
+        this.storageEncoder = storageEncoder;
+        this.resultCache = resultCache;
+        this.frameDetector = frameDetector;
+        this.frameBlobStore = frameBlobStore;
     }
 
-    public static H264ImageDetectionBoundingBoxSaver create(final int sampleRate, Set<String> labels, Map<JpaFrame, JpaFrame> frames, Map<String, TimestampCollection> labelToTimestamps) {
-        return new H264ImageDetectionBoundingBoxSaver(sampleRate, labels, frames, labelToTimestamps);
+    public static H264ImageDetectionBoundingBoxSaver create(final int sampleRate, Set<String> labels, FrameSink frameSink, long recordStartMillis) {
+        return create(new FixedSamplingPolicy(sampleRate), labels, frameSink, recordStartMillis, ImageIOFrameEncoder.builder().build(), ImageIOFrameEncoder.builder().build(),
+                DetectionResultCache.inMemory(DetectionResultCache.DEFAULT_MAX_ENTRIES), FrameDetector.create(FrameDetector.REKOGNITION),
+                FrameBlobStore.open(GetArchivedMedia.DEFAULT_CACHE_DIRECTORY.resolve(GetArchivedMedia.FRAMES_DIRECTORY)));
     }
 
-    @Override
-    public void process(Frame frame, MkvTrackMetadata trackMetadata, Optional<FragmentMetadata> fragmentMetadata,
-                        Optional<FragmentMetadataVisitor.MkvTagProcessor> tagProcessor) throws FrameProcessException {
-
-        BufferedImage bufferedImage = decodeH264Frame(frame, trackMetadata);
-
-        /* Only send key frames to Rekognition */
-        if (sampleRate == 0) {
-            if (frame.isKeyFrame()) {
-                saveFrame(bufferedImage);
-            }
-        } else {
-            /* Only send to Rekognition every N frames */
-            if ((frameNumber % sampleRate) == 0) {
-                saveFrame(bufferedImage);
-            }
-            frameNumber++;
-        }
+    /* The detection encoder produces what is sent to the frame detector, the storage encoder the saved frame with its bounding boxes,
+     * whose image goes to the blob store while the frame only keeps its hash */
+    public static H264ImageDetectionBoundingBoxSaver create(final SamplingPolicy samplingPolicy, Set<String> labels, FrameSink frameSink,
+                                                            long recordStartMillis, FrameEncoder detectionEncoder, FrameEncoder storageEncoder,
+                                                            DetectionResultCache resultCache, FrameDetector frameDetector,
+                                                            FrameBlobStore frameBlobStore) {
+        return new H264ImageDetectionBoundingBoxSaver(samplingPolicy, labels, frameSink, recordStartMillis, detectionEncoder, storageEncoder,
+                resultCache, frameDetector, frameBlobStore);
     }
 
-    public void saveFrame(final BufferedImage bufferedImage) {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    /* Only frames picked by the sampling policy are decoded, sent to Rekognition and saved */
+    @Override
+    protected void processSampledFrame(BufferedImage bufferedImage, Frame frame, Optional<FragmentMetadata> fragmentMetadata) {
+        /* The timecode of a block is relative to its cluster, which starts at the producer timestamp of the fragment.
+         * Kinesis Video producers use a timecode scale of one millisecond. Without the fragment tags, the frame is
+         * taken to belong to the last fragment seen. */
+        fragmentMetadata.ifPresent(metadata -> fragmentStartMillis = metadata.getProducerSideTimestampMillis());
+        saveFrame(bufferedImage, fragmentStartMillis + frame.getTimeCode());
+    }
 
+    public void saveFrame(final BufferedImage bufferedImage, final long producerTimestampMillis) {
         try {
-            ImageIO.write(bufferedImage, "png", outputStream);
-            ByteBuffer imageBytes = ByteBuffer.wrap(outputStream.toByteArray());
+            ByteBuffer imageBytes = ByteBuffer.wrap(detectionEncoder.encode(bufferedImage));
             List<BoundingBox> boundingBoxes = new ArrayList<>();
-            List<String> labelsInFrame = sendToRekognition(imageBytes, bufferedImage, boundingBoxes);
+            Map<String, Float> labelConfidences = new HashMap<>();
+            long startTime = System.nanoTime();
+            PipelineMetrics.FRAMES_SUBMITTED.increment();
+            List<String> labelsInFrame = sendToRekognition(imageBytes, bufferedImage, boundingBoxes, labelConfidences);
+            PipelineMetrics.DETECT.recordSince(startTime);
 
             for (BoundingBox boundingBox : boundingBoxes) {
                 addBoundingBoxToImage(bufferedImage, boundingBox);
             }
-            byte[] boundingBoxImageByteArray = toByteArrayAutoClosable(bufferedImage, "png");
-            JpaFrame jpaFrameToSave = new JpaFrame(boundingBoxImageByteArray);
+            byte[] boundingBoxImageByteArray = storageEncoder.encode(bufferedImage);
+            String imageHash = frameBlobStore.put(boundingBoxImageByteArray);
+            JpaFrame jpaFrameToSave = new JpaFrame(imageHash, boundingBoxImageByteArray.length, storageEncoder.getMimeType());
+            jpaFrameToSave.setFrameNumber(sequenceNumber(taskIndex, framesInTask++));
+            jpaFrameToSave.setProducerTimestampMillis(producerTimestampMillis);
+            jpaFrameToSave.setPlaybackPosition(Math.max(0, producerTimestampMillis - recordStartMillis));
 
             for (String label : labelsInFrame) {
-                jpaFrameToSave.addLabel(label);
-                this.labelToTimestamps.get(label).addFrame(jpaFrameToSave);
+                jpaFrameToSave.addLabel(label, labelConfidences.get(label));
             }
 
-            this.frames.put(jpaFrameToSave, jpaFrameToSave);
-            this.framesInTask.add(jpaFrameToSave);
+            frameSink.accept(jpaFrameToSave);
 
         } catch (IOException e) {
-            log.warn("Error with png conversion", e);
-            System.out.println("Error with byte buffer conversion");
+            log.warn("Error with {} conversion", detectionEncoder.getMimeType(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while handing over a frame", e);
         }
     }
 
-    public List<String> sendToRekognition(ByteBuffer imageBytes, BufferedImage bufferedImage, List<BoundingBox> boundingBoxes) {
+    /* A frame whose labels could not be detected fails its task rather than being saved without labels, so that the
+     * range of the task is left for a later job to analyze again */
+    public List<String> sendToRekognition(ByteBuffer imageBytes, BufferedImage bufferedImage, List<BoundingBox> boundingBoxes,
+                                          Map<String, Float> labelConfidences) {
         List<String> labelsInFrame = new ArrayList<>();
 
-        DetectLabelsRequest request = new DetectLabelsRequest()
-                .withImage(new Image()
-                        .withBytes(imageBytes))
-                .withMaxLabels(10)
-                .withMinConfidence(77F);
+        final int maxLabels = 10;
+        final float minConfidence = 77F;
 
         try {
-            DetectLabelsResult result = rekognitionClient.detectLabels(request);
-            List<Label> labels = result.getLabels();
+            /* Frames analyzed before, for this stream record or an earlier one, are saved without calling the detector */
+            String cacheKey = DetectionResultCache.key(frameDetector.getName(), imageBytes, maxLabels, minConfidence);
+            List<Label> labels = resultCache.get(cacheKey);
+            if (labels == null) {
+                labels = frameDetector.detectLabels(imageBytes, maxLabels, minConfidence);
+                resultCache.put(cacheKey, labels);
+            }
             int width = bufferedImage.getWidth();
             int height = bufferedImage.getHeight();
 
-            log.info("Detected Labels:");
+            log.debug("Detected labels:");
             for (Label label : labels) {
-                log.info(label.getName() + ": " + label.getConfidence().toString());
-                this.labels.add(label.getName());
-                this.labelToTimestamps.putIfAbsent(label.getName(), new TimestampCollection());
+                log.debug("{}: {}", label.getName(), label.getConfidence());
+                this.labelsInTask.add(label.getName());
                 labelsInFrame.add(label.getName());
+                labelConfidences.put(label.getName(), label.getConfidence());
             }
-            log.info("----------------------");
+            getSamplingPolicy().onLabels(labelsInFrame);
 
             for (Label label : labels) {
                 for (Instance instance : label.getInstances()) {
@@ -132,9 +151,9 @@ public class H264ImageDetectionBoundingBoxSaver extends H264FrameDecoder {
             return labelsInFrame;
 
         } catch (AmazonRekognitionException e) {
-            e.printStackTrace();
+            log.warn("Failed to detect the labels of a frame with {}", frameDetector.getName(), e);
+            throw e;
         }
-        return null;
     }
 
     public void addBoundingBoxToImage(@NonNull BufferedImage bufferedImage, BoundingBox boundingBox) {
@@ -153,14 +172,35 @@ public class H264ImageDetectionBoundingBoxSaver extends H264FrameDecoder {
         graphics.drawRect(left, top, bbWidth, bbHeight);
     }
 
-    private static byte[] toByteArrayAutoClosable(BufferedImage image, String type) throws IOException {
-        try (ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            ImageIO.write(image, type, out);
-            return out.toByteArray();
-        }
+    /* Frames saved from now on belong to the given task */
+    public void startTask(final int taskIndex) {
+        this.taskIndex = taskIndex;
+        this.fragmentStartMillis = recordStartMillis;
+        this.framesInTask = 0;
+        this.labelsInTask.clear();
+    }
+
+    /* Adds the labels of the task to those of every task, once rather than for every frame, and returns the number
+     * of frames the task saved */
+    public int finishTask() {
+        this.labels.addAll(this.labelsInTask);
+        this.labelsInTask.clear();
+        return this.framesInTask;
+    }
+
+    /* Frame numbers follow the order of the tasks and then the order within the task, which is playback order */
+    public static long sequenceNumber(final int taskIndex, final int frameInTask) {
+        return ((long) taskIndex << Integer.SIZE) | frameInTask;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        this.framesInTask = 0;
+        this.labelsInTask.clear();
     }
 
-    public List<JpaFrame> getFramesInTask() {
+    public int getFramesInTask() {
         return this.framesInTask;
     }
 
@@ -0,0 +1,116 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import lombok.Builder;
+import lombok.Getter;
+
+/* Frame encoder backed by an ImageIO writer, JPEG by default.
+ *
+ * The writer, its parameters and the output buffer are kept across frames, and the output is written through an
+ * in-memory image stream, so encoding a frame does not set up any writer or temporary file. Frames larger than the
+ * maximum dimension are scaled down first, keeping their aspect ratio. */
+public class ImageIOFrameEncoder implements FrameEncoder {
+
+    public enum Format {
+        JPEG("jpeg", "image/jpeg"),
+        PNG("png", "image/png");
+
+        private final String formatName;
+        @Getter
+        private final String mimeType;
+
+        Format(final String formatName, final String mimeType) {
+            this.formatName = formatName;
+            this.mimeType = mimeType;
+        }
+    }
+
+    public static final float DEFAULT_QUALITY = 0.85f;
+
+    private static final int INITIAL_BUFFER_BYTES = 256 * 1024;
+
+    private final Format format;
+    private final int maxDimension;
+    private final ImageWriter imageWriter;
+    private final ImageWriteParam writeParam;
+    /* Reset rather than replaced between frames, so the buffer only grows until it fits the largest frame */
+    private final ByteArrayOutputStream outputStream = new ByteArrayOutputStream(INITIAL_BUFFER_BYTES);
+
+    /* A quality of 0 uses the default, a max dimension of 0 keeps frames at their decoded size */
+    @Builder
+    private ImageIOFrameEncoder(final Format format, final float quality, final int maxDimension) {
+        this.format = format != null ? format : Format.JPEG;
+        this.maxDimension = maxDimension;
+
+        Iterator<ImageWriter> imageWriters = ImageIO.getImageWritersByFormatName(this.format.formatName);
+        if (!imageWriters.hasNext()) {
+            throw new IllegalStateException("No image writer for " + this.format.formatName);
+        }
+        this.imageWriter = imageWriters.next();
+        this.writeParam = imageWriter.getDefaultWriteParam();
+        if (this.format == Format.JPEG) {
+            writeParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            writeParam.setCompressionQuality(quality > 0 ? quality : DEFAULT_QUALITY);
+        }
+    }
+
+    @Override
+    public byte[] encode(final BufferedImage bufferedImage) throws IOException {
+        long startTime = System.nanoTime();
+        BufferedImage image = scale(bufferedImage);
+        if (format == Format.JPEG && image.getColorModel().hasAlpha()) {
+            image = redraw(image, image.getWidth(), image.getHeight());
+        }
+
+        outputStream.reset();
+        try (ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(outputStream)) {
+            imageWriter.setOutput(imageOutputStream);
+            imageWriter.write(null, new IIOImage(image, null, null), writeParam);
+        } finally {
+            imageWriter.setOutput(null);
+        }
+        PipelineMetrics.ENCODE.recordSince(startTime);
+        return outputStream.toByteArray();
+    }
+
+    @Override
+    public String getMimeType() {
+        return format.getMimeType();
+    }
+
+    /* Returns the image itself when it already fits within the maximum dimension */
+    public BufferedImage scale(final BufferedImage bufferedImage) {
+        int width = bufferedImage.getWidth();
+        int height = bufferedImage.getHeight();
+        if (maxDimension <= 0 || Math.max(width, height) <= maxDimension) {
+            return bufferedImage;
+        }
+        double factor = (double) maxDimension / Math.max(width, height);
+        return redraw(bufferedImage, Math.max(1, (int) Math.round(width * factor)), Math.max(1, (int) Math.round(height * factor)));
+    }
+
+    private static BufferedImage redraw(final BufferedImage bufferedImage, final int width, final int height) {
+        BufferedImage redrawn = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = redrawn.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.drawImage(bufferedImage, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return redrawn;
+    }
+}
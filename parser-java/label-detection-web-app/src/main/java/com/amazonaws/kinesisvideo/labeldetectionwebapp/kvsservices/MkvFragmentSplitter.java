@@ -0,0 +1,173 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import lombok.Value;
+
+/* Splits the MKV stream returned by GetMediaForFragmentList into the bytes of the individual fragments.
+ *
+ * Every fragment starts with its own EBML header. Only the Segment, Cluster and tag elements are descended into,
+ * every other element is copied over by its size, so frame data is never scanned for element ids. The fragment
+ * number is taken from the AWS_KINESISVIDEO_FRAGMENT_NUMBER tag of each fragment. */
+public class MkvFragmentSplitter {
+
+    @Value
+    public static class FragmentBytes {
+        String fragmentNumber;
+        byte[] bytes;
+    }
+
+    private static final long EBML_HEADER_ID = 0x1A45DFA3L;
+    private static final long SEGMENT_ID = 0x18538067L;
+    private static final long CLUSTER_ID = 0x1F43B675L;
+    private static final long TAGS_ID = 0x1254C367L;
+    private static final long TAG_ID = 0x7373L;
+    private static final long SIMPLE_TAG_ID = 0x67C8L;
+    private static final long TAG_NAME_ID = 0x45A3L;
+    private static final long TAG_STRING_ID = 0x4487L;
+
+    private static final String FRAGMENT_NUMBER_TAG = "AWS_KINESISVIDEO_FRAGMENT_NUMBER";
+    private static final int INITIAL_FRAGMENT_BYTES = 1 << 20;
+    private static final int COPY_BUFFER_BYTES = 1 << 16;
+
+    private final InputStream inputStream;
+    private final byte[] copyBuffer = new byte[COPY_BUFFER_BYTES];
+    private byte[] nextHeaderId;
+
+    public MkvFragmentSplitter(final InputStream inputStream) {
+        this.inputStream = inputStream;
+    }
+
+    /* Returns the next fragment of the stream, or null once the stream is exhausted */
+    public FragmentBytes next() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(INITIAL_FRAGMENT_BYTES);
+        String fragmentNumber = null;
+        String tagName = null;
+        boolean sawHeader = false;
+
+        while (true) {
+            byte[] idBytes = nextHeaderId != null ? nextHeaderId : readId();
+            nextHeaderId = null;
+            if (idBytes == null) {
+                break;
+            }
+            long id = toLong(idBytes);
+            if (id == EBML_HEADER_ID && sawHeader) {
+                /* Start of the following fragment, keep its id for the next call */
+                nextHeaderId = idBytes;
+                break;
+            }
+            sawHeader |= id == EBML_HEADER_ID;
+            out.write(idBytes);
+
+            byte[] sizeBytes = readSize();
+            out.write(sizeBytes);
+            long size = sizeValue(sizeBytes);
+
+            if (id == SEGMENT_ID || id == CLUSTER_ID || id == TAGS_ID || id == TAG_ID || id == SIMPLE_TAG_ID) {
+                continue;
+            }
+            if (size < 0) {
+                throw new IOException("Unknown size for element 0x" + Long.toHexString(id));
+            }
+            if (id == TAG_NAME_ID || id == TAG_STRING_ID) {
+                byte[] value = readFully((int) size);
+                out.write(value);
+                String text = new String(value, StandardCharsets.UTF_8).trim();
+                if (id == TAG_NAME_ID) {
+                    tagName = text;
+                } else if (fragmentNumber == null && FRAGMENT_NUMBER_TAG.equals(tagName)) {
+                    fragmentNumber = text;
+                }
+            } else {
+                copy(size, out);
+            }
+        }
+        return out.size() == 0 ? null : new FragmentBytes(fragmentNumber, out.toByteArray());
+    }
+
+    public void close() throws IOException {
+        inputStream.close();
+    }
+
+    private byte[] readId() throws IOException {
+        int first = inputStream.read();
+        if (first < 0) {
+            return null;
+        }
+        int length = Integer.numberOfLeadingZeros(first) - 23;
+        if (first == 0 || length > 4) {
+            throw new IOException("Invalid element id 0x" + Integer.toHexString(first));
+        }
+        return readRest(first, length);
+    }
+
+    private byte[] readSize() throws IOException {
+        int first = inputStream.read();
+        if (first <= 0) {
+            throw new EOFException("Invalid or missing element size");
+        }
+        return readRest(first, Integer.numberOfLeadingZeros(first) - 23);
+    }
+
+    private byte[] readRest(final int first, final int length) throws IOException {
+        byte[] bytes = new byte[length];
+        bytes[0] = (byte) first;
+        for (int i = 1; i < length; i++) {
+            int next = inputStream.read();
+            if (next < 0) {
+                throw new EOFException("Truncated element header");
+            }
+            bytes[i] = (byte) next;
+        }
+        return bytes;
+    }
+
+    /* Value of an EBML size, or -1 when every value bit is set, which marks an unknown size */
+    private static long sizeValue(final byte[] sizeBytes) {
+        long value = sizeBytes[0] & (0xFF >> sizeBytes.length);
+        boolean unknown = value == (0xFF >> sizeBytes.length);
+        for (int i = 1; i < sizeBytes.length; i++) {
+            value = (value << 8) | (sizeBytes[i] & 0xFF);
+            unknown &= (sizeBytes[i] & 0xFF) == 0xFF;
+        }
+        return unknown ? -1 : value;
+    }
+
+    private static long toLong(final byte[] bytes) {
+        long value = 0;
+        for (byte b : bytes) {
+            value = (value << 8) | (b & 0xFF);
+        }
+        return value;
+    }
+
+    private byte[] readFully(final int length) throws IOException {
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int count = inputStream.read(bytes, read, length - read);
+            if (count < 0) {
+                throw new EOFException("Truncated element");
+            }
+            read += count;
+        }
+        return bytes;
+    }
+
+    private void copy(final long length, final ByteArrayOutputStream out) throws IOException {
+        long remaining = length;
+        while (remaining > 0) {
+            int count = inputStream.read(copyBuffer, 0, (int) Math.min(copyBuffer.length, remaining));
+            if (count < 0) {
+                throw new EOFException("Truncated element");
+            }
+            out.write(copyBuffer, 0, count);
+            remaining -= count;
+        }
+    }
+}
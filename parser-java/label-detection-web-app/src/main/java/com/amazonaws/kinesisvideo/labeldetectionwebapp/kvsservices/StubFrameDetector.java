@@ -0,0 +1,62 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+
+import com.amazonaws.services.rekognition.model.BoundingBox;
+import com.amazonaws.services.rekognition.model.Instance;
+import com.amazonaws.services.rekognition.model.Label;
+
+/* Local detector that makes up labels without looking at the picture.
+ *
+ * The labels, confidences and bounding boxes are derived from a checksum of the image bytes, so the same frame always
+ * gets the same result and different frames usually get different ones. It needs no network and no credentials, which
+ * makes it suitable for offline runs, benchmarks of the rest of the pipeline and tests. */
+public class StubFrameDetector implements FrameDetector {
+
+    private static final List<String> LABEL_NAMES = Collections.unmodifiableList(Arrays.asList(
+            "Person", "Car", "Tree", "Building", "Dog", "Bicycle", "Road", "Sky", "Truck", "Bird"));
+
+    @Override
+    public String getName() {
+        return STUB;
+    }
+
+    @Override
+    public List<Label> detectLabels(final ByteBuffer imageBytes, final int maxLabels, final float minConfidence) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(imageBytes.duplicate());
+        Random random = new Random(crc32.getValue());
+
+        List<String> names = new ArrayList<>(LABEL_NAMES);
+        Collections.shuffle(names, random);
+        int labelCount = 1 + random.nextInt(Math.max(1, Math.min(maxLabels, 3)));
+
+        List<Label> labels = new ArrayList<>(labelCount);
+        for (int i = 0; i < labelCount; i++) {
+            float left = random.nextFloat() * 0.8f;
+            float top = random.nextFloat() * 0.8f;
+            BoundingBox boundingBox = new BoundingBox()
+                    .withLeft(left)
+                    .withTop(top)
+                    .withWidth(0.05f + random.nextFloat() * (0.95f - left))
+                    .withHeight(0.05f + random.nextFloat() * (0.95f - top));
+            float confidence = confidence(random, minConfidence);
+            labels.add(new Label()
+                    .withName(names.get(i))
+                    .withConfidence(confidence)
+                    .withInstances(new Instance().withBoundingBox(boundingBox).withConfidence(confidence)));
+        }
+        return labels;
+    }
+
+    private static float confidence(final Random random, final float minConfidence) {
+        float floor = Math.max(0f, Math.min(100f, minConfidence));
+        return floor + random.nextFloat() * (100f - floor);
+    }
+}
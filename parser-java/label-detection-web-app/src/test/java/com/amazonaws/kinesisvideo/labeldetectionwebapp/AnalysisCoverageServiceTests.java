@@ -0,0 +1,147 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.FragmentIndex;
+import com.amazonaws.services.kinesisvideo.model.TimestampRange;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/* Ranges are given as offsets from the start of a one minute record, the last millisecond of which is 60000 */
+class AnalysisCoverageServiceTests {
+
+    private static final Long STREAM_ID = 1L;
+    private static final String DETECTOR = "stub";
+
+    private final AnalyzedRangeRepository analyzedRangeRepository = mock(AnalyzedRangeRepository.class);
+    private final JpaFrameRepository jpaFrameRepository = mock(JpaFrameRepository.class);
+    private final AnalysisCoverageService analysisCoverageService = new AnalysisCoverageService(analyzedRangeRepository,
+            mock(ArchivedVideoStreamsRepository.class), jpaFrameRepository, mock(LabelIndexService.class),
+            mock(PlatformTransactionManager.class));
+
+    private ArchivedVideoStream stream;
+    private long recordStart;
+
+    @BeforeEach
+    void createStream() throws ParseException {
+        stream = new ArchivedVideoStream("stream", "01/01/2020 00:00:00", "01/01/2020 00:01:00", 1);
+        stream.setId(STREAM_ID);
+        recordStart = AnalysisCoverageService.recordRange(stream).getStartTimestamp().getTime();
+    }
+
+    @Test
+    void recordWithoutResultsIsUncovered() throws ParseException {
+        analyzed();
+
+        assertEquals(Collections.singletonList(Arrays.asList(0L, 60000L)), offsets(analysisCoverageService.uncovered(stream, DETECTOR)));
+        assertFalse(analysisCoverageService.isStale(stream, DETECTOR));
+    }
+
+    @Test
+    void gapsBetweenRangesAreUncovered() throws ParseException {
+        analyzed(range(0, 9999), range(20000, 29999));
+
+        assertEquals(Arrays.asList(Arrays.asList(10000L, 19999L), Arrays.asList(30000L, 60000L)),
+                offsets(analysisCoverageService.uncovered(stream, DETECTOR)));
+    }
+
+    @Test
+    void adjacentRangesLeaveNoGap() throws ParseException {
+        analyzed(range(0, 9999), range(10000, 60000));
+
+        assertTrue(analysisCoverageService.uncovered(stream, DETECTOR).isEmpty());
+    }
+
+    @Test
+    void overlappingRangesAreMerged() throws ParseException {
+        analyzed(range(5000, 15000), range(10000, 25000), range(12000, 13000), range(40000, 50000));
+
+        assertEquals(Arrays.asList(Arrays.asList(0L, 4999L), Arrays.asList(25001L, 39999L), Arrays.asList(50001L, 60000L)),
+                offsets(analysisCoverageService.uncovered(stream, DETECTOR)));
+    }
+
+    @Test
+    void rangesBeyondTheRecordAreIgnored() throws ParseException {
+        analyzed(range(-5000, 10000), range(50000, 70000));
+
+        assertEquals(Collections.singletonList(Arrays.asList(10001L, 49999L)),
+                offsets(analysisCoverageService.uncovered(stream, DETECTOR)));
+    }
+
+    @Test
+    void rangesOfAnotherDetectorAreStale() throws ParseException {
+        analyzed(range(0, 29999), new AnalyzedRange(STREAM_ID, recordStart + 30000, recordStart + 60000, recordStart, 1, 0, "rekognition"));
+
+        assertTrue(analysisCoverageService.isStale(stream, DETECTOR));
+        assertEquals(Collections.singletonList(Arrays.asList(0L, 60000L)), offsets(analysisCoverageService.uncovered(stream, DETECTOR)));
+    }
+
+    @Test
+    void rangesOfAnotherSampleRateAreStale() throws ParseException {
+        analyzed(range(0, 60000));
+        stream.setSampleRate(2);
+
+        assertTrue(analysisCoverageService.isStale(stream, DETECTOR));
+        assertEquals(Collections.singletonList(Arrays.asList(0L, 60000L)), offsets(analysisCoverageService.uncovered(stream, DETECTOR)));
+    }
+
+    @Test
+    void rangesOfAnotherRecordStartAreStale() throws ParseException {
+        analyzed(range(0, 60000));
+        stream.setStartTimestamp("01/01/2020 00:00:10");
+
+        assertTrue(analysisCoverageService.isStale(stream, DETECTOR));
+    }
+
+    @Test
+    void framesWithoutRangesAreStale() throws ParseException {
+        analyzed();
+        when(jpaFrameRepository.existsByStreamId(STREAM_ID)).thenReturn(true);
+
+        assertTrue(analysisCoverageService.isStale(stream, DETECTOR));
+        assertEquals(Collections.singletonList(Arrays.asList(0L, 60000L)), offsets(analysisCoverageService.uncovered(stream, DETECTOR)));
+    }
+
+    @Test
+    void unsettledTimeIsLeftForALaterJob() throws ParseException {
+        List<TimestampRange> uncovered = Arrays.asList(
+                AnalysisCoverageService.recordRange(stream).withEndTimestamp(new Date(recordStart + 9999)),
+                AnalysisCoverageService.recordRange(stream).withStartTimestamp(new Date(recordStart + 20000)),
+                AnalysisCoverageService.recordRange(stream).withStartTimestamp(new Date(recordStart + 50000)));
+        long now = recordStart + 30000 + FragmentIndex.SETTLE_MILLIS;
+
+        assertEquals(Arrays.asList(Arrays.asList(0L, 9999L), Arrays.asList(20000L, 30000L)),
+                offsets(AnalysisCoverageService.settled(uncovered, now)));
+        assertTrue(AnalysisCoverageService.settled(uncovered, recordStart - 1 + FragmentIndex.SETTLE_MILLIS).isEmpty());
+        assertEquals(uncovered, AnalysisCoverageService.settled(uncovered, recordStart + 60000 + FragmentIndex.SETTLE_MILLIS));
+    }
+
+    private void analyzed(final AnalyzedRange... ranges) {
+        when(analyzedRangeRepository.findByStreamIdOrderByStartMillis(STREAM_ID)).thenReturn(Arrays.asList(ranges));
+    }
+
+    private AnalyzedRange range(final long startOffset, final long endOffset) {
+        return new AnalyzedRange(STREAM_ID, recordStart + startOffset, recordStart + endOffset, recordStart, 1, 0, DETECTOR);
+    }
+
+    private List<List<Long>> offsets(final List<TimestampRange> ranges) {
+        List<List<Long>> offsets = new ArrayList<>();
+        for (TimestampRange range : ranges) {
+            offsets.add(Arrays.asList(range.getStartTimestamp().getTime() - recordStart,
+                    range.getEndTimestamp().getTime() - recordStart));
+        }
+        return offsets;
+    }
+}
@@ -0,0 +1,121 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.text.ParseException;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions.AnalysisJobRejectedException;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions.ArchivedVideoStreamAlreadyAnalyzedException;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.exceptions.ArchivedVideoStreamNotFoundException;
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.FrameBlobStore;
+import com.amazonaws.services.kinesisvideo.model.TimestampRange;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.transaction.PlatformTransactionManager;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/* One job thread and room for one queued job. Jobs wait in their first step until the test lets them go on, and then
+ * fail without touching Kinesis Video Streams. */
+class AnalysisJobServiceTests {
+
+    private static final long TIMEOUT_SECONDS = 10;
+
+    private final ArchivedVideoStreamsRepository archivedVideoStreamsRepository = mock(ArchivedVideoStreamsRepository.class);
+    private final AnalysisCoverageService analysisCoverageService = mock(AnalysisCoverageService.class);
+    private final CountDownLatch started = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private AnalysisJobService analysisJobService;
+
+    @BeforeEach
+    void createService() throws ParseException {
+        when(archivedVideoStreamsRepository.findById(anyLong())).thenAnswer(invocation -> {
+            ArchivedVideoStream stream = new ArchivedVideoStream("stream", "01/01/2020 00:00:00", "01/01/2020 00:01:00", 1);
+            stream.setId(invocation.getArgument(0));
+            return Optional.of(stream);
+        });
+        when(analysisCoverageService.uncovered(any(), any())).thenReturn(Collections.singletonList(new TimestampRange()));
+        when(analysisCoverageService.isStale(any(), any())).thenAnswer(invocation -> {
+            started.countDown();
+            release.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            throw new IllegalStateException("Stopped by the test");
+        });
+        analysisJobService = new AnalysisJobService(archivedVideoStreamsRepository, mock(JpaFrameRepository.class),
+                mock(LabelIndexService.class), mock(LabelOccurrenceRepository.class), analysisCoverageService,
+                mock(PlatformTransactionManager.class), mock(FrameBlobStore.class), 1, 1, 60_000, 50, 500);
+    }
+
+    @AfterEach
+    void shutdown() {
+        release.countDown();
+        analysisJobService.shutdown();
+    }
+
+    @Test
+    void submitsOfAStreamShareItsJob() throws InterruptedException {
+        AnalysisJob running = analysisJobService.submit(1L);
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        AnalysisJob queued = analysisJobService.submit(2L);
+
+        assertSame(running, analysisJobService.submit(1L));
+        assertSame(queued, analysisJobService.submit(2L));
+        assertNotEquals(running.getId(), queued.getId());
+        assertEquals(2, analysisJobService.all().size());
+        assertSame(running, analysisJobService.getActive(1L).get());
+    }
+
+    @Test
+    void rejectedJobIsForgotten() throws InterruptedException {
+        analysisJobService.submit(1L);
+        assertTrue(started.await(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        analysisJobService.submit(2L);
+
+        assertThrows(AnalysisJobRejectedException.class, () -> analysisJobService.submit(3L));
+        assertFalse(analysisJobService.getActive(3L).isPresent());
+        assertEquals(2, analysisJobService.all().size());
+    }
+
+    @Test
+    void finishedJobIsNotShared() throws InterruptedException {
+        AnalysisJob first = analysisJobService.submit(1L);
+        release.countDown();
+        awaitDone(first);
+
+        assertEquals(AnalysisJob.Status.FAILED, first.getStatus());
+        assertFalse(analysisJobService.getActive(1L).isPresent());
+        AnalysisJob second = analysisJobService.submit(1L);
+        assertNotEquals(first.getId(), second.getId());
+        awaitDone(second);
+    }
+
+    @Test
+    void analyzedOrUnknownStreamIsRefused() throws ParseException {
+        when(analysisCoverageService.uncovered(any(), any())).thenReturn(Collections.emptyList());
+        when(archivedVideoStreamsRepository.findById(9L)).thenReturn(Optional.empty());
+
+        assertThrows(ArchivedVideoStreamAlreadyAnalyzedException.class, () -> analysisJobService.submit(1L));
+        assertThrows(ArchivedVideoStreamNotFoundException.class, () -> analysisJobService.submit(9L));
+        assertTrue(analysisJobService.all().isEmpty());
+    }
+
+    /* A job stops being active only after it is done */
+    private void awaitDone(final AnalysisJob job) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while (analysisJobService.getActive(job.getStreamId()).isPresent() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(job.getStatus().isDone());
+    }
+}
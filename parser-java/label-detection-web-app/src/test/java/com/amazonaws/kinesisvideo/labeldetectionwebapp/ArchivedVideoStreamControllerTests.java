@@ -0,0 +1,33 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ArchivedVideoStreamControllerTests {
+
+    @Test
+    void playbackTimeInMilliseconds() {
+        assertEquals(0, ArchivedVideoStreamController.parsePlaybackMillis("0"));
+        assertEquals(1500, ArchivedVideoStreamController.parsePlaybackMillis("1500"));
+    }
+
+    @Test
+    void playbackTimeInMinutesAndSeconds() {
+        assertEquals(65_000, ArchivedVideoStreamController.parsePlaybackMillis("1:05"));
+        assertEquals(5_000, ArchivedVideoStreamController.parsePlaybackMillis("00:05"));
+        assertEquals(3_600_000 + 2 * 60_000 + 3_000, ArchivedVideoStreamController.parsePlaybackMillis("01:02:03"));
+    }
+
+    @Test
+    void invalidPlaybackTimeIsABadRequest() {
+        for (String playbackTime : new String[]{"", "abc", "1.5", "1:xx", "1::05"}) {
+            ResponseStatusException e = assertThrows(ResponseStatusException.class,
+                    () -> ArchivedVideoStreamController.parsePlaybackMillis(playbackTime), playbackTime);
+            assertEquals(HttpStatus.BAD_REQUEST, e.getStatus());
+        }
+    }
+}
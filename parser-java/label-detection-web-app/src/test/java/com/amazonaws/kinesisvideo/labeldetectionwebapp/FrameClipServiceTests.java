@@ -0,0 +1,127 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.amazonaws.kinesisvideo.labeldetectionwebapp.kvsservices.FrameBlobStore;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/* A clip of three frames, the last of which has lost its image */
+class FrameClipServiceTests {
+
+    private static final Long STREAM_ID = 1L;
+    private static final byte[] FIRST_IMAGE = "first image".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] SECOND_IMAGE = "the second, longer image".getBytes(StandardCharsets.US_ASCII);
+    private static final int MISSING_IMAGE_SIZE = 7;
+    private static final String PART_START = "--" + FrameClipService.BOUNDARY + "\r\n";
+
+    @TempDir
+    Path directory;
+
+    private final JpaFrameRepository jpaFrameRepository = mock(JpaFrameRepository.class);
+    private FrameClipService frameClipService;
+
+    @BeforeEach
+    void createClip() throws IOException {
+        FrameBlobStore frameBlobStore = FrameBlobStore.open(directory);
+        List<JpaFrameRepository.FrameImage> frames = Arrays.asList(
+                frame(1, frameBlobStore.put(FIRST_IMAGE), FIRST_IMAGE.length, 0),
+                frame(2, frameBlobStore.put(SECOND_IMAGE), SECOND_IMAGE.length, 1000),
+                frame(3, FrameBlobStore.hash("lost".getBytes(StandardCharsets.US_ASCII)), MISSING_IMAGE_SIZE, 2000));
+        /* Every later page is empty */
+        when(jpaFrameRepository.findImagesByStreamAfter(eq(STREAM_ID), anyLong(), anyLong(), anyLong(), eq(Long.MIN_VALUE),
+                eq(Long.MIN_VALUE), any())).thenReturn(frames);
+        when(jpaFrameRepository.findLastIdByStream(STREAM_ID)).thenReturn(3L);
+        when(jpaFrameRepository.countByStreamId(STREAM_ID)).thenReturn(3L);
+        frameClipService = new FrameClipService(jpaFrameRepository, frameBlobStore);
+    }
+
+    @Test
+    void wholeClipHasTheLengthOfItsLayout() throws IOException {
+        long length = frameClipService.length(clip());
+        String clip = new String(write(0, length - 1), StandardCharsets.US_ASCII);
+
+        assertEquals(length, clip.length());
+        assertTrue(clip.startsWith(PART_START + "Content-Type: image/jpeg\r\nContent-Length: " + FIRST_IMAGE.length
+                + "\r\nX-Playback-Millis: 0\r\n\r\nfirst image\r\n" + PART_START));
+        assertTrue(clip.contains("\r\n\r\n" + new String(SECOND_IMAGE, StandardCharsets.US_ASCII) + "\r\n"));
+        assertTrue(clip.endsWith("\r\n\r\n" + new String(new byte[MISSING_IMAGE_SIZE], StandardCharsets.US_ASCII)
+                + "\r\n--" + FrameClipService.BOUNDARY + "--\r\n"));
+    }
+
+    @Test
+    void rangesAreSlicesOfTheWholeClip() throws IOException {
+        long length = frameClipService.length(clip());
+        byte[] clip = write(0, length - 1);
+        String text = new String(clip, StandardCharsets.US_ASCII);
+
+        /* Around the start of every part, the end of every header and the close delimiter */
+        TreeSet<Long> offsets = new TreeSet<>(Arrays.asList(0L, 1L, 5L, length - 2, length - 1));
+        for (int part = text.indexOf(PART_START); part >= 0; part = text.indexOf(PART_START, part + 1)) {
+            int image = text.indexOf("\r\n\r\n", part) + 4;
+            for (long offset : new long[]{part - 1, part, part + 1, part + 10, image - 1, image, image + 1}) {
+                if (offset >= 0 && offset < length) {
+                    offsets.add(offset);
+                }
+            }
+        }
+        for (long start : offsets) {
+            for (long end : offsets.tailSet(start)) {
+                assertArrayEquals(Arrays.copyOfRange(clip, (int) start, (int) end + 1), write(start, end),
+                        "bytes " + start + "-" + end);
+            }
+        }
+    }
+
+    @Test
+    void lengthIsKeptUntilTheStreamHasOtherFrames() {
+        long length = frameClipService.length(clip());
+        assertEquals(length, frameClipService.length(clip()));
+        verify(jpaFrameRepository, times(1)).findImagesByStreamAfter(eq(STREAM_ID), anyLong(), anyLong(), eq(3L),
+                eq(Long.MIN_VALUE), eq(Long.MIN_VALUE), any());
+
+        when(jpaFrameRepository.findLastIdByStream(STREAM_ID)).thenReturn(4L);
+        assertEquals(length, frameClipService.length(clip()));
+        verify(jpaFrameRepository, times(1)).findImagesByStreamAfter(eq(STREAM_ID), anyLong(), anyLong(), eq(4L),
+                eq(Long.MIN_VALUE), eq(Long.MIN_VALUE), any());
+    }
+
+    private FrameClipService.Clip clip() {
+        return frameClipService.clip(STREAM_ID, 0, Long.MAX_VALUE);
+    }
+
+    private byte[] write(final long start, final long end) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        frameClipService.write(clip(), start, end, out);
+        return out.toByteArray();
+    }
+
+    private static JpaFrameRepository.FrameImage frame(final long id, final String imageHash, final long imageSize,
+                                                       final long playbackMillis) {
+        JpaFrameRepository.FrameImage frame = mock(JpaFrameRepository.FrameImage.class);
+        when(frame.getId()).thenReturn(id);
+        when(frame.getImageHash()).thenReturn(imageHash);
+        when(frame.getImageSize()).thenReturn(imageSize);
+        when(frame.getImageMimeType()).thenReturn("image/jpeg");
+        when(frame.getPlaybackMillis()).thenReturn(playbackMillis);
+        return frame;
+    }
+}
@@ -0,0 +1,90 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/* Occurrences are given in label and time order, the way the label index returns them */
+class LabelIndexServiceTests {
+
+    private static final Long STREAM_ID = 1L;
+    private static final long GAP_MILLIS = 2000;
+
+    private final LabelOccurrenceRepository labelOccurrenceRepository = mock(LabelOccurrenceRepository.class);
+    private final LabelIndexService labelIndexService = new LabelIndexService(labelOccurrenceRepository);
+
+    @Test
+    void occurrencesAtTheGapBelongToOneInterval() {
+        Map<String, List<LabelInterval>> intervals = intervals(
+                occurrence("Car", 0, 80f),
+                occurrence("Car", 2000, 95f),
+                occurrence("Car", 4000, 90f));
+
+        assertEquals(Collections.singletonMap("Car", Collections.singletonList(new LabelInterval(0, 4000, 3, 95f))), intervals);
+    }
+
+    @Test
+    void occurrencesBeyondTheGapStartAnotherInterval() {
+        Map<String, List<LabelInterval>> intervals = intervals(
+                occurrence("Car", 0, 80f),
+                occurrence("Car", 2001, 95f),
+                occurrence("Car", 3000, 90f));
+
+        assertEquals(Collections.singletonMap("Car", Arrays.asList(new LabelInterval(0, 0, 1, 80f),
+                new LabelInterval(2001, 3000, 2, 95f))), intervals);
+    }
+
+    @Test
+    void labelChangeStartsAnotherInterval() {
+        Map<String, List<LabelInterval>> intervals = intervals(
+                occurrence("Car", 0, 80f),
+                occurrence("Car", 1000, 85f),
+                occurrence("Person", 1000, 99f),
+                occurrence("Person", 2000, 70f),
+                occurrence("Tree", 5000, 60f));
+
+        assertEquals(Arrays.asList("Car", "Person", "Tree"), new ArrayList<>(intervals.keySet()));
+        assertEquals(Collections.singletonList(new LabelInterval(0, 1000, 2, 85f)), intervals.get("Car"));
+        assertEquals(Collections.singletonList(new LabelInterval(1000, 2000, 2, 99f)), intervals.get("Person"));
+        assertEquals(Collections.singletonList(new LabelInterval(5000, 5000, 1, 60f)), intervals.get("Tree"));
+    }
+
+    @Test
+    void noOccurrencesHaveNoIntervals() {
+        assertEquals(Collections.emptyMap(), intervals());
+    }
+
+    @Test
+    void oneLabelIsReadFromItsOwnQuery() {
+        LabelOccurrenceRepository.LabelTime occurrence = occurrence("Car", 3000, 80f);
+        when(labelOccurrenceRepository.streamByStreamAndLabel(STREAM_ID, "Car", 0, 10000, 50f))
+                .thenReturn(Stream.of(occurrence));
+
+        assertEquals(Collections.singletonMap("Car", Collections.singletonList(new LabelInterval(3000, 3000, 1, 80f))),
+                labelIndexService.intervals(STREAM_ID, "Car", 0, 10000, 50f, GAP_MILLIS));
+    }
+
+    private Map<String, List<LabelInterval>> intervals(final LabelOccurrenceRepository.LabelTime... occurrences) {
+        when(labelOccurrenceRepository.streamByStream(STREAM_ID, 0, Long.MAX_VALUE, 0f))
+                .thenReturn(Arrays.stream(occurrences));
+        return labelIndexService.intervals(STREAM_ID, null, 0, Long.MAX_VALUE, 0f, GAP_MILLIS);
+    }
+
+    private static LabelOccurrenceRepository.LabelTime occurrence(final String label, final long playbackMillis,
+                                                                  final float confidence) {
+        LabelOccurrenceRepository.LabelTime occurrence = mock(LabelOccurrenceRepository.LabelTime.class);
+        when(occurrence.getLabel()).thenReturn(label);
+        when(occurrence.getPlaybackMillis()).thenReturn(playbackMillis);
+        when(occurrence.getConfidence()).thenReturn(confidence);
+        return occurrence;
+    }
+}
@@ -0,0 +1,126 @@
+package com.amazonaws.kinesisvideo.labeldetectionwebapp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.Map;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/* Times saving and reading back the results of a large archive against the database of the active profile, for
+ * instance with
+ *
+ *   mvn test -Dtest=PersistenceBenchmarkTests -Dkvs.benchmark=true -Dkvs.benchmark.frames=100000 -Dspring.profiles.active=prod
+ *
+ * Frames are written through the same write-behind as analysis jobs, with one frame a second and a few labels each,
+ * then read the way the web app reads them. Every step is logged with how long it took. */
+@Slf4j
+@SpringBootTest
+@EnabledIfSystemProperty(named = "kvs.benchmark", matches = "true")
+class PersistenceBenchmarkTests {
+
+    private static final String[] LABELS = {"Car", "Person", "Tree", "Road", "Building", "Dog", "Bicycle", "Sky"};
+    private static final int PAGE_SIZE = 50;
+    private static final int STREAM_READS = 100;
+
+    @Autowired
+    private ArchivedVideoStreamsRepository archivedVideoStreamsRepository;
+    @Autowired
+    private JpaFrameRepository jpaFrameRepository;
+    @Autowired
+    private LabelIndexService labelIndexService;
+    @Autowired
+    private LabelOccurrenceRepository labelOccurrenceRepository;
+    @Autowired
+    private AnalysisCoverageService analysisCoverageService;
+    @Autowired
+    private FrameClipService frameClipService;
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    @Value("${kvs.frames.write-batch-size:50}")
+    private int writeBatchSize;
+    @Value("${kvs.frames.write-queue-capacity:500}")
+    private int writeQueueCapacity;
+
+    @Test
+    void saveAndReadLargeArchive() throws Exception {
+        int frames = Integer.getInteger("kvs.benchmark.frames", 100_000);
+        Long streamId = archivedVideoStreamsRepository.save(
+                new ArchivedVideoStream("benchmark", "01/01/2020 00:00:00", "02/01/2020 00:00:00", 1)).getId();
+        try {
+            long start = System.nanoTime();
+            FrameWriteBehind frameWriteBehind = new FrameWriteBehind(streamId, archivedVideoStreamsRepository,
+                    jpaFrameRepository, labelIndexService, labelOccurrenceRepository, analysisCoverageService,
+                    new TransactionTemplate(transactionManager), writeBatchSize, writeQueueCapacity);
+            for (int i = 0; i < frames; i++) {
+                JpaFrame frame = new JpaFrame(String.format("%064x", i), 20_000, "image/jpeg");
+                frame.setFrameNumber(i);
+                frame.setPlaybackPosition(i * 1000L);
+                frame.addLabel(LABELS[i % LABELS.length], 90f);
+                frame.addLabel(LABELS[(i / 60) % LABELS.length], 75f);
+                frame.addLabel(LABELS[(i / 600) % LABELS.length], 60f);
+                frameWriteBehind.accept(frame);
+            }
+            frameWriteBehind.finish();
+            log.info("Saved {} frames in {} ms", frames, millisSince(start));
+            assertEquals(frames, jpaFrameRepository.countByStreamId(streamId));
+
+            start = System.nanoTime();
+            ArchivedVideoStream stream = archivedVideoStreamsRepository.findWithLabelsById(streamId).get();
+            log.info("Read the stream with {} labels in {} ms", stream.getLabelToTimestamps().size(), millisSince(start));
+            assertEquals(LABELS.length, stream.getLabelToTimestamps().size());
+
+            start = System.nanoTime();
+            for (int i = 0; i < STREAM_READS; i++) {
+                archivedVideoStreamsRepository.findById(streamId).get();
+            }
+            log.info("Read the stream {} more times in {} ms", STREAM_READS, millisSince(start));
+
+            int lastPage = (frames - 1) / PAGE_SIZE;
+            for (int page : new int[]{0, lastPage / 2, lastPage}) {
+                start = System.nanoTime();
+                Page<Long> ids = jpaFrameRepository.findIdsByStream(streamId, PageRequest.of(page, PAGE_SIZE));
+                List<JpaFrame> frameWithLabels = jpaFrameRepository.findWithLabelsByIdIn(ids.getContent());
+                log.info("Read frame page {} of {} with {} frames in {} ms", page, lastPage, frameWithLabels.size(), millisSince(start));
+            }
+
+            start = System.nanoTime();
+            Page<Long> labelIds = jpaFrameRepository.findIdsByStreamAndLabel(streamId, LABELS[0], PageRequest.of(0, PAGE_SIZE));
+            log.info("Read the first page of {} frames of label {} in {} ms", labelIds.getTotalElements(), LABELS[0], millisSince(start));
+
+            start = System.nanoTime();
+            Map<String, List<LabelInterval>> intervals = labelIndexService.intervals(streamId, null, 0, Long.MAX_VALUE, 0,
+                    LabelIndexService.DEFAULT_GAP_MILLIS);
+            log.info("Merged the label index into {} intervals in {} ms",
+                    intervals.values().stream().mapToInt(List::size).sum(), millisSince(start));
+
+            start = System.nanoTime();
+            FrameClipService.Clip clip = frameClipService.clip(streamId, 0, Long.MAX_VALUE);
+            long clipLength = frameClipService.length(clip);
+            log.info("Laid out a clip of {} bytes in {} ms", clipLength, millisSince(start));
+
+            start = System.nanoTime();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            frameClipService.write(clip, clipLength / 2, clipLength / 2 + 999_999, out);
+            log.info("Wrote {} bytes from the middle of the clip in {} ms", out.size(), millisSince(start));
+        } finally {
+            analysisCoverageService.clear(streamId);
+            archivedVideoStreamsRepository.deleteById(streamId);
+        }
+    }
+
+    private static long millisSince(final long startNanos) {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}